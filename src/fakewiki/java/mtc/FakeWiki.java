@@ -0,0 +1,1747 @@
+package mtc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory stand-in for the MediaWiki API, for running MTC against local fixtures instead of enwp and Commons. It
+ * implements the parts of the API which jwiki and MTC use: site and user info, login, tokens, page text, image info,
+ * categories, links, backlinks, existence, duplicate files, parse trees, the generators behind each
+ * {@link TransferMode}, edits, deletions, and (chunked) uploads. File contents are served for download with HTTP Range
+ * support. Responses follow {@code formatversion=1} unless {@code formatversion=2} is requested.
+ * <p>
+ * Latency, transient server errors, and replication lag can be scripted (see {@link #withLatency(int, int)},
+ * {@link #withErrorRate(double)}, and {@link #withLag(int)}), and changed while requests are being served.
+ *
+ * @author Fastily
+ *
+ */
+public class FakeWiki implements Closeable
+{
+	/**
+	 * The namespaces of this wiki, by id.
+	 */
+	private static final LinkedHashMap<Integer, String> namespaces = new LinkedHashMap<>();
+
+	static
+	{
+		// the server writes headers and body separately, which stalls each response on delayed ACKs unless Nagle is off
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		namespaces.put(0, "");
+		namespaces.put(1, "Talk");
+		namespaces.put(2, "User");
+		namespaces.put(3, "User talk");
+		namespaces.put(4, "Wikipedia");
+		namespaces.put(6, "File");
+		namespaces.put(7, "File talk");
+		namespaces.put(8, "MediaWiki");
+		namespaces.put(10, "Template");
+		namespaces.put(11, "Template talk");
+		namespaces.put(12, "Help");
+		namespaces.put(14, "Category");
+		namespaces.put(15, "Category talk");
+		namespaces.put(828, "Module");
+	}
+
+	/**
+	 * The maximum number of results per request for {@code limit=max}.
+	 */
+	private static final int maxLimit = 500;
+
+	/**
+	 * The prefix of the generator parameters, by generator.
+	 */
+	private static final Map<String, String> generatorPrefix = Map.of("categorymembers", "gcm", "allimages", "gai", "embeddedin", "gei", "images", "gim",
+			"links", "gpl");
+
+	/**
+	 * The HTTP server backing this wiki.
+	 */
+	private final HttpServer server;
+
+	/**
+	 * The name of this wiki's session cookie. Includes the port, since clients key cookies by host only.
+	 */
+	private final String cookieName;
+
+	/**
+	 * The pages of this wiki, by normalized title.
+	 */
+	protected final ConcurrentHashMap<String, Page> pages = new ConcurrentHashMap<>();
+
+	/**
+	 * Registered users, by name.
+	 */
+	private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+
+	/**
+	 * The logged in user of each session, by session id.
+	 */
+	private final ConcurrentHashMap<String, User> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Stashed (partial) chunked uploads, by file key.
+	 */
+	private final ConcurrentHashMap<String, Stash> stash = new ConcurrentHashMap<>();
+
+	/**
+	 * Downloadable file contents, by SHA-1.
+	 */
+	private final ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<>();
+
+	/**
+	 * The number of requests served, by action. Requests for file contents are counted as {@code download}.
+	 */
+	private final ConcurrentHashMap<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * The id to assign to the next page and revision created.
+	 */
+	private final AtomicInteger nextId = new AtomicInteger(1), nextRevId = new AtomicInteger(1);
+
+	/**
+	 * The minimum and maximum time, in milliseconds, to wait before serving each request.
+	 */
+	private volatile int minLatency = 0, maxLatency = 0;
+
+	/**
+	 * The fraction of requests which fail with an HTTP 503, as if an upstream server were overloaded.
+	 */
+	private volatile double errorRate = 0;
+
+	/**
+	 * The replication lag, in seconds. Requests with a {@code maxlag} below this are refused.
+	 */
+	private volatile int lag = 0;
+
+	/**
+	 * The maximum number of writes (edits, deletions, and uploads) served per second. Set 0 for no limit.
+	 */
+	private volatile int rateLimit = 0;
+
+	/**
+	 * The start, in milliseconds since the epoch, of the current rate limit window, and the number of writes served in
+	 * it. Guarded by {@code this}.
+	 */
+	private long windowStart = 0, windowWrites = 0;
+
+	/**
+	 * The wiki whose files are shared with this one, as Commons is with enwp. Null if there is none.
+	 */
+	private volatile FakeWiki sharedRepo;
+
+	/**
+	 * Constructor, creates a FakeWiki and starts serving it on an ephemeral port of the loopback interface.
+	 *
+	 * @throws IOException If the server could not be started.
+	 */
+	public FakeWiki() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/w/api.php", this::handle);
+		server.createContext("/images/", this::download);
+		server.setExecutor(Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "fakewiki-" + server.getAddress().getPort());
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+
+		cookieName = "fakewiki" + server.getAddress().getPort() + "_session";
+	}
+
+	/**
+	 * Gets the API endpoint of this wiki.
+	 *
+	 * @return The URL of {@code api.php}.
+	 */
+	public String endpoint()
+	{
+		return String.format("http://127.0.0.1:%d/w/api.php", server.getAddress().getPort());
+	}
+
+	/**
+	 * Sets the time to wait before serving each request. Each request waits a random time in the given range.
+	 *
+	 * @param min The minimum time, in milliseconds.
+	 * @param max The maximum time, in milliseconds.
+	 * @return This FakeWiki.
+	 */
+	public FakeWiki withLatency(int min, int max)
+	{
+		minLatency = min;
+		maxLatency = Math.max(min, max);
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of requests (including downloads) which fail with an HTTP 503.
+	 *
+	 * @param rate The fraction, between 0 and 1.
+	 * @return This FakeWiki.
+	 */
+	public FakeWiki withErrorRate(double rate)
+	{
+		errorRate = rate;
+		return this;
+	}
+
+	/**
+	 * Sets the replication lag. Like MediaWiki, API requests whose {@code maxlag} parameter is below the lag are refused
+	 * with a {@code maxlag} error and a {@code Retry-After} header.
+	 *
+	 * @param seconds The lag, in seconds.
+	 * @return This FakeWiki.
+	 */
+	public FakeWiki withLag(int seconds)
+	{
+		lag = seconds;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of writes served per second, across all users. Like MediaWiki, writes beyond the limit are
+	 * refused with a {@code ratelimited} error. Uploading a chunk to the stash, or checking on one, does not count as a write.
+	 *
+	 * @param perSecond The limit. Set 0 to disable.
+	 * @return This FakeWiki.
+	 */
+	public FakeWiki withRateLimit(int perSecond)
+	{
+		rateLimit = perSecond;
+		return this;
+	}
+
+	/**
+	 * Sets the wiki whose files are shared with this one. Like MediaWiki, {@code prop=duplicatefiles} then also lists
+	 * files of {@code repo} with the same SHA-1, flagged as {@code shared}.
+	 *
+	 * @param repo The shared repository
+	 * @return This FakeWiki.
+	 */
+	public FakeWiki withSharedRepo(FakeWiki repo)
+	{
+		sharedRepo = repo;
+		return this;
+	}
+
+	/**
+	 * Registers a user, who can then log in.
+	 *
+	 * @param name The username
+	 * @param password The password
+	 * @param groups The user groups of the user, in addition to {@code *} and {@code user}. Deleting requires
+	 *           {@code sysop}.
+	 */
+	public void addUser(String name, String password, String... groups)
+	{
+		users.put(normalize(name), new User(nextId.getAndIncrement(), name, password, groups));
+	}
+
+	/**
+	 * Creates or replaces a page.
+	 *
+	 * @param title The title of the page
+	 * @param text The wikitext of the page
+	 * @return The new Page, for further setup.
+	 */
+	public Page addPage(String title, String text)
+	{
+		Page p = new Page(nextId.getAndIncrement(), nextRevId.getAndIncrement(), normalize(title), text);
+		pages.put(p.title, p);
+		return p;
+	}
+
+	/**
+	 * Creates or replaces a file with synthetic contents, which can be downloaded from the URL in its image info.
+	 *
+	 * @param title The title of the file
+	 * @param text The wikitext of the file description page
+	 * @param user The uploader
+	 * @param timestamp The time of the upload, in ISO 8601 format.
+	 * @param comment The upload summary
+	 * @param size The size of the file, in bytes.
+	 * @return The new Page, for further setup.
+	 */
+	public Page addFile(String title, String text, String user, String timestamp, String comment, int size)
+	{
+		Blob b = new Blob(normalize(title).hashCode(), size);
+		blobs.put(b.sha1, b);
+		return addPage(title, text).withUpload(user, timestamp, comment, size, 640, 480, b.sha1, fileURL(b.sha1));
+	}
+
+	/**
+	 * Gets a page.
+	 *
+	 * @param title The title of the page
+	 * @return The Page, or null if it does not exist.
+	 */
+	public Page page(String title)
+	{
+		return pages.get(normalize(title));
+	}
+
+	/**
+	 * Gets the number of requests served so far, by action. Requests for file contents are counted as
+	 * {@code download}.
+	 *
+	 * @return A snapshot of the counts, sorted by action.
+	 */
+	public TreeMap<String, Long> requestCounts()
+	{
+		TreeMap<String, Long> m = new TreeMap<>();
+		requestCounts.forEach((k, v) -> m.put(k, v.sum()));
+		return m;
+	}
+
+	/**
+	 * Stops serving this wiki.
+	 */
+	public void close()
+	{
+		server.stop(0);
+	}
+
+	/**
+	 * Finds the files whose current version has the given contents.
+	 *
+	 * @param sha1 The SHA-1 of the contents
+	 * @return The titles of the files, in no particular order.
+	 */
+	private ArrayList<String> filesWithSha1(String sha1)
+	{
+		ArrayList<String> l = new ArrayList<>();
+		for (Page pg : pages.values())
+			if (!pg.imageinfo.isEmpty() && sha1.equals(pg.imageinfo.get(0).get("sha1").getAsString()))
+				l.add(pg.title);
+
+		return l;
+	}
+
+	/**
+	 * Gets the download URL of a file's contents.
+	 *
+	 * @param sha1 The SHA-1 of the contents
+	 * @return The URL.
+	 */
+	private String fileURL(String sha1)
+	{
+		return endpoint().replace("/w/api.php", "/images/" + sha1);
+	}
+
+	/**
+	 * Normalizes a title the way MediaWiki does: underscores become spaces, and the first letter of the namespace and of
+	 * the title is capitalized.
+	 *
+	 * @param title The title to normalize
+	 * @return The normalized title.
+	 */
+	protected static String normalize(String title)
+	{
+		String t = title.replace('_', ' ').trim();
+		int i = t.indexOf(':');
+		if (i > 0)
+			for (String ns : namespaces.values())
+				if (!ns.isEmpty() && ns.equalsIgnoreCase(t.substring(0, i).trim()))
+					return ns + ":" + ucFirst(t.substring(i + 1).trim());
+
+		return ucFirst(t);
+	}
+
+	/**
+	 * Capitalizes the first letter of a String.
+	 *
+	 * @param s The String to capitalize
+	 * @return The capitalized String.
+	 */
+	private static String ucFirst(String s)
+	{
+		return s.isEmpty() ? s : s.substring(0, 1).toUpperCase() + s.substring(1);
+	}
+
+	/**
+	 * Gets the namespace id of a title.
+	 *
+	 * @param title The title, normalized.
+	 * @return The namespace id.
+	 */
+	protected static int nsOf(String title)
+	{
+		int i = title.indexOf(':');
+		if (i > 0)
+			for (Map.Entry<Integer, String> e : namespaces.entrySet())
+				if (e.getValue().equals(title.substring(0, i)))
+					return e.getKey();
+
+		return 0;
+	}
+
+	/**
+	 * Strips the namespace prefix from a title.
+	 *
+	 * @param title The title, normalized.
+	 * @return The title without its namespace prefix.
+	 */
+	private static String nss(String title)
+	{
+		return nsOf(title) == 0 ? title : title.substring(title.indexOf(':') + 1);
+	}
+
+	/**
+	 * Waits out the scripted latency, and decides if this request should fail.
+	 *
+	 * @param ex The exchange being served
+	 * @param action The action to count the request as
+	 * @return True if the request failed and a response was sent.
+	 * @throws IOException On network error.
+	 */
+	private boolean fault(HttpExchange ex, String action) throws IOException
+	{
+		requestCounts.computeIfAbsent(action, k -> new LongAdder()).increment();
+
+		try
+		{
+			int max = maxLatency;
+			if (max > 0)
+				Thread.sleep(ThreadLocalRandom.current().nextInt(minLatency, max + 1));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if (errorRate <= 0 || ThreadLocalRandom.current().nextDouble() >= errorRate)
+			return false;
+
+		requestCounts.computeIfAbsent("(503)", k -> new LongAdder()).increment();
+		respond(ex, 503, "text/html; charset=utf-8", "<html><body><h1>503 Service Unavailable</h1></body></html>".getBytes(StandardCharsets.UTF_8));
+		return true;
+	}
+
+	/**
+	 * Serves one API request.
+	 *
+	 * @param ex The exchange to serve.
+	 * @throws IOException On network error.
+	 */
+	private void handle(HttpExchange ex) throws IOException
+	{
+		int code = 200;
+		JsonObject reply;
+		try
+		{
+			Call c = new Call(ex);
+			if (fault(ex, c.p.getOrDefault("action", "")))
+				return;
+
+			int lag = this.lag;
+			if (c.p.containsKey("maxlag") && lag > Integer.parseInt(c.p.get("maxlag")))
+			{
+				requestCounts.computeIfAbsent("(maxlag)", k -> new LongAdder()).increment();
+				ex.getResponseHeaders().set("Retry-After", String.valueOf(lag));
+				ex.getResponseHeaders().set("X-Database-Lag", String.valueOf(lag));
+				reply = error("maxlag", String.format("Waiting for 127.0.0.1: %d seconds lagged.", lag));
+				reply.getAsJsonObject("error").addProperty("lag", lag);
+			}
+			else if (isRateLimited(c))
+			{
+				requestCounts.computeIfAbsent("(ratelimited)", k -> new LongAdder()).increment();
+				reply = error("ratelimited", "As an anti-abuse measure, you are limited from performing this action too many times in a short space of time.");
+			}
+			else
+				reply = dispatch(c);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			code = 500;
+			reply = error("internal_api_error", String.valueOf(e));
+		}
+
+		respond(ex, code, reply);
+	}
+
+	/**
+	 * Counts a request against the rate limit, if it is a write.
+	 *
+	 * @param c The request
+	 * @return True if the request is a write and the rate limit was exceeded.
+	 */
+	private synchronized boolean isRateLimited(Call c)
+	{
+		String action = c.p.getOrDefault("action", "");
+		if (rateLimit <= 0 || !action.equals("edit") && !action.equals("delete") && !action.equals("upload") || c.files.containsKey("chunk") || c.p.containsKey("checkstatus"))
+			return false;
+
+		long now = System.currentTimeMillis();
+		if (now - windowStart >= 1000)
+		{
+			windowStart = now;
+			windowWrites = 0;
+		}
+
+		return ++windowWrites > rateLimit;
+	}
+
+	/**
+	 * Serves the contents of a file. Supports single open- and closed-ended byte ranges.
+	 *
+	 * @param ex The exchange to serve.
+	 * @throws IOException On network error.
+	 */
+	private void download(HttpExchange ex) throws IOException
+	{
+		if (fault(ex, "download"))
+			return;
+
+		String path = ex.getRequestURI().getPath();
+		Blob b = blobs.get(path.substring(path.lastIndexOf('/') + 1));
+		if (b == null)
+		{
+			respond(ex, 404, "text/plain", "Not Found".getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		byte[] data = b.bytes();
+		String range = ex.getRequestHeaders().getFirst("Range");
+		if (range == null || !range.startsWith("bytes="))
+		{
+			respond(ex, 200, "application/octet-stream", data);
+			return;
+		}
+
+		String[] r = range.substring(6).split("-", -1);
+		int start = Integer.parseInt(r[0]), end = r[1].isEmpty() ? data.length - 1 : Math.min(Integer.parseInt(r[1]), data.length - 1);
+		if (start >= data.length || start > end)
+		{
+			ex.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+			respond(ex, 416, "text/plain", new byte[0]);
+			return;
+		}
+
+		ex.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", start, end, data.length));
+		respond(ex, 206, "application/octet-stream", Arrays.copyOfRange(data, start, end + 1));
+	}
+
+	/**
+	 * Sends a JSON response. Like MediaWiki, the code of an error response is also sent in the
+	 * {@code MediaWiki-API-Error} header.
+	 *
+	 * @param ex The exchange to respond to
+	 * @param code The HTTP status code
+	 * @param reply The response body
+	 * @throws IOException On network error.
+	 */
+	protected static void respond(HttpExchange ex, int code, JsonObject reply) throws IOException
+	{
+		if (reply.has("error"))
+			ex.getResponseHeaders().set("MediaWiki-API-Error", reply.getAsJsonObject("error").get("code").getAsString());
+
+		respond(ex, code, "application/json; charset=utf-8", reply.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends a response.
+	 *
+	 * @param ex The exchange to respond to
+	 * @param code The HTTP status code
+	 * @param type The content type of the response
+	 * @param b The response body
+	 * @throws IOException On network error.
+	 */
+	private static void respond(HttpExchange ex, int code, String type, byte[] b) throws IOException
+	{
+		ex.getResponseHeaders().set("Content-Type", type);
+		ex.sendResponseHeaders(code, b.length == 0 ? -1 : b.length);
+		try (OutputStream os = ex.getResponseBody())
+		{
+			os.write(b);
+		}
+	}
+
+	/**
+	 * Decodes a URL-encoded form.
+	 *
+	 * @param form The form to decode. Null is treated as empty.
+	 * @param m The map to put the decoded fields in
+	 */
+	protected static void decodeForm(String form, Map<String, String> m)
+	{
+		if (form == null || form.isEmpty())
+			return;
+
+		for (String kv : form.split("&"))
+		{
+			int i = kv.indexOf('=');
+			if (i < 0)
+				m.put(URLDecoder.decode(kv, StandardCharsets.UTF_8), "");
+			else
+				m.put(URLDecoder.decode(kv.substring(0, i), StandardCharsets.UTF_8), URLDecoder.decode(kv.substring(i + 1), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Decodes a {@code multipart/form-data} body. Parts with a filename are put in {@code files}, and the rest in
+	 * {@code m}.
+	 *
+	 * @param body The body to decode
+	 * @param boundary The boundary between parts
+	 * @param m The map to put the decoded fields in
+	 * @param files The map to put the decoded file parts in
+	 */
+	private static void decodeMultipart(byte[] body, String boundary, Map<String, String> m, Map<String, byte[]> files)
+	{
+		byte[] delim = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1), next = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1),
+				crlf2 = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+		int i = indexOf(body, delim, 0);
+		while (i >= 0)
+		{
+			int start = i + delim.length;
+			if (start + 1 >= body.length || body[start] == '-' && body[start + 1] == '-') // "--boundary--" ends the body
+				return;
+
+			int headersEnd = indexOf(body, crlf2, start + 2), end = headersEnd < 0 ? -1 : indexOf(body, next, headersEnd + 4);
+			if (end < 0)
+				return;
+
+			String name = null, filename = null;
+			for (String line : new String(body, start + 2, headersEnd - start - 2, StandardCharsets.UTF_8).split("\r\n"))
+				if (line.toLowerCase().startsWith("content-disposition:"))
+					for (String attr : line.split(";"))
+					{
+						String[] kv = attr.trim().split("=", 2);
+						if (kv.length < 2)
+							continue;
+						else if (kv[0].equals("name"))
+							name = kv[1].replace("\"", "");
+						else if (kv[0].equals("filename"))
+							filename = kv[1].replace("\"", "");
+					}
+
+			byte[] content = Arrays.copyOfRange(body, headersEnd + 4, end);
+			if (name != null && filename != null)
+				files.put(name, content);
+			else if (name != null)
+				m.put(name, new String(content, StandardCharsets.UTF_8));
+
+			i = end + 2;
+		}
+	}
+
+	/**
+	 * Finds a byte sequence in an array.
+	 *
+	 * @param a The array to search
+	 * @param target The byte sequence to find
+	 * @param from The index to start searching from
+	 * @return The index of {@code target}, or -1 if it was not found.
+	 */
+	private static int indexOf(byte[] a, byte[] target, int from)
+	{
+		outer: for (int i = Math.max(0, from); i <= a.length - target.length; i++)
+		{
+			for (int j = 0; j < target.length; j++)
+				if (a[i + j] != target[j])
+					continue outer;
+
+			return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Performs an API action.
+	 *
+	 * @param c The request
+	 * @return The response body.
+	 * @throws IOException On network error.
+	 */
+	protected JsonObject dispatch(Call c) throws IOException
+	{
+		switch (c.p.getOrDefault("action", ""))
+		{
+			case "query":
+				return query(c);
+			case "parse":
+				return parse(c.p);
+			case "login":
+				return login(c);
+			case "edit":
+				return edit(c);
+			case "delete":
+				return delete(c);
+			case "upload":
+				return upload(c);
+			default:
+				return error("badvalue", "Unrecognized value for parameter \"action\": " + c.p.get("action"));
+		}
+	}
+
+	/**
+	 * Creates an error response.
+	 *
+	 * @param code The error code
+	 * @param info The error message
+	 * @return The response body.
+	 */
+	protected static JsonObject error(String code, String info)
+	{
+		JsonObject e = new JsonObject();
+		e.addProperty("code", code);
+		e.addProperty("info", info);
+
+		JsonObject jo = new JsonObject();
+		jo.add("error", e);
+		return jo;
+	}
+
+	/**
+	 * Creates a response for a write action.
+	 *
+	 * @param action The action
+	 * @param result The properties of the result
+	 * @return The response body.
+	 */
+	private static JsonObject result(String action, JsonObject result)
+	{
+		JsonObject jo = new JsonObject();
+		jo.add(action, result);
+		return jo;
+	}
+
+	/**
+	 * Splits a multi-value parameter.
+	 *
+	 * @param v The value of the parameter. Null is treated as empty.
+	 * @return The values.
+	 */
+	protected static List<String> multi(String v)
+	{
+		return v == null || v.isEmpty() ? new ArrayList<>() : Arrays.asList(v.split("\\|"));
+	}
+
+	/**
+	 * Performs {@code action=query}.
+	 *
+	 * @param c The request
+	 * @return The response body.
+	 */
+	protected JsonObject query(Call c)
+	{
+		HashMap<String, String> p = c.p;
+		JsonObject q = new JsonObject();
+		JsonObject jo = new JsonObject();
+		boolean v2 = "2".equals(p.get("formatversion"));
+
+		for (String m : multi(p.get("meta")))
+			switch (m)
+			{
+				case "siteinfo":
+					siteinfo(q);
+					break;
+				case "userinfo":
+					JsonObject ui = new JsonObject();
+					if (c.user == null)
+					{
+						ui.addProperty("id", 0);
+						ui.addProperty("name", "127.0.0.1");
+						flag(ui, "anon", v2);
+					}
+					else
+					{
+						ui.addProperty("id", c.user.id);
+						ui.addProperty("name", c.user.name);
+					}
+					q.add("userinfo", ui);
+					break;
+				case "tokens":
+					JsonObject tk = new JsonObject();
+					for (String t : multi(p.getOrDefault("type", "csrf")))
+						tk.addProperty(t + "token", t.equals("csrf") ? c.csrf() : UUID.randomUUID().toString().replace("-", "") + "+\\");
+					q.add("tokens", tk);
+					break;
+				default:
+			}
+
+		for (String l : multi(p.get("list")))
+			if (l.equals("users"))
+			{
+				JsonArray ja = new JsonArray();
+				for (String u : multi(p.get("ususers")))
+				{
+					User user = users.get(normalize(u));
+					JsonObject uo = new JsonObject();
+					uo.addProperty("name", normalize(u));
+					if (user == null)
+						flag(uo, "missing", v2);
+					else
+					{
+						uo.addProperty("userid", user.id);
+						JsonArray groups = new JsonArray();
+						user.groups.forEach(groups::add);
+						uo.add("groups", groups);
+					}
+					ja.add(uo);
+				}
+				q.add("users", ja);
+			}
+
+		ArrayList<String> titles = new ArrayList<>();
+		JsonArray normalized = new JsonArray();
+		for (String t : multi(p.get("titles")))
+		{
+			String n = normalize(t);
+			if (!n.equals(t))
+			{
+				JsonObject no = new JsonObject();
+				no.addProperty("from", t);
+				no.addProperty("to", n);
+				normalized.add(no);
+			}
+			titles.add(n);
+		}
+
+		if (normalized.size() > 0)
+			q.add("normalized", normalized);
+
+		String gen = p.get("generator");
+		if (gen != null)
+		{
+			String prefix = generatorPrefix.get(gen);
+			if (prefix == null)
+				return error("badvalue", "Unrecognized value for parameter \"generator\": " + gen);
+
+			List<String> l = generate(gen, prefix, titles, p);
+			String limit = p.getOrDefault(prefix + "limit", "10");
+			int from = Integer.parseInt(p.getOrDefault(prefix + "continue", "0")), to = Math.min(l.size(), from + (limit.equals("max") ? maxLimit : Integer.parseInt(limit)));
+			if (to < l.size())
+			{
+				JsonObject cont = new JsonObject();
+				cont.addProperty(prefix + "continue", String.valueOf(to));
+				cont.addProperty("continue", "g" + prefix + "continue||");
+				jo.add("continue", cont);
+			}
+
+			titles = new ArrayList<>(l.subList(from, to));
+		}
+
+		if (!titles.isEmpty())
+			addPages(q, titles, p, v2);
+
+		flag(jo, "batchcomplete", v2);
+		jo.add("query", q);
+		return jo;
+	}
+
+	/**
+	 * Lists the results of a generator, in the order MediaWiki would return them.
+	 *
+	 * @param gen The generator
+	 * @param prefix The prefix of the generator's parameters
+	 * @param titles The normalized titles passed with the request, for generators which take them.
+	 * @param p The parameters of the request
+	 * @return The titles the generator produces.
+	 */
+	private List<String> generate(String gen, String prefix, List<String> titles, HashMap<String, String> p)
+	{
+		List<String> nss = multi(p.get(prefix + "namespace"));
+		ArrayList<String> l = new ArrayList<>();
+		switch (gen)
+		{
+			case "categorymembers":
+				String cat = normalize(p.getOrDefault("gcmtitle", ""));
+				for (Page pg : pages.values())
+					if (pg.categories.contains(cat))
+						l.add(pg.title);
+				break;
+			case "allimages": // files whose latest version was uploaded by the user
+				String user = p.containsKey("gaiuser") ? normalize(p.get("gaiuser")) : null;
+				return pages.values().stream().filter(pg -> !pg.imageinfo.isEmpty() && (user == null || user.equals(pg.imageinfo.get(0).get("user").getAsString())))
+						.sorted(Comparator.comparing((Page pg) -> "timestamp".equals(p.get("gaisort")) ? pg.imageinfo.get(0).get("timestamp").getAsString() : "")
+								.thenComparing(pg -> pg.title))
+						.map(pg -> pg.title).collect(Collectors.toList());
+			case "embeddedin": // pages whose text calls the template or one of its redirects
+				String tp = normalize(p.getOrDefault("geititle", ""));
+				ArrayList<String> names = new ArrayList<>();
+				names.add(nss(tp));
+				for (Page pg : pages.values())
+					if (tp.equals(pg.redirect))
+						names.add(nss(pg.title));
+				for (Page pg : pages.values())
+					for (String n : names)
+						if (pg.text.contains("{{" + n) || pg.text.contains("{{" + n.substring(0, 1).toLowerCase() + n.substring(1)))
+						{
+							l.add(pg.title);
+							break;
+						}
+				break;
+			case "images": // this wiki does not distinguish embedding a file from linking to it
+			case "links":
+				for (String t : titles)
+				{
+					Page pg = pages.get(t);
+					if (pg != null)
+						l.addAll(pg.links);
+				}
+				break;
+			default:
+		}
+
+		List<String> filter = gen.equals("images") ? List.of("6") : nss;
+		l.removeIf(t -> !filter.isEmpty() && !filter.contains(String.valueOf(nsOf(t))));
+		l.sort(null);
+		return l.stream().distinct().collect(Collectors.toList());
+	}
+
+	/**
+	 * Adds the {@code pages} of a query response, with each requested {@code prop}.
+	 *
+	 * @param q The {@code query} object of the response
+	 * @param titles The normalized titles of the pages to include
+	 * @param p The parameters of the request
+	 * @param v2 Set true to use {@code formatversion=2}
+	 */
+	protected void addPages(JsonObject q, List<String> titles, HashMap<String, String> p, boolean v2)
+	{
+		JsonObject pagesV1 = new JsonObject();
+		JsonArray pagesV2 = new JsonArray();
+		int missingId = -1;
+
+		for (String t : titles)
+		{
+			Page pg = pages.get(t);
+
+			JsonObject po = new JsonObject();
+			po.addProperty("ns", nsOf(t));
+			po.addProperty("title", t);
+			if (pg == null)
+			{
+				flag(po, "missing", v2);
+				if (v2)
+					pagesV2.add(po);
+				else
+					pagesV1.add(String.valueOf(missingId--), po);
+				continue;
+			}
+
+			po.addProperty("pageid", pg.id);
+			for (String prop : multi(p.get("prop")))
+				addProp(po, pg, prop, p, v2);
+
+			if (v2)
+				pagesV2.add(po);
+			else
+				pagesV1.add(String.valueOf(pg.id), po);
+		}
+
+		if (v2)
+			q.add("pages", pagesV2);
+		else
+			q.add("pages", pagesV1);
+	}
+
+	/**
+	 * Adds one {@code prop} of a page to a query response.
+	 *
+	 * @param po The page object of the response
+	 * @param pg The page
+	 * @param prop The prop to add
+	 * @param p The parameters of the request
+	 * @param v2 Set true to use {@code formatversion=2}
+	 */
+	protected void addProp(JsonObject po, Page pg, String prop, HashMap<String, String> p, boolean v2)
+	{
+		JsonArray ja = new JsonArray();
+		switch (prop)
+		{
+			case "info":
+				po.addProperty("contentmodel", "wikitext");
+				po.addProperty("lastrevid", pg.revid);
+				po.addProperty("length", pg.text.length());
+				return;
+			case "revisions":
+				JsonObject rev = new JsonObject();
+				rev.addProperty("contentformat", "text/x-wiki");
+				rev.addProperty("contentmodel", "wikitext");
+				rev.addProperty(v2 ? "content" : "*", pg.text);
+				ja.add(rev);
+				break;
+			case "imageinfo":
+				if (pg.imageinfo.isEmpty())
+					return;
+				pg.imageinfo.forEach(ja::add);
+				po.addProperty("imagerepository", "local");
+				break;
+			case "categories":
+				if (pg.categories.isEmpty())
+					return;
+				for (String c : pg.categories)
+					ja.add(titleObject(c));
+				break;
+			case "links":
+				List<String> nss = multi(p.get("plnamespace"));
+				for (String l : pg.links)
+					if (nss.isEmpty() || nss.contains(String.valueOf(nsOf(l))))
+						ja.add(titleObject(l));
+				if (ja.size() == 0)
+					return;
+				break;
+			case "linkshere":
+				String show = p.getOrDefault("lhshow", "");
+				for (Page other : pages.values())
+				{
+					boolean isRedirect = pg.title.equals(other.redirect);
+					if (show.equals("redirect") ? isRedirect : show.equals("!redirect") ? !isRedirect && other.links.contains(pg.title) : isRedirect || other.links.contains(pg.title))
+						ja.add(titleObject(other.title));
+				}
+				if (ja.size() == 0)
+					return;
+				break;
+			case "duplicatefiles":
+				boolean localOnly = p.containsKey("dflocalonly");
+				String sha1 = pg.imageinfo.isEmpty() ? null : pg.imageinfo.get(0).get("sha1").getAsString();
+				FakeWiki repo = sharedRepo;
+
+				ArrayList<String> local = new ArrayList<>(pg.duplicates), shared = new ArrayList<>(pg.sharedDuplicates);
+				if (sha1 != null)
+				{
+					for (String d : filesWithSha1(sha1))
+						if (!d.equals(pg.title) && !local.contains(d))
+							local.add(d);
+					if (repo != null)
+						for (String d : repo.filesWithSha1(sha1))
+							if (!shared.contains(d))
+								shared.add(d);
+				}
+
+				for (String d : local)
+				{
+					JsonObject jo = new JsonObject();
+					jo.addProperty("name", d.substring(d.indexOf(':') + 1).replace(' ', '_'));
+					jo.addProperty("user", "Example");
+					jo.addProperty("timestamp", "2010-01-01T00:00:00Z");
+					ja.add(jo);
+				}
+				if (!localOnly)
+					for (String d : shared)
+					{
+						JsonObject jo = new JsonObject();
+						jo.addProperty("name", d.substring(d.indexOf(':') + 1).replace(' ', '_'));
+						jo.addProperty("user", "Example");
+						jo.addProperty("timestamp", "2010-01-01T00:00:00Z");
+						flag(jo, "shared", v2);
+						ja.add(jo);
+					}
+				if (ja.size() == 0)
+					return;
+				break;
+			default: // e.g. pageprops, which only needs the page to be present (or missing)
+				return;
+		}
+
+		po.add(prop, ja);
+	}
+
+	/**
+	 * Sets a boolean flag the way MediaWiki does: {@code true} in {@code formatversion=2}, otherwise the presence of an empty
+	 * String.
+	 *
+	 * @param jo The object to set the flag on
+	 * @param key The name of the flag
+	 * @param v2 Set true to use {@code formatversion=2}
+	 */
+	protected static void flag(JsonObject jo, String key, boolean v2)
+	{
+		if (v2)
+			jo.addProperty(key, true);
+		else
+			jo.addProperty(key, "");
+	}
+
+	/**
+	 * Creates the object MediaWiki uses to list a title, with {@code ns} and {@code title}.
+	 *
+	 * @param title The title to list
+	 * @return The object.
+	 */
+	protected static JsonObject titleObject(String title)
+	{
+		JsonObject jo = new JsonObject();
+		jo.addProperty("ns", nsOf(title));
+		jo.addProperty("title", title);
+		return jo;
+	}
+
+	/**
+	 * Adds the namespace list of {@code meta=siteinfo} to a query response.
+	 *
+	 * @param q The {@code query} object of the response
+	 */
+	private static void siteinfo(JsonObject q)
+	{
+		JsonObject ns = new JsonObject();
+		namespaces.forEach((k, v) -> {
+			JsonObject jo = new JsonObject();
+			jo.addProperty("id", k);
+			jo.addProperty("case", "first-letter");
+			jo.addProperty("canonical", v);
+			jo.addProperty("*", v);
+			jo.addProperty("name", v);
+			ns.add(String.valueOf(k), jo);
+		});
+		q.add("namespaces", ns);
+
+		JsonArray aliases = new JsonArray();
+		JsonObject image = new JsonObject();
+		image.addProperty("id", 6);
+		image.addProperty("*", "Image");
+		image.addProperty("alias", "Image");
+		aliases.add(image);
+		q.add("namespacealiases", aliases);
+	}
+
+	/**
+	 * Performs {@code action=parse}. Only {@code prop=parsetree} is supported.
+	 *
+	 * @param p The parameters of the request
+	 * @return The response body.
+	 */
+	protected JsonObject parse(HashMap<String, String> p)
+	{
+		String text = p.get("text");
+		if (text == null)
+		{
+			Page pg = p.containsKey("page") ? pages.get(normalize(p.get("page"))) : null;
+			if (pg == null)
+				return error("missingtitle", "The page you specified doesn't exist.");
+
+			text = pg.text;
+		}
+
+		JsonObject tree = new JsonObject();
+		tree.addProperty("*", ParseTree.toXML(text));
+
+		JsonObject parse = new JsonObject();
+		parse.addProperty("title", "API");
+		parse.addProperty("pageid", 0);
+		parse.add("parsetree", tree);
+
+		JsonObject jo = new JsonObject();
+		jo.add("parse", parse);
+		return jo;
+	}
+
+	/**
+	 * Performs {@code action=login}. On success, the session cookie of the response logs in the client.
+	 *
+	 * @param c The request
+	 * @return The response body.
+	 */
+	private JsonObject login(Call c)
+	{
+		JsonObject r = new JsonObject();
+		User u = users.get(normalize(c.p.getOrDefault("lgname", "")));
+		if (u == null || !u.password.equals(c.p.get("lgpassword")))
+		{
+			r.addProperty("result", "Failed");
+			r.addProperty("reason", "Incorrect username or password entered. Please try again.");
+			return result("login", r);
+		}
+
+		String session = UUID.randomUUID().toString().replace("-", "");
+		sessions.put(session, u);
+		c.ex.getResponseHeaders().add("Set-Cookie", String.format("%s=%s; path=/; HttpOnly", cookieName, session));
+
+		r.addProperty("result", "Success");
+		r.addProperty("lguserid", u.id);
+		r.addProperty("lgusername", u.name);
+		return result("login", r);
+	}
+
+	/**
+	 * Checks the CSRF token of a write request, and that the client is logged in if required.
+	 *
+	 * @param c The request
+	 * @param group The user group required, or null if anonymous users may perform this action.
+	 * @return An error response, or null if the request may proceed.
+	 */
+	private JsonObject checkWrite(Call c, String group)
+	{
+		if (!c.p.containsKey("token"))
+			return error("missingparam", "The \"token\" parameter must be set.");
+		else if (!c.csrf().equals(c.p.get("token")))
+			return error("badtoken", "Invalid CSRF token.");
+		else if (group != null && (c.user == null || !c.user.groups.contains(group)))
+			return error("permissiondenied", "You don't have permission to perform this action.");
+
+		return null;
+	}
+
+	/**
+	 * Performs {@code action=edit}. Supports {@code text}, {@code appendtext}, and {@code prependtext}.
+	 *
+	 * @param c The request
+	 * @return The response body.
+	 */
+	private JsonObject edit(Call c)
+	{
+		JsonObject err = checkWrite(c, null);
+		if (err != null)
+			return err;
+		else if (!c.p.containsKey("title"))
+			return error("missingparam", "The \"title\" parameter must be set.");
+
+		String title = normalize(c.p.get("title"));
+		Page pg = pages.get(title);
+
+		String old = pg == null ? "" : pg.text;
+		String text = c.p.containsKey("text") ? c.p.get("text") : c.p.getOrDefault("prependtext", "") + old + c.p.getOrDefault("appendtext", "");
+
+		if (pg == null)
+			pg = addPage(title, text);
+		else
+		{
+			pg.text = text;
+			pg.revid = nextRevId.getAndIncrement();
+		}
+
+		JsonObject r = new JsonObject();
+		r.addProperty("result", "Success");
+		r.addProperty("pageid", pg.id);
+		r.addProperty("title", pg.title);
+		r.addProperty("contentmodel", "wikitext");
+		r.addProperty("newrevid", pg.revid);
+		r.addProperty("newtimestamp", Instant.now().truncatedTo(ChronoUnit.SECONDS).toString());
+		return result("edit", r);
+	}
+
+	/**
+	 * Performs {@code action=delete}. Requires the {@code sysop} group.
+	 *
+	 * @param c The request
+	 * @return The response body.
+	 */
+	private JsonObject delete(Call c)
+	{
+		JsonObject err = checkWrite(c, "sysop");
+		if (err != null)
+			return err;
+
+		Page pg = pages.remove(normalize(c.p.getOrDefault("title", "")));
+		if (pg == null)
+			return error("missingtitle", "The page you specified doesn't exist.");
+
+		JsonObject r = new JsonObject();
+		r.addProperty("title", pg.title);
+		r.addProperty("reason", c.p.getOrDefault("reason", ""));
+		r.addProperty("logid", nextRevId.getAndIncrement());
+		return result("delete", r);
+	}
+
+	/**
+	 * Performs {@code action=upload}. Requires a logged in user. Supports uploading a whole file in the {@code file} part,
+	 * uploading it to the stash in sequential chunks ({@code stash=1} with a {@code chunk} part), checking how much of
+	 * a stashed upload was received ({@code checkstatus=1}), and publishing a stashed upload by {@code filekey}.
+	 *
+	 * @param c The request
+	 * @return The response body.
+	 */
+	private JsonObject upload(Call c)
+	{
+		JsonObject err = checkWrite(c, "user");
+		if (err != null)
+			return err;
+
+		HashMap<String, String> p = c.p;
+		String filename = normalize("File:" + p.getOrDefault("filename", ""));
+		JsonObject r = new JsonObject();
+
+		if (p.containsKey("checkstatus"))
+		{
+			Stash s = stash.get(p.getOrDefault("filekey", ""));
+			if (s == null)
+				return error("stashfilenotfound", "Could not find the file in the stash: " + p.get("filekey"));
+
+			synchronized (s)
+			{
+				r.addProperty("result", s.sha1 != null ? "Success" : "Continue");
+				if (s.sha1 == null)
+					r.addProperty("offset", s.received);
+			}
+			r.addProperty("filekey", p.get("filekey"));
+			return result("upload", r);
+		}
+		else if (c.files.containsKey("chunk"))
+		{
+			String key = p.get("filekey");
+			Stash s = key == null ? new Stash(Long.parseLong(p.getOrDefault("filesize", "0"))) : stash.get(key);
+			if (s == null)
+				return error("stashfilenotfound", "Could not find the file in the stash: " + key);
+
+			byte[] chunk = c.files.get("chunk");
+			synchronized (s)
+			{
+				if (Long.parseLong(p.getOrDefault("offset", "0")) != s.received)
+					return error("stashfailed", "Invalid chunk offset");
+
+				s.md.update(chunk);
+				s.received += chunk.length;
+				if (s.received >= s.size)
+					s.sha1 = String.format("%040x", new BigInteger(1, s.md.digest()));
+			}
+
+			if (key == null)
+				stash.put(key = UUID.randomUUID().toString().replace("-", "") + ".stash", s);
+
+			r.addProperty("result", s.sha1 != null ? "Success" : "Continue");
+			r.addProperty("filekey", key);
+			if (s.sha1 == null)
+				r.addProperty("offset", s.received);
+			return result("upload", r);
+		}
+
+		String sha1;
+		long size;
+		if (c.files.containsKey("file"))
+		{
+			byte[] b = c.files.get("file");
+			sha1 = Blob.sha1(b);
+			size = b.length;
+		}
+		else
+		{
+			Stash s = stash.remove(p.getOrDefault("filekey", ""));
+			if (s == null || s.sha1 == null)
+				return error("stashfilenotfound", "Could not find the file in the stash: " + p.get("filekey"));
+
+			sha1 = s.sha1;
+			size = s.size;
+		}
+
+		Page pg = pages.get(filename);
+		if (pg != null && !p.containsKey("ignorewarnings"))
+		{
+			JsonObject warnings = new JsonObject();
+			warnings.addProperty("exists", nss(filename).replace(' ', '_'));
+			r.addProperty("result", "Warning");
+			r.add("warnings", warnings);
+			return result("upload", r);
+		}
+
+		if (pg == null)
+			pg = addPage(filename, p.getOrDefault("text", ""));
+		pg.withUpload(c.user.name, Instant.now().truncatedTo(ChronoUnit.SECONDS).toString(), p.getOrDefault("comment", ""), size, 0, 0, sha1, fileURL(sha1));
+
+		r.addProperty("result", "Success");
+		r.addProperty("filename", nss(filename).replace(' ', '_'));
+		r.add("imageinfo", pg.imageinfo.get(0));
+		return result("upload", r);
+	}
+
+	/**
+	 * A request to the API, with its parameters and session.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	protected class Call
+	{
+		/**
+		 * The exchange being served.
+		 */
+		protected final HttpExchange ex;
+
+		/**
+		 * The parameters of the request, from its query string and its (form or multipart) body.
+		 */
+		protected final HashMap<String, String> p = new HashMap<>();
+
+		/**
+		 * The file parts of a multipart request, by part name.
+		 */
+		protected final HashMap<String, byte[]> files = new HashMap<>();
+
+		/**
+		 * The session id of the client. Null if it has no session.
+		 */
+		private String session;
+
+		/**
+		 * The logged in user of the client. Null if the client is anonymous.
+		 */
+		protected User user;
+
+		/**
+		 * Constructor, reads the parameters and session of a request.
+		 *
+		 * @param ex The exchange being served
+		 * @throws IOException On network error.
+		 */
+		private Call(HttpExchange ex) throws IOException
+		{
+			this.ex = ex;
+			decodeForm(ex.getRequestURI().getRawQuery(), p);
+
+			String type = ex.getRequestHeaders().getFirst("Content-Type");
+			if ("POST".equals(ex.getRequestMethod()) && type != null)
+				if (type.startsWith("application/x-www-form-urlencoded"))
+					decodeForm(new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), p);
+				else if (type.startsWith("multipart/form-data"))
+					decodeMultipart(ex.getRequestBody().readAllBytes(), type.replaceAll(".*boundary=\"?([^\";]+)\"?.*", "$1"), p, files);
+
+			for (String header : ex.getRequestHeaders().getOrDefault("Cookie", List.of()))
+				for (String cookie : header.split(";"))
+				{
+					String[] kv = cookie.trim().split("=", 2);
+					if (kv.length == 2 && kv[0].equals(cookieName))
+						session = kv[1];
+				}
+
+			if (session != null)
+				user = sessions.get(session);
+		}
+
+		/**
+		 * Gets the CSRF token of the client's session.
+		 *
+		 * @return The CSRF token. This is {@code +\} for anonymous users, like on MediaWiki.
+		 */
+		protected String csrf()
+		{
+			return user == null ? "+\\" : session + "+\\";
+		}
+	}
+
+	/**
+	 * A registered user of a FakeWiki.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	protected static class User
+	{
+		/**
+		 * The id of this user
+		 */
+		protected final int id;
+
+		/**
+		 * The name and password of this user
+		 */
+		protected final String name, password;
+
+		/**
+		 * The user groups of this user
+		 */
+		protected final List<String> groups = new ArrayList<>(List.of("*", "user"));
+
+		/**
+		 * Constructor, creates a new User.
+		 *
+		 * @param id The id of the user
+		 * @param name The name of the user
+		 * @param password The password of the user
+		 * @param groups The user groups of the user, in addition to {@code *} and {@code user}.
+		 */
+		private User(int id, String name, String password, String... groups)
+		{
+			this.id = id;
+			this.name = normalize(name);
+			this.password = password;
+			this.groups.addAll(Arrays.asList(groups));
+		}
+	}
+
+	/**
+	 * A chunked upload in progress. Only the size and running hash of the data are kept.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Stash
+	{
+		/**
+		 * The declared size of the file, in bytes.
+		 */
+		private final long size;
+
+		/**
+		 * The number of bytes received so far.
+		 */
+		private long received = 0;
+
+		/**
+		 * The running SHA-1 of the bytes received so far.
+		 */
+		private final MessageDigest md;
+
+		/**
+		 * The SHA-1 of the file, in hex. Null until every chunk was received.
+		 */
+		private String sha1;
+
+		/**
+		 * Constructor, creates a new Stash.
+		 *
+		 * @param size The declared size of the file, in bytes.
+		 */
+		private Stash(long size)
+		{
+			this.size = size;
+
+			try
+			{
+				md = MessageDigest.getInstance("SHA-1");
+			}
+			catch (Exception e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * Synthetic file contents, generated from a seed whenever they are downloaded so that large fixtures need not be held
+	 * in memory.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Blob
+	{
+		/**
+		 * The seed of the contents
+		 */
+		private final long seed;
+
+		/**
+		 * The size of the contents, in bytes.
+		 */
+		private final int size;
+
+		/**
+		 * The SHA-1 of the contents, in hex.
+		 */
+		private final String sha1;
+
+		/**
+		 * Constructor, creates a new Blob.
+		 *
+		 * @param seed The seed of the contents
+		 * @param size The size of the contents, in bytes.
+		 */
+		private Blob(long seed, int size)
+		{
+			this.seed = seed;
+			this.size = size;
+			sha1 = sha1(bytes());
+		}
+
+		/**
+		 * Generates the contents.
+		 *
+		 * @return The contents.
+		 */
+		private byte[] bytes()
+		{
+			byte[] b = new byte[size];
+			new Random(seed).nextBytes(b);
+			return b;
+		}
+
+		/**
+		 * Computes the SHA-1 of some bytes.
+		 *
+		 * @param b The bytes to hash
+		 * @return The SHA-1, as a lowercase hex String.
+		 */
+		private static String sha1(byte[] b)
+		{
+			try
+			{
+				return String.format("%040x", new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(b)));
+			}
+			catch (Exception e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * A page on a FakeWiki.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	public static class Page
+	{
+		/**
+		 * The id of this page
+		 */
+		public final int id;
+
+		/**
+		 * The normalized title of this page
+		 */
+		public final String title;
+
+		/**
+		 * The wikitext of this page
+		 */
+		public volatile String text;
+
+		/**
+		 * The id of the latest revision of this page
+		 */
+		public volatile int revid;
+
+		/**
+		 * The title this page redirects to. Null if this page is not a redirect.
+		 */
+		public volatile String redirect;
+
+		/**
+		 * The categories of this page, with namespace prefix.
+		 */
+		public final List<String> categories = new CopyOnWriteArrayList<>();
+
+		/**
+		 * The titles this page links to.
+		 */
+		public final List<String> links = new CopyOnWriteArrayList<>();
+
+		/**
+		 * The upload history of this page, newest first, as {@code prop=imageinfo} entries. Empty if this is not a file.
+		 */
+		public final List<JsonObject> imageinfo = new CopyOnWriteArrayList<>();
+
+		/**
+		 * Titles of local and shared (i.e. Commons) files with the same contents as this file, in addition to those found by
+		 * comparing SHA-1s.
+		 */
+		public final List<String> duplicates = new CopyOnWriteArrayList<>(), sharedDuplicates = new CopyOnWriteArrayList<>();
+
+		/**
+		 * Constructor, creates a new Page.
+		 *
+		 * @param id The id of the page
+		 * @param revid The id of the first revision of the page
+		 * @param title The normalized title of the page
+		 * @param text The wikitext of the page
+		 */
+		private Page(int id, int revid, String title, String text)
+		{
+			this.id = id;
+			this.revid = revid;
+			this.title = title;
+			this.text = text;
+		}
+
+		/**
+		 * Adds categories to this page.
+		 *
+		 * @param cats The categories to add, with namespace prefix.
+		 * @return This Page.
+		 */
+		public Page withCategories(String... cats)
+		{
+			for (String c : cats)
+				categories.add(normalize(c));
+
+			return this;
+		}
+
+		/**
+		 * Adds links to this page.
+		 *
+		 * @param titles The titles to link to
+		 * @return This Page.
+		 */
+		public Page withLinks(String... titles)
+		{
+			for (String t : titles)
+				links.add(normalize(t));
+
+			return this;
+		}
+
+		/**
+		 * Makes this page a redirect.
+		 *
+		 * @param target The title to redirect to
+		 * @return This Page.
+		 */
+		public Page redirectTo(String target)
+		{
+			redirect = normalize(target);
+			return this;
+		}
+
+		/**
+		 * Adds a revision to the upload history of this file. Revisions must be added oldest first.
+		 *
+		 * @param user The uploader
+		 * @param timestamp The time of the upload, in ISO 8601 format.
+		 * @param comment The upload summary
+		 * @param size The size of the file, in bytes.
+		 * @param width The width of the file
+		 * @param height The height of the file
+		 * @param sha1 The SHA-1 of the file, in hex.
+		 * @param url The URL to download the file from
+		 * @return This Page.
+		 */
+		public Page withUpload(String user, String timestamp, String comment, long size, int width, int height, String sha1, String url)
+		{
+			JsonObject ii = new JsonObject();
+			ii.addProperty("timestamp", timestamp);
+			ii.addProperty("user", user);
+			ii.addProperty("size", size);
+			ii.addProperty("width", width);
+			ii.addProperty("height", height);
+			ii.addProperty("comment", comment);
+			ii.addProperty("url", url);
+			ii.addProperty("descriptionurl", url);
+			ii.addProperty("sha1", sha1);
+			ii.addProperty("mime", "image/" + title.substring(title.lastIndexOf('.') + 1).toLowerCase().replace("jpg", "jpeg"));
+			ii.addProperty("canonicaltitle", title);
+			imageinfo.add(0, ii);
+
+			return this;
+		}
+	}
+}
\ No newline at end of file
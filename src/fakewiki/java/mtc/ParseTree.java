@@ -0,0 +1,238 @@
+package mtc;
+
+import java.util.ArrayList;
+
+/**
+ * Converts wikitext to the XML preprocessor tree of MediaWiki's {@code action=parse&prop=parsetree}, as far as jwiki's
+ * {@code WParser} needs: templates (with named and numbered parameters) and comments. Everything else is text.
+ *
+ * @author Fastily
+ *
+ */
+final class ParseTree
+{
+	/**
+	 * Constructors disallowed
+	 */
+	private ParseTree()
+	{
+
+	}
+
+	/**
+	 * Converts wikitext to a parse tree.
+	 *
+	 * @param text The wikitext to convert
+	 * @return The parse tree, as XML.
+	 */
+	static String toXML(String text)
+	{
+		StringBuilder sb = new StringBuilder(text.length() * 2).append("<root>");
+		content(text, sb);
+		return sb.append("</root>").toString();
+	}
+
+	/**
+	 * Converts wikitext to parse tree nodes.
+	 *
+	 * @param s The wikitext to convert
+	 * @param sb The output buffer
+	 */
+	private static void content(String s, StringBuilder sb)
+	{
+		int i = 0, end;
+		while (i < s.length())
+			if (s.startsWith("<!--", i))
+			{
+				end = s.indexOf("-->", i + 4);
+				end = end < 0 ? s.length() : end + 3;
+				escape(s.substring(i, end), sb.append("<comment>"));
+				sb.append("</comment>");
+				i = end;
+			}
+			else if (s.startsWith("{{", i) && (end = close(s, i + 2)) > 0)
+			{
+				template(s.substring(i + 2, end), sb);
+				i = end + 2;
+			}
+			else
+				escape(s.charAt(i++), sb);
+	}
+
+	/**
+	 * Converts the inside of a template (i.e. between the braces) to a parse tree node.
+	 *
+	 * @param s The inside of the template
+	 * @param sb The output buffer
+	 */
+	private static void template(String s, StringBuilder sb)
+	{
+		ArrayList<String> parts = split(s);
+
+		sb.append("<template><title>");
+		content(parts.get(0), sb);
+		sb.append("</title>");
+
+		int index = 1;
+		for (String part : parts.subList(1, parts.size()))
+		{
+			int eq = equalsAt(part);
+			sb.append("<part>");
+			if (eq < 0)
+				sb.append("<name index=\"").append(index++).append("\"/>");
+			else
+			{
+				content(part.substring(0, eq), sb.append("<name>"));
+				sb.append("</name><equals>=</equals>");
+				part = part.substring(eq + 1);
+			}
+
+			content(part, sb.append("<value>"));
+			sb.append("</value></part>");
+		}
+
+		sb.append("</template>");
+	}
+
+	/**
+	 * Finds the closing braces of a template.
+	 *
+	 * @param s The wikitext
+	 * @param from The index just after the opening braces
+	 * @return The index of the closing braces, or -1 if the template is not closed.
+	 */
+	private static int close(String s, int from)
+	{
+		int depth = 0;
+		for (int i = from; i < s.length(); i++)
+			if (s.startsWith("<!--", i))
+			{
+				int end = s.indexOf("-->", i + 4);
+				if (end < 0)
+					return -1;
+				i = end + 2;
+			}
+			else if (s.startsWith("{{", i) || s.startsWith("[[", i))
+			{
+				depth++;
+				i++;
+			}
+			else if (s.startsWith("]]", i) && depth > 0)
+			{
+				depth--;
+				i++;
+			}
+			else if (s.startsWith("}}", i))
+			{
+				if (depth == 0)
+					return i;
+				depth--;
+				i++;
+			}
+
+		return -1;
+	}
+
+	/**
+	 * Splits the inside of a template at each top-level pipe.
+	 *
+	 * @param s The inside of the template
+	 * @return The title, followed by each parameter.
+	 */
+	private static ArrayList<String> split(String s)
+	{
+		ArrayList<String> l = new ArrayList<>();
+		int depth = 0, start = 0;
+		for (int i = 0; i < s.length(); i++)
+			if (s.startsWith("<!--", i))
+			{
+				int end = s.indexOf("-->", i + 4);
+				i = end < 0 ? s.length() : end + 2;
+			}
+			else if (s.startsWith("{{", i) || s.startsWith("[[", i))
+			{
+				depth++;
+				i++;
+			}
+			else if ((s.startsWith("}}", i) || s.startsWith("]]", i)) && depth > 0)
+			{
+				depth--;
+				i++;
+			}
+			else if (s.charAt(i) == '|' && depth == 0)
+			{
+				l.add(s.substring(start, i));
+				start = i + 1;
+			}
+
+		l.add(s.substring(start));
+		return l;
+	}
+
+	/**
+	 * Finds the top-level equals sign of a template parameter.
+	 *
+	 * @param part The parameter
+	 * @return The index of the equals sign, or -1 if this is a numbered parameter.
+	 */
+	private static int equalsAt(String part)
+	{
+		int depth = 0;
+		for (int i = 0; i < part.length(); i++)
+			if (part.startsWith("<!--", i))
+			{
+				int end = part.indexOf("-->", i + 4);
+				i = end < 0 ? part.length() : end + 2;
+			}
+			else if (part.startsWith("{{", i) || part.startsWith("[[", i))
+			{
+				depth++;
+				i++;
+			}
+			else if ((part.startsWith("}}", i) || part.startsWith("]]", i)) && depth > 0)
+			{
+				depth--;
+				i++;
+			}
+			else if (part.charAt(i) == '=' && depth == 0)
+				return i;
+
+		return -1;
+	}
+
+	/**
+	 * Escapes text for XML.
+	 *
+	 * @param s The text to escape
+	 * @param sb The output buffer
+	 */
+	private static void escape(String s, StringBuilder sb)
+	{
+		for (int i = 0; i < s.length(); i++)
+			escape(s.charAt(i), sb);
+	}
+
+	/**
+	 * Escapes a character for XML.
+	 *
+	 * @param c The character to escape
+	 * @param sb The output buffer
+	 */
+	private static void escape(char c, StringBuilder sb)
+	{
+		switch (c)
+		{
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			default:
+				sb.append(c);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,238 @@
+package mtc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that {@link WikiSanitizer} gives byte-identical output to the regex chains it replaces. Runs over the checked-in
+ * golden corpus of description pages ({@code golden/}), pages built from unterminated nested constructs, and random
+ * pages assembled from markup fragments. The unterminated pages are also timed, and the check fails if the scanner is
+ * much slower than the regex chain on any of them.
+ *
+ * @author Fastily
+ *
+ */
+public class SanitizerCheck
+{
+	/**
+	 * The regex passes replaced by {@link WikiSanitizer#strip(String)}, in order.
+	 */
+	private static final Pattern[] stripPasses = { Pattern.compile("(?s)\\<!\\-\\-.*?\\-\\-\\>"),
+			Pattern.compile("(?i)\\n?\\[\\[(Category:).*?\\]\\]"), Pattern.compile("\\n?\\=\\=.*?\\=\\=\\n?"),
+			Pattern.compile("(?si)\\{\\|\\s*?class\\=\"wikitable.+?\\|\\}"), Pattern.compile("(?si)\\{\\{(bots|nobots).*?\\}\\}") };
+
+	/**
+	 * The regex passes replaced by {@link WikiSanitizer#rewriteLinks(CharSequence)}, in order, with their replacements.
+	 */
+	private static final Pattern wikilink = Pattern.compile("(?<=\\[\\[)(.+?\\]\\])"), doubledPrefix = Pattern.compile("(?i)\\[\\[(w::|w:w:)"),
+			newlines = Pattern.compile("\\n{3,}");
+
+	/**
+	 * Fragments of markup which random pages are assembled from.
+	 */
+	private static final String[] fragments = { "<!--", "-->", "--", "[[", "]]", "]", "[[Category:", "[[category:", "==", "=",
+			"\n", "\r\n", " ", "{|", "|}", "|", "}", " class=\"wikitable", "class=\"WikiTable", "{{", "}}", "bots", "nobots",
+			"NoBots", "w:", "W:w:", ":", " ", "\t", "text", "x" };
+
+	/**
+	 * The number of random pages to check.
+	 */
+	private static final int randomPages = 20000;
+
+	/**
+	 * The scanner may take at most this many times as long as the regex chain on an unterminated page.
+	 */
+	private static final int maxSlowdown = 4;
+
+	/**
+	 * Main driver
+	 *
+	 * @param args Not used
+	 * @throws Exception On I/O error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int failures = 0, pages = 0;
+
+		for (String name : read("index.txt").split("\n"))
+			if (!name.isBlank())
+			{
+				failures += compare(name, read(name.strip()));
+				pages++;
+			}
+
+		for (String[] p : unterminated())
+		{
+			failures += compare(p[0], p[1]) + time(p[0], p[1]);
+			pages++;
+		}
+
+		Random r = new Random(2021);
+		for (int i = 0; i < randomPages; i++)
+		{
+			StringBuilder b = new StringBuilder();
+			for (int k = r.nextInt(40); k > 0; k--)
+				b.append(fragments[r.nextInt(fragments.length)]);
+
+			failures += compare("random page " + i, b.toString());
+			pages++;
+		}
+
+		System.out.printf("Checked %d pages, %d failures%n", pages, failures);
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Compares the output of each {@link WikiSanitizer} method with that of the regex chain it replaces on a page.
+	 *
+	 * @param name The name of the page, for reporting
+	 * @param text The text of the page
+	 * @return 1 if the outputs differ, 0 otherwise.
+	 */
+	private static int compare(String name, String text)
+	{
+		String expected = regexStrip(text), actual = WikiSanitizer.strip(text);
+		if (!expected.equals(actual))
+			return report(name, "strip", text, expected, actual);
+
+		expected = regexRewriteLinks(text);
+		actual = WikiSanitizer.rewriteLinks(text);
+		return expected.equals(actual) ? 0 : report(name, "rewriteLinks", text, expected, actual);
+	}
+
+	/**
+	 * Prints a mismatch between the regex chain and {@link WikiSanitizer}.
+	 *
+	 * @param name The name of the page
+	 * @param pass The pass which differed
+	 * @param text The input to the pass
+	 * @param expected The output of the regex chain
+	 * @param actual The output of {@link WikiSanitizer}
+	 * @return 1
+	 */
+	private static int report(String name, String pass, String text, String expected, String actual)
+	{
+		int i = 0;
+		while (i < expected.length() && i < actual.length() && expected.charAt(i) == actual.charAt(i))
+			i++;
+
+		System.err.printf("%s: %s differs at offset %d%n  input:    %s%n  expected: %s%n  actual:   %s%n", name, pass, i, escape(text),
+				escape(expected), escape(actual));
+		return 1;
+	}
+
+	/**
+	 * Times {@link WikiSanitizer#strip(String)} against the regex chain on a page.
+	 *
+	 * @param name The name of the page, for reporting
+	 * @param text The text of the page
+	 * @return 1 if the scanner took more than {@code maxSlowdown} times as long as the regex chain, 0 otherwise.
+	 */
+	private static int time(String name, String text)
+	{
+		long regex = Long.MAX_VALUE, scanner = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++)
+		{
+			long start = System.nanoTime();
+			regexStrip(text);
+			long mid = System.nanoTime();
+			WikiSanitizer.strip(text);
+			long end = System.nanoTime();
+
+			regex = Math.min(regex, mid - start);
+			scanner = Math.min(scanner, end - mid);
+		}
+
+		System.out.printf("%s (%d chars): regex %.1f ms, scanner %.1f ms%n", name, text.length(), regex / 1e6, scanner / 1e6);
+		if (scanner <= regex * maxSlowdown)
+			return 0;
+
+		System.err.printf("%s: scanner is more than %dx slower than the regex chain%n", name, maxSlowdown);
+		return 1;
+	}
+
+	/**
+	 * Builds pages out of unterminated nested constructs, on which each removed region has to be searched for to the end of
+	 * the page.
+	 *
+	 * @return Pairs of page names and texts.
+	 */
+	private static ArrayList<String[]> unterminated()
+	{
+		ArrayList<String[]> l = new ArrayList<>();
+		l.add(new String[] { "nested unterminated constructs", "{{bots\n[[Category:aa <!-- c \n==h\n{|class=\"wikitable x".repeat(500) });
+		l.add(new String[] { "unclosed bots templates", "{{bots".repeat(2600) });
+		l.add(new String[] { "unclosed comments", "<!--".repeat(4000) });
+		l.add(new String[] { "unclosed tables", "{| class=\"wikitable\n".repeat(1000) });
+		l.add(new String[] { "unclosed headers", "==a".repeat(5000) });
+		return l;
+	}
+
+	/**
+	 * Applies the regex chain replaced by {@link WikiSanitizer#strip(String)}.
+	 *
+	 * @param text The text to process
+	 * @return The stripped text.
+	 */
+	private static String regexStrip(String text)
+	{
+		for (Pattern p : stripPasses)
+			text = p.matcher(text).replaceAll("");
+
+		return text;
+	}
+
+	/**
+	 * Applies the regex chain replaced by {@link WikiSanitizer#rewriteLinks(CharSequence)}.
+	 *
+	 * @param text The text to process
+	 * @return The rewritten text.
+	 */
+	private static String regexRewriteLinks(String text)
+	{
+		text = wikilink.matcher(text).replaceAll("w:$1");
+		text = doubledPrefix.matcher(text).replaceAll("[[w:");
+		return newlines.matcher(text).replaceAll("\n");
+	}
+
+	/**
+	 * Reads a file from the golden corpus.
+	 *
+	 * @param name The name of the file
+	 * @return The contents of the file
+	 * @throws IOException On I/O error
+	 */
+	private static String read(String name) throws IOException
+	{
+		try (InputStream in = SanitizerCheck.class.getResourceAsStream("golden/" + name))
+		{
+			if (in == null)
+				throw new IOException("Missing golden corpus file: " + name);
+
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Escapes control characters so mismatches can be printed on one line.
+	 *
+	 * @param s The String to escape
+	 * @return The escaped String
+	 */
+	private static String escape(String s)
+	{
+		StringBuilder b = new StringBuilder();
+		for (char c : s.toCharArray())
+			if (c < 0x20 || c == 0x85 || c == 0x2028 || c == 0x2029)
+				b.append(String.format("\\u%04x", (int) c));
+			else
+				b.append(c);
+
+		return b.toString();
+	}
+}
\ No newline at end of file
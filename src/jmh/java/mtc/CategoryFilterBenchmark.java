@@ -0,0 +1,87 @@
+package mtc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link CategoryFilter#filter(List, java.util.Map)} on 100k synthetic candidates, each with a handful of
+ * categories, against a blacklist and whitelist about the size of the live ones. Makes no requests.
+ *
+ * @author Fastily
+ *
+ */
+@State(Scope.Benchmark)
+public class CategoryFilterBenchmark
+{
+	/**
+	 * The number of candidate files.
+	 */
+	private static final int candidates = 100_000;
+
+	/**
+	 * The filter under test.
+	 */
+	private CategoryFilter filter;
+
+	/**
+	 * The titles of the candidates.
+	 */
+	private ArrayList<String> titles = new ArrayList<>();
+
+	/**
+	 * The categories of each candidate, by title.
+	 */
+	private HashMap<String, ArrayList<String>> categories = new HashMap<>();
+
+	/**
+	 * Creates the filter and candidates. About one candidate in ten is in a blacklisted category, and one in ten is in no
+	 * whitelisted category.
+	 */
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		ArrayList<String> blacklist = new ArrayList<>(), whitelist = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+			blacklist.add("Category:Blacklisted " + i);
+		for (int i = 0; i < 50; i++)
+			whitelist.add("Category:Whitelisted " + i);
+
+		filter = new CategoryFilter(blacklist, whitelist);
+
+		Random rand = new Random(42);
+		for (int i = 0; i < candidates; i++)
+		{
+			String title = String.format("File:Candidate %06d.jpg", i);
+			titles.add(title);
+
+			ArrayList<String> l = new ArrayList<>();
+			for (int j = rand.nextInt(6); j >= 0; j--)
+				l.add("Category:Topic " + rand.nextInt(10_000));
+			if (rand.nextInt(10) > 0)
+				l.add(whitelist.get(rand.nextInt(whitelist.size())));
+			if (rand.nextInt(10) == 0)
+				l.add(blacklist.get(rand.nextInt(blacklist.size())));
+
+			categories.put(title, l);
+		}
+	}
+
+	/**
+	 * Filters every candidate.
+	 *
+	 * @return The eligible titles.
+	 */
+	@Benchmark
+	public ArrayList<String> filter()
+	{
+		return filter.filter(titles, categories);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+package mtc;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.fastily.jwiki.core.MQuery;
+import org.fastily.jwiki.core.Wiki;
+import org.fastily.jwiki.dwrap.ImageInfo;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import mtc.MTC.FileInfo;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Benchmark fixtures. Serves the checked-in corpus ({@code corpus.json}) of enwp file description pages, MTC config
+ * pages, and Commons templates from a pair of local {@link FakeWiki}s, and creates an MTC instance against them.
+ *
+ * @author Fastily
+ *
+ */
+@State(Scope.Benchmark)
+public class Corpus
+{
+	/**
+	 * The local stand-ins for enwp and Commons.
+	 */
+	private FakeWiki enwpFake, comFake;
+
+	/**
+	 * The MTC instance under test.
+	 */
+	MTC mtc;
+
+	/**
+	 * The titles of every file in the corpus, including those which fail the filter.
+	 */
+	ArrayList<String> titles = new ArrayList<>();
+
+	/**
+	 * The upload history of each file, newest first, by title.
+	 */
+	HashMap<String, ArrayList<ImageInfo>> imgInfo;
+
+	/**
+	 * The description page text of each file, by title.
+	 */
+	HashMap<String, String> texts;
+
+	/**
+	 * Starts the local wikis, loads the corpus into them, and creates {@code mtc}. The Commons template cache is kept in a
+	 * temporary file so that benchmarks neither read nor overwrite the user's cache.
+	 *
+	 * @throws Exception If the corpus could not be loaded.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		enwpFake = new FakeWiki();
+		comFake = new FakeWiki();
+
+		JsonObject corpus;
+		try (Reader r = new InputStreamReader(Corpus.class.getResourceAsStream("corpus.json"), StandardCharsets.UTF_8))
+		{
+			corpus = JsonParser.parseReader(r).getAsJsonObject();
+		}
+
+		for (JsonElement e : corpus.getAsJsonArray("enwp"))
+		{
+			JsonObject jo = e.getAsJsonObject();
+			FakeWiki.Page p = enwpFake.addPage(jo.get("title").getAsString(), jo.get("text").getAsString());
+			if (jo.has("links"))
+				jo.getAsJsonArray("links").forEach(l -> p.withLinks(l.getAsString()));
+			if (jo.has("redirect"))
+				p.redirectTo(jo.get("redirect").getAsString());
+		}
+
+		for (JsonElement e : corpus.getAsJsonArray("commons"))
+			comFake.addPage(e.getAsString(), "");
+
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		for (JsonElement e : corpus.getAsJsonArray("files"))
+		{
+			JsonObject jo = e.getAsJsonObject();
+			String title = jo.get("title").getAsString();
+			titles.add(title);
+
+			FakeWiki.Page p = enwpFake.addPage(title, jo.get("text").getAsString());
+			jo.getAsJsonArray("categories").forEach(c -> p.withCategories(c.getAsString()));
+			for (JsonElement u : jo.getAsJsonArray("uploads"))
+			{
+				JsonObject ii = u.getAsJsonObject();
+				String sha1 = String.format("%040x", new BigInteger(1, md.digest((title + ii.get("timestamp").getAsString()).getBytes(StandardCharsets.UTF_8))));
+				p.withUpload(ii.get("user").getAsString(), ii.get("timestamp").getAsString(), ii.get("comment").getAsString(), ii.get("size").getAsLong(),
+						ii.get("width").getAsInt(), ii.get("height").getAsInt(), sha1, enwpFake.endpoint().replace("/w/api.php", "/images/" + sha1));
+			}
+		}
+
+		MTC.ctpCache = new TemplateCache(Files.createTempFile("ctpCache", ".tsv"));
+		MTC.spool = new Spool(Files.createTempDirectory("mtcfiles"), 0); // nothing is downloaded
+		mtc = new MTC(wikiFor(enwpFake), wikiFor(comFake));
+
+		imgInfo = MQuery.getImageInfo(mtc.enwp, titles);
+		texts = MQuery.getPageText(mtc.enwp, titles);
+	}
+
+	/**
+	 * Stops the local wikis.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		enwpFake.close();
+		comFake.close();
+	}
+
+	/**
+	 * Creates a Wiki which talks to a FakeWiki.
+	 *
+	 * @param fw The FakeWiki to talk to
+	 * @return The Wiki.
+	 */
+	private static Wiki wikiFor(FakeWiki fw)
+	{
+		return new Wiki.Builder().withApiEndpoint(HttpUrl.parse(fw.endpoint())).withDefaultLogger(false).build();
+	}
+
+	/**
+	 * Creates a fresh FileInfo for a file in the corpus, with its upload history and text already fetched.
+	 *
+	 * @param title The title of the file
+	 * @return The FileInfo, ready for {@link FileInfo#gen()}.
+	 */
+	FileInfo fileInfo(String title)
+	{
+		return mtc.fileInfo(title, title, true, imgInfo.get(title), texts.get(title));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,43 @@
+package mtc;
+
+import java.util.ArrayList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link MTC#makeTransferFile(ArrayList)}: fetching categories, applying the blacklist and whitelist, checking
+ * for Commons duplicates, and resolving Commons filenames, for every file in the {@link Corpus}.
+ *
+ * @author Fastily
+ *
+ */
+@State(Scope.Thread)
+public class FilterBenchmark
+{
+	/**
+	 * Resets the filename reservations of the previous invocation, so every invocation resolves the same names.
+	 *
+	 * @param c The corpus to use
+	 */
+	@Setup(Level.Invocation)
+	public void reset(Corpus c)
+	{
+		c.mtc.names = new NameResolver(c.mtc.com);
+	}
+
+	/**
+	 * Filters the corpus and creates FileRef objects for the eligible files.
+	 *
+	 * @param c The corpus to use
+	 * @return The eligible files.
+	 */
+	@Benchmark
+	public ArrayList<FileRef> makeTransferFile(Corpus c)
+	{
+		return c.mtc.makeTransferFile(new ArrayList<>(c.titles));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,34 @@
+package mtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+import mtc.MTC.FileInfo;
+
+/**
+ * Benchmarks {@link FileInfo#gen()}, i.e. converting enwp description pages to Commons ones. Each operation generates
+ * every file in the {@link Corpus}. Upload histories and page texts are prefetched, so this measures text transformation
+ * plus the parse tree requests to the local wiki; template existence is served from the warm template cache.
+ *
+ * @author Fastily
+ *
+ */
+public class GenBenchmark
+{
+	/**
+	 * Generates the Commons description page of every file in the corpus.
+	 *
+	 * @param c The corpus to use
+	 * @param bh Consumes the output
+	 */
+	@Benchmark
+	public void gen(Corpus c, Blackhole bh)
+	{
+		for (String title : c.titles)
+		{
+			FileInfo fi = c.fileInfo(title);
+			fi.gen();
+			bh.consume(fi.comText);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,100 @@
+package mtc;
+
+import java.lang.reflect.Constructor;
+import java.time.Instant;
+import java.util.ArrayList;
+
+import org.fastily.jwiki.dwrap.ImageInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link DescriptionRenderer} on a synthetic file with a long description, a few license templates, 20
+ * categories, and an upload history of varying length. Makes no requests.
+ *
+ * @author Fastily
+ *
+ */
+@State(Scope.Benchmark)
+public class RenderBenchmark
+{
+	/**
+	 * The number of revisions in the upload history.
+	 */
+	@Param({ "1", "50", "1000" })
+	public int revisions;
+
+	/**
+	 * The description, after license templates were taken out.
+	 */
+	private String description;
+
+	/**
+	 * The license templates.
+	 */
+	private ArrayList<String> licenses = new ArrayList<>();
+
+	/**
+	 * The upload history, newest first.
+	 */
+	private ArrayList<ImageInfo> history = new ArrayList<>();
+
+	/**
+	 * The categories to add.
+	 */
+	private ArrayList<String> categories = new ArrayList<>();
+
+	/**
+	 * Creates the synthetic file.
+	 *
+	 * @throws ReflectiveOperationException If an ImageInfo could not be created.
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws ReflectiveOperationException
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40; i++)
+			sb.append("A photograph of [[Example ").append(i).append("]], taken from the [[north bank]] at dusk.\n\n\n");
+		description = sb.toString();
+
+		licenses.add("{{Self|cc-by-sa-3.0|GFDL|author={{User at project|Example|w|en}}}}");
+		licenses.add("{{PD-user-en|Example}}");
+
+		Constructor<ImageInfo> ctor = ImageInfo.class.getDeclaredConstructor();
+		ctor.setAccessible(true);
+		Instant t = Instant.parse("2008-01-01T00:00:00Z");
+		for (int i = 0; i < revisions; i++)
+		{
+			ImageInfo ii = ctor.newInstance();
+			ii.user = "Uploader " + i % 7;
+			ii.timestamp = t.plusSeconds(86_400L * (revisions - i));
+			ii.width = 640 + i;
+			ii.height = 480;
+			ii.summary = "Revision " + i + ":  cropped\nand  colour corrected";
+			history.add(ii);
+		}
+
+		for (int i = 0; i < 20; i++)
+			categories.add("Category:Example category " + i);
+	}
+
+	/**
+	 * Renders the description page.
+	 *
+	 * @return The description page.
+	 */
+	@Benchmark
+	public String render()
+	{
+		DescriptionRenderer r = new DescriptionRenderer(description.length());
+		for (String l : licenses)
+			r.license(l);
+
+		return r.information("", description, "{{Own work by original uploader}}", "2008-01-01", "[[User:Example|Example]]", "", "")
+				.render("Example.jpg", history, categories, true);
+	}
+}
\ No newline at end of file
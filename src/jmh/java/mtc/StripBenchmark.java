@@ -0,0 +1,53 @@
+package mtc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the purely local text passes of {@link MTC.FileInfo#gen()} on every description page in the
+ * {@link Corpus}. These make no requests, so they isolate CPU and allocation cost.
+ *
+ * @author Fastily
+ *
+ */
+public class StripBenchmark
+{
+	/**
+	 * Strips Copy to Commons templates with {@code mtcRegex}.
+	 *
+	 * @param c The corpus to use
+	 * @param bh Consumes the output
+	 */
+	@Benchmark
+	public void mtcRegex(Corpus c, Blackhole bh)
+	{
+		for (String text : c.texts.values())
+			bh.consume(c.mtc.mtcRegex.matcher(text).replaceAll(""));
+	}
+
+	/**
+	 * Strips comments, categories, headers, captions, and nobots with {@link WikiSanitizer#strip(String)}.
+	 *
+	 * @param c The corpus to use
+	 * @param bh Consumes the output
+	 */
+	@Benchmark
+	public void sanitize(Corpus c, Blackhole bh)
+	{
+		for (String text : c.texts.values())
+			bh.consume(WikiSanitizer.strip(text));
+	}
+
+	/**
+	 * Rewrites links for Commons with {@link WikiSanitizer#rewriteLinks(CharSequence)}.
+	 *
+	 * @param c The corpus to use
+	 * @param bh Consumes the output
+	 */
+	@Benchmark
+	public void rewriteLinks(Corpus c, Blackhole bh)
+	{
+		for (String text : c.texts.values())
+			bh.consume(WikiSanitizer.rewriteLinks(text));
+	}
+}
\ No newline at end of file
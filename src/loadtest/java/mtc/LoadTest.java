@@ -0,0 +1,347 @@
+package mtc;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fastily.jwiki.core.Wiki;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Runs a synthetic transfer job end to end against a pair of local {@link FakeWiki}s standing in for enwp and Commons,
+ * and reports throughput and per-stage latency. Every request goes through the same code as a real run (enumeration,
+ * filtering, name resolution, generation, download, chunked upload, tagging, and optionally deletion); only the wikis
+ * are fake.
+ *
+ * @author Fastily
+ *
+ */
+public class LoadTest
+{
+	/**
+	 * The category the synthetic files are enumerated from.
+	 */
+	private static final String sourceCat = "Category:Copy to Wikimedia Commons (bot-assessed)";
+
+	/**
+	 * Username and password of the account which performs the transfers.
+	 */
+	private static final String user = "LoadTest", password = "loadtest";
+
+	/**
+	 * Usage instructions
+	 */
+	private static final String usage = "Usage: LoadTest [options]%n" + "  --files <n>          Number of synthetic files (default 10000)%n"
+			+ "  --max-kb <n>         Maximum size of each file, in KiB (default 16)%n" + "  --latency <min-max>  Server latency per request, in ms (default 0-0)%n"
+			+ "  --error-rate <f>     Fraction of requests failing with HTTP 503 (default 0)%n"
+			+ "  --lag <s>            Replication lag, in seconds, for requests sending maxlag (default 0)%n"
+			+ "  --rate-limit <n>     Maximum writes per second on each wiki (default unlimited)%n"
+			+ "  --duplicates <f>     Fraction of free files already on Commons under another name (default 0)%n"
+			+ "  --chunk-kb <n>       Upload files larger than this in chunks of this size, in KiB (default 32768 and 8192)%n"
+			+ "  --spool-mb <n>       Byte budget of the download spool, in MiB (default 4096)%n"
+			+ "  --dry-run            Only generate descriptions, into a preview report%n" + "  --delete             Delete files on enwp after transfer%n" + "  --stream             Stream files straight into their Commons upload%n";
+
+	/**
+	 * Constructors disallowed
+	 */
+	private LoadTest()
+	{
+
+	}
+
+	/**
+	 * Main driver
+	 *
+	 * @param args Program args, see {@link #usage}.
+	 * @throws Exception On setup failure.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int files = 10000, maxKb = 16, minLatency = 0, maxLatency = 0, lag = 0, rateLimit = 0, chunkKb = 0, spoolMb = 4096;
+		double errorRate = 0, duplicates = 0;
+		boolean delete = false, stream = false, dryRun = false;
+
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+				switch (args[i])
+				{
+					case "--files":
+						files = Integer.parseInt(args[++i]);
+						break;
+					case "--max-kb":
+						maxKb = Integer.parseInt(args[++i]);
+						break;
+					case "--latency":
+						String[] r = args[++i].split("-");
+						minLatency = Integer.parseInt(r[0]);
+						maxLatency = Integer.parseInt(r[r.length - 1]);
+						break;
+					case "--error-rate":
+						errorRate = Double.parseDouble(args[++i]);
+						break;
+					case "--lag":
+						lag = Integer.parseInt(args[++i]);
+						break;
+					case "--rate-limit":
+						rateLimit = Integer.parseInt(args[++i]);
+						break;
+					case "--duplicates":
+						duplicates = Double.parseDouble(args[++i]);
+						break;
+					case "--chunk-kb":
+						chunkKb = Integer.parseInt(args[++i]);
+						break;
+					case "--spool-mb":
+						spoolMb = Integer.parseInt(args[++i]);
+						break;
+					case "--dry-run":
+						dryRun = true;
+						break;
+					case "--delete":
+						delete = true;
+						break;
+					case "--stream":
+						stream = true;
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown argument: " + args[i]);
+				}
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			System.err.println(e instanceof ArrayIndexOutOfBoundsException ? "Missing value for " + args[args.length - 1] : e.getMessage());
+			System.err.printf(usage);
+			System.exit(CLI.EXIT_ERROR);
+		}
+
+		Path tmp = Files.createTempDirectory("mtc-loadtest");
+		MTC.mtcfiles = tmp.resolve("files");
+		MTC.spool = new Spool(MTC.mtcfiles, spoolMb * 1024L * 1024);
+		MTC.mtcdata = tmp.resolve("data");
+		MTC.ctpCache = new TemplateCache(MTC.mtcdata.resolve("ctpCache.tsv"));
+
+		try (FakeWiki enwpFake = new FakeWiki(); FakeWiki comFake = new FakeWiki())
+		{
+			long t = System.nanoTime();
+			int eligible = populate(enwpFake, comFake, files, maxKb, duplicates);
+			System.err.printf("Created %d synthetic files (%d eligible) in %.1fs%n", files, eligible, (System.nanoTime() - t) / 1e9);
+
+			MTC mtc = new MTC(wikiFor(enwpFake), wikiFor(comFake));
+			mtc.deleteOnTransfer = delete;
+			mtc.streamUploads = stream;
+			mtc.dryRun = dryRun;
+			if (chunkKb > 0)
+			{
+				mtc.chunkedUploadThreshold = chunkKb * 1024L;
+				mtc.chunkSize = chunkKb * 1024;
+			}
+			if (dryRun)
+				mtc.preview = new PreviewReport(tmp.resolve("preview.jsonl.gz"));
+
+			// scripted faults apply to the job only, not to setup
+			for (FakeWiki fw : new FakeWiki[] { enwpFake, comFake })
+				fw.withLatency(minLatency, maxLatency).withErrorRate(errorRate).withLag(lag).withRateLimit(rateLimit);
+
+			EnumMap<Stage, LatencyLog> stageTimes = new EnumMap<>(Stage.class);
+			for (Stage s : Stage.values())
+				stageTimes.put(s, new LatencyLog());
+
+			AtomicInteger total = new AtomicInteger(), done = new AtomicInteger(), ok = new AtomicInteger();
+			TitleStream ts = TransferMode.CATEGORY.titles(mtc.enwp, sourceCat);
+
+			t = System.nanoTime();
+			new TransferPipeline(mtc).run(mtc.transferFiles(ts, (n, l) -> total.addAndGet(n)), () -> false, (fi, success) -> {
+				if (success)
+					ok.incrementAndGet();
+				if (done.incrementAndGet() % 1000 == 0)
+					System.err.printf("%d files done%n", done.get());
+			}, (stage, nanos) -> stageTimes.get(stage).add(nanos));
+			double seconds = (System.nanoTime() - t) / 1e9;
+
+			if (mtc.preview != null)
+			{
+				mtc.preview.close();
+				System.out.printf("Preview report: %d KiB%n", Files.size(mtc.preview.path) / 1024);
+			}
+
+			System.out.printf("Listed %d files, %d eligible, %d transferred, %d failed in %.1fs%n", total.get(), done.get(), ok.get(), done.get() - ok.get(),
+					seconds);
+			System.out.printf("Throughput: %.1f files/sec%n", ok.get() / seconds);
+			System.out.printf("Spool: %d bytes left%n%n", MTC.spool.used());
+
+			System.out.printf("%-10s %8s %10s %10s %10s%n", "stage", "count", "p50 (ms)", "p99 (ms)", "max (ms)");
+			stageTimes.forEach((s, log) -> {
+				if (log.size() > 0)
+					System.out.printf("%-10s %8d %10.1f %10.1f %10.1f%n", s, log.size(), log.percentile(0.50), log.percentile(0.99), log.percentile(1));
+			});
+
+			System.out.printf("%nFinal write limits: Commons %d, enwp %d%n", mtc.comLimiter.limit(), mtc.enwpLimiter.limit());
+			System.out.printf("%nenwp requests:    %s%nCommons requests: %s%n", enwpFake.requestCounts(), comFake.requestCounts());
+			System.out.printf("%nClient metrics:%n%s", mtc.metrics.prometheus());
+		}
+		finally
+		{
+			delete(tmp);
+		}
+	}
+
+	/**
+	 * Creates the MTC config pages, Commons templates, the transferring user, and synthetic files. One in twenty files is
+	 * non-free, and fails the filter. Commons is made the shared repository of enwp.
+	 *
+	 * @param enwpFake The stand-in for enwp
+	 * @param comFake The stand-in for Commons
+	 * @param files The number of files to create
+	 * @param maxKb The maximum size of each file, in KiB.
+	 * @param duplicates The fraction of free files to also upload to Commons, under another name.
+	 * @return The number of files which pass the filter and are not on Commons yet.
+	 */
+	private static int populate(FakeWiki enwpFake, FakeWiki comFake, int files, int maxKb, double duplicates)
+	{
+		enwpFake.withSharedRepo(comFake);
+
+		enwpFake.addPage(MStrings.fullname + "/Blacklist", "").withLinks("Category:All non-free media");
+		enwpFake.addPage(MStrings.fullname + "/Whitelist", "").withLinks(sourceCat, "Category:Self-published work");
+		enwpFake.addPage(MStrings.fullname + "/Redirects", "Cc-by-sa-3.0|CC-BY-SA-3.0\nPD-US|PD-USGov");
+		enwpFake.addPage("Template:Copy to Wikimedia Commons", "");
+		enwpFake.addPage("Template:Move to Commons", "#REDIRECT [[Template:Copy to Wikimedia Commons]]").redirectTo("Template:Copy to Wikimedia Commons");
+
+		for (String tp : Arrays.asList("Information", "Self", "PD-user-en", "Cc-by-sa-3.0", "Cc-by-4.0", "GFDL", "PD-US", "Own work by original uploader",
+				"User at project", "Original upload log", "Original file page", "Location", "Unc"))
+			comFake.addPage("Template:" + tp, "");
+
+		for (FakeWiki fw : new FakeWiki[] { enwpFake, comFake })
+			fw.addUser(user, password, "sysop");
+
+		String[] licenses = { "{{self|cc-by-sa-3.0|GFDL}}", "{{PD-self}}", "{{self|cc-by-4.0}}", "{{PD-USGov}}", "{{GFDL-self}}" };
+		Random rand = new Random(42);
+		Instant epoch = Instant.parse("2008-01-01T00:00:00Z");
+		int eligible = 0;
+		for (int i = 0; i < files; i++)
+		{
+			String title = String.format("File:Synthetic upload %05d.jpg", i), uploader = "Uploader " + rand.nextInt(200),
+					timestamp = epoch.plus(rand.nextInt(5000 * 24), ChronoUnit.HOURS).toString();
+			boolean nonFree = i % 20 == 19;
+
+			String text = String.format(
+					"== Summary ==%n{{Information%n|Description=Synthetic file number %d, taken near [[Example %d]].<!-- generated -->%n|Source={{own}}%n|Date=%s%n|Author=[[User:%s|%s]]%n}}%n"
+							+ "{{Location|%d|%d|N|%d|%d|W}}%n%n== Licensing ==%n%s%n{{Move to Commons|bot=Fbot}}%n[[Category:Example images %d]]",
+					i, rand.nextInt(1000), timestamp.substring(0, 10), uploader, uploader, rand.nextInt(90), rand.nextInt(60), rand.nextInt(180), rand.nextInt(60),
+					nonFree ? "{{Non-free logo}}" : licenses[rand.nextInt(licenses.length)], rand.nextInt(50));
+
+			int size = 1024 + rand.nextInt(Math.max(1, maxKb - 1) * 1024);
+			FakeWiki.Page pg = enwpFake.addFile(title, text, uploader, timestamp, "Uploaded with a synthetic load test", size)
+					.withCategories(sourceCat, nonFree ? "Category:All non-free media" : "Category:Self-published work");
+
+			if (nonFree)
+				continue;
+			else if (rand.nextDouble() < duplicates)
+				comFake.addPage(String.format("File:Existing copy %05d.jpg", i), "").withUpload(uploader, timestamp, "", size, 640, 480,
+						pg.imageinfo.get(0).get("sha1").getAsString(), pg.imageinfo.get(0).get("url").getAsString());
+			else
+				eligible++;
+		}
+
+		return eligible;
+	}
+
+	/**
+	 * Creates a Wiki which talks to a FakeWiki, logged in as the transferring user.
+	 *
+	 * @param fw The FakeWiki to talk to
+	 * @return The Wiki.
+	 */
+	private static Wiki wikiFor(FakeWiki fw)
+	{
+		return new Wiki.Builder().withApiEndpoint(HttpUrl.parse(fw.endpoint())).withDefaultLogger(false).withLogin(user, password).build();
+	}
+
+	/**
+	 * Recursively deletes a directory.
+	 *
+	 * @param dir The directory to delete
+	 * @throws IOException On I/O error.
+	 */
+	private static void delete(Path dir) throws IOException
+	{
+		Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException
+			{
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * A thread-safe, append-only list of latencies.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class LatencyLog
+	{
+		/**
+		 * The latencies recorded so far, in nanoseconds.
+		 */
+		private long[] l = new long[1024];
+
+		/**
+		 * The number of latencies recorded so far.
+		 */
+		private int size = 0;
+
+		/**
+		 * Records a latency.
+		 *
+		 * @param nanos The latency, in nanoseconds.
+		 */
+		private synchronized void add(long nanos)
+		{
+			if (size == l.length)
+				l = Arrays.copyOf(l, size * 2);
+
+			l[size++] = nanos;
+		}
+
+		/**
+		 * Gets the number of latencies recorded.
+		 *
+		 * @return The number of latencies recorded.
+		 */
+		private synchronized int size()
+		{
+			return size;
+		}
+
+		/**
+		 * Computes a percentile of the recorded latencies, with the nearest-rank method.
+		 *
+		 * @param q The percentile, between 0 and 1.
+		 * @return The percentile, in milliseconds.
+		 */
+		private synchronized double percentile(double q)
+		{
+			long[] sorted = Arrays.copyOf(l, size);
+			Arrays.sort(sorted);
+			return sorted[Math.max(0, (int) Math.ceil(q * size) - 1)] / 1e6;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,284 @@
+package mtc;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.fastily.jwiki.core.Wiki;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Limits the number of concurrent writes to a wiki, and finds the highest sustainable limit with AIMD (additive
+ * increase, multiplicative decrease). Each call which sees only healthy responses raises the limit by
+ * {@code 1 / limit}, so the limit grows by about one per round of calls. Each call which is throttled (a {@code maxlag}
+ * or {@code ratelimited} API error, or an HTTP status which {@link RetryPolicy} considers transient, such as 429 or 503)
+ * halves it. A {@code Retry-After} header pauses every call through this limiter for the given time.
+ * <p>
+ * Calls are never repeated here: a throttled call which failed reports why as the cause of its failure, and it is up to
+ * the caller (normally a {@link RetryPolicy}, which first checks whether the failed call took effect) to try again.
+ * <p>
+ * Responses are observed with an interceptor on the HTTP client of the wiki (see {@link #instrument(Wiki)}), which also
+ * adds {@code maxlag} to every write, so the servers can ask for a back off before replication lag gets out of hand.
+ *
+ * @author Fastily
+ *
+ */
+public class AdaptiveLimiter
+{
+	/**
+	 * The {@code maxlag} sent with every write, in seconds.
+	 */
+	public static final int maxlag = 5;
+
+	/**
+	 * The API actions which count as writes.
+	 */
+	private static final Set<String> writeActions = Set.of("edit", "delete", "upload");
+
+	/**
+	 * The maximum jitter added to a {@code Retry-After} pause, in milliseconds.
+	 */
+	private static final long maxJitter = 250;
+
+	/**
+	 * The minimum time, in nanoseconds, between two decreases of the limit. Calls which were throttled at about the same
+	 * time were throttled by the same event, and should only back off once.
+	 */
+	private static final long decreaseInterval = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The maximum limit.
+	 */
+	private final int max;
+
+	/**
+	 * The current limit. Guarded by {@code this}.
+	 */
+	private double limit;
+
+	/**
+	 * The number of calls in progress. Guarded by {@code this}.
+	 */
+	private int inFlight = 0;
+
+	/**
+	 * No call may start before this time, in nanoseconds (per {@link System#nanoTime()}). Guarded by {@code this}.
+	 */
+	private long pausedUntil = System.nanoTime();
+
+	/**
+	 * The time of the last decrease of the limit, in nanoseconds. Guarded by {@code this}.
+	 */
+	private long lastDecrease = System.nanoTime() - decreaseInterval;
+
+	/**
+	 * Records the causes of throttled calls. Optional, may be null.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * The first throttled response seen by the call in progress on each thread. Null if there was none.
+	 */
+	private final ThreadLocal<Throttle> throttle = new ThreadLocal<>();
+
+	/**
+	 * Adds {@code maxlag} to writes, and records throttled responses.
+	 */
+	private final Interceptor detector = chain -> {
+		Request r = chain.request();
+		String action = r.url().queryParameter("action");
+		if (action != null && writeActions.contains(action) && r.url().queryParameter("maxlag") == null)
+			r = r.newBuilder().url(r.url().newBuilder().addQueryParameter("maxlag", String.valueOf(maxlag)).build()).build();
+
+		Response resp = chain.proceed(r);
+
+		String apiError = resp.header("MediaWiki-API-Error"), reason = null;
+		if ("maxlag".equals(apiError) || "ratelimited".equals(apiError))
+			reason = apiError;
+		else if (RetryPolicy.isTransient(resp.code()))
+			reason = "http_" + resp.code();
+
+		if (reason != null && throttle.get() == null)
+			throttle.set(new Throttle(reason, RetryPolicy.retryAfter(resp.header("Retry-After"))));
+
+		return resp;
+	};
+
+	/**
+	 * Constructor, creates a new AdaptiveLimiter.
+	 *
+	 * @param initial The initial limit
+	 * @param max The maximum limit. There is no point in setting this above the number of threads making calls.
+	 * @param metrics Records the causes of throttled calls. Optional, set null to disable.
+	 */
+	public AdaptiveLimiter(int initial, int max, Metrics metrics)
+	{
+		this.max = Math.max(1, max);
+		this.metrics = metrics;
+		limit = Math.max(1, Math.min(initial, this.max));
+	}
+
+	/**
+	 * Observes the responses to requests sent by {@code wiki} from now on, and adds {@code maxlag} to its writes. Any
+	 * WikiClient for {@code wiki} must be created after this is called.
+	 *
+	 * @param wiki The Wiki to observe
+	 */
+	public void instrument(Wiki wiki)
+	{
+		try
+		{
+			WikiClient.addInterceptor(wiki, detector);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the current limit.
+	 *
+	 * @return The current limit, rounded down.
+	 */
+	public synchronized int limit()
+	{
+		return (int) limit;
+	}
+
+	/**
+	 * Performs a call once a slot is free, and adjusts the limit based on the responses it saw. The call is made once. If
+	 * it fails (returns false or throws) after being throttled, the reason is reported as the cause of the failure.
+	 *
+	 * @param call The call to make. Returns true on success.
+	 * @return The result of {@code call}, or false if the thread was interrupted while waiting, or if {@code call} threw
+	 *         after being throttled.
+	 * @throws RuntimeException If {@code call} threw without being throttled.
+	 */
+	public boolean run(BooleanSupplier call)
+	{
+		try
+		{
+			acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		boolean ok = false;
+		RuntimeException failure = null;
+		Throttle t;
+		throttle.remove();
+		try
+		{
+			ok = call.getAsBoolean();
+		}
+		catch (RuntimeException e) // e.g. jwiki fails to parse the error body of a throttled response
+		{
+			failure = e;
+		}
+		finally
+		{
+			t = throttle.get();
+			throttle.remove();
+			release(t);
+		}
+
+		if (failure != null && t == null)
+			throw failure;
+		else if (!ok && t != null)
+		{
+			if (failure != null)
+				failure.printStackTrace();
+			if (metrics != null)
+				metrics.cause(t.reason);
+		}
+
+		return ok;
+	}
+
+	/**
+	 * Waits until fewer calls than the limit are in progress and no pause is in effect, then takes a slot.
+	 *
+	 * @throws InterruptedException If the thread was interrupted while waiting.
+	 */
+	private synchronized void acquire() throws InterruptedException
+	{
+		while (true)
+		{
+			long wait = pausedUntil - System.nanoTime();
+			if (wait > 0)
+				TimeUnit.NANOSECONDS.timedWait(this, wait);
+			else if (inFlight >= (int) limit)
+				wait();
+			else
+				break;
+		}
+
+		inFlight++;
+	}
+
+	/**
+	 * Frees a slot, and raises or lowers the limit. If the server sent {@code Retry-After}, every call is paused.
+	 *
+	 * @param t The first throttled response seen by the call, or null if there was none.
+	 */
+	private synchronized void release(Throttle t)
+	{
+		inFlight--;
+		notifyAll();
+
+		if (t == null)
+		{
+			limit = Math.min(max, limit + 1 / limit);
+			return;
+		}
+
+		long now = System.nanoTime();
+		if (now - lastDecrease >= decreaseInterval)
+		{
+			lastDecrease = now;
+			limit = Math.max(1, limit / 2);
+		}
+
+		if (t.retryAfter > 0)
+			pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(t.retryAfter + ThreadLocalRandom.current().nextLong(maxJitter + 1)));
+	}
+
+	/**
+	 * A throttled response.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Throttle
+	{
+		/**
+		 * Why the response was throttled, e.g. {@code maxlag} or {@code http_503}.
+		 */
+		private final String reason;
+
+		/**
+		 * The time the server asked clients to wait, in milliseconds. 0 if it did not say.
+		 */
+		private final long retryAfter;
+
+		/**
+		 * Constructor, creates a new Throttle.
+		 *
+		 * @param reason Why the response was throttled
+		 * @param retryAfter The time the server asked clients to wait, in milliseconds.
+		 */
+		private Throttle(String reason, long retryAfter)
+		{
+			this.reason = reason;
+			this.retryAfter = retryAfter;
+		}
+	}
+}
\ No newline at end of file
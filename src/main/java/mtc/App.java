@@ -1,5 +1,7 @@
 package mtc;
 
+import java.io.IOException;
+
 import org.fastily.jwiki.core.Wiki;
 import org.fastily.wptoolbox.Sys;
 
@@ -21,6 +23,11 @@ public class App extends Application
 	 */
 	private MTC mtc;
 
+	/**
+	 * The controller of the main MTC window. Null until the user has logged in.
+	 */
+	private MTCController controller;
+
 	/**
 	 * Main Driver
 	 * 
@@ -48,6 +55,19 @@ public class App extends Application
 			Platform.exit();
 		}
 
+		try
+		{
+			MTC.openFolders();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			FXTool.warnUser("Could not open the download spool or data folder: " + e.getMessage());
+
+			Platform.exit();
+			return;
+		}
+
 		// Start Login Window
 		FXMLLoader lcLoader = FXTool.makeNewLoader(LoginController.fxmlLoc, LoginController.class);
 		stage.setScene(new Scene(lcLoader.load()));
@@ -56,7 +76,27 @@ public class App extends Application
 			Wiki com;
 			if (enwp.login(u, p) && (com = enwp.getWiki(MStrings.comHN)) != null)
 			{
-				mtc = new MTC(enwp, com);
+				try
+				{
+					mtc = new MTC(enwp, com);
+				}
+				catch (IOException e) // the folders were opened before login
+				{
+					e.printStackTrace();
+					return false;
+				}
+
+				String metricsPort = System.getProperty("mtc.metricsPort");
+				if (metricsPort != null)
+					try
+					{
+						mtc.metrics.serve(Integer.parseInt(metricsPort));
+					}
+					catch (Throwable e)
+					{
+						e.printStackTrace();
+					}
+
 				return true;
 			}
 
@@ -67,6 +107,15 @@ public class App extends Application
 		stage.show();
 	}
 
+	/**
+	 * Called when MTC exits. Flushes the log file.
+	 */
+	public void stop()
+	{
+		if (controller != null)
+			controller.close();
+	}
+
 	/**
 	 * Creates and shows the main MTC UI. Also checks the minimum allowed version.
 	 * 
@@ -86,7 +135,7 @@ public class App extends Application
 			Sys.errAndExit(e, "Should never reach here, is your FXML malformed or missing?");
 		}
 
-		lcLoader.<MTCController> getController().initData(mtc);
+		(controller = lcLoader.<MTCController> getController()).initData(mtc);
 
 		stage.setTitle(MStrings.name);
 		stage.show();
@@ -0,0 +1,79 @@
+package mtc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable direct ByteBuffers for copying file data, so that each transfer does not allocate (and later
+ * collect) its own large buffer.
+ *
+ * @author Fastily
+ *
+ */
+public final class BufferPool
+{
+	/**
+	 * The size, in bytes, of each buffer.
+	 */
+	public static final int bufferSize = 1024 * 512;
+
+	/**
+	 * The maximum number of idle buffers to keep around.
+	 */
+	private static final int maxIdle = 16;
+
+	/**
+	 * Idle buffers, ready to be reused.
+	 */
+	private static final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The number of buffers in {@code idle}.
+	 */
+	private static final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * Constructors disallowed
+	 */
+	private BufferPool()
+	{
+
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating one if the pool is empty. Return it with {@link #release(ByteBuffer)}
+	 * when done.
+	 *
+	 * @return A direct ByteBuffer with {@link #bufferSize} bytes of capacity.
+	 */
+	public static ByteBuffer acquire()
+	{
+		ByteBuffer b = idle.poll();
+		if (b == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+
+		idleCount.decrementAndGet();
+		return b;
+	}
+
+	/**
+	 * Returns a buffer to the pool. CAVEAT: {@code b} must not be used after calling this.
+	 *
+	 * @param b The buffer to return, obtained from {@link #acquire()}.
+	 */
+	public static void release(ByteBuffer b)
+	{
+		if (b == null)
+			return;
+
+		if (idleCount.incrementAndGet() > maxIdle)
+		{
+			idleCount.decrementAndGet();
+			return;
+		}
+
+		b.clear();
+		idle.offer(b);
+	}
+}
\ No newline at end of file
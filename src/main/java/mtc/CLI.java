@@ -0,0 +1,344 @@
+package mtc;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fastily.jwiki.core.Wiki;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import mtc.MTC.FileInfo;
+
+/**
+ * Headless entry point for MTC, for running transfers from scripts or cron without loading JavaFX. Progress is printed
+ * to standard error, and a JSON summary of the run is printed to standard output.
+ *
+ * @author Fastily
+ *
+ */
+public class CLI
+{
+	/**
+	 * Exit code indicating that every eligible file was transferred.
+	 */
+	public static final int EXIT_OK = 0;
+
+	/**
+	 * Exit code indicating that at least one file could not be transferred.
+	 */
+	public static final int EXIT_FAILURES = 1;
+
+	/**
+	 * Exit code indicating bad arguments, a failed login, or an outdated version. No files were transferred.
+	 */
+	public static final int EXIT_ERROR = 2;
+
+	/**
+	 * The environment variable holding the password to login with.
+	 */
+	private static final String passwordEnv = "MTC_PASSWORD";
+
+	/**
+	 * Usage instructions
+	 */
+	private static final String usage = String.format("Usage: %s --mode <file|category|user|template|filelinks|links> --input <text> [options]%n"
+			+ "       %<s --resume <job> --user <name>%n" + "Options:%n" + "  --user <name>      Login as this user. The password is read from $%s.%n"
+			+ "  --cat <A|B|...>    Add these categories to transferred files.%n" + "  --ignore-filter    Disable the smart filter.%n"
+			+ "  --delete           Delete transferred files on enwp (sysops only).%n" + "  --check-needed     Add the check needed category.%n"
+			+ "  --stream           Stream files straight into their Commons upload.%n" + "  --dry-run          Only generate descriptions, and save them in a preview report.%n"
+			+ "  --report <path>    Save the dry run preview report here (default ~/.mtc/previews/<time>.jsonl.gz).%n"
+			+ "  --metrics-port <n> Serve Prometheus metrics at http://127.0.0.1:<n>/metrics during the run.%n"
+			+ "  --spool-mb <n>     Keep at most this many MiB of downloaded files on disk (default 4096).%n"
+			+ "  -h, --help         Print this message and exit.%n",
+			MStrings.name, passwordEnv);
+
+	/**
+	 * Constructors disallowed
+	 */
+	private CLI()
+	{
+
+	}
+
+	/**
+	 * Main driver
+	 *
+	 * @param args Program args, see {@link #usage}.
+	 */
+	public static void main(String[] args)
+	{
+		System.exit(run(args));
+	}
+
+	/**
+	 * Parses {@code args} and performs the requested transfer.
+	 *
+	 * @param args Program args, see {@link #usage}.
+	 * @return The exit code.
+	 */
+	public static int run(String[] args)
+	{
+		TransferMode mode = null;
+		String input = null, user = null, cats = null, resumeId = null, report = null;
+		int metricsPort = -1;
+		long spoolMb = -1;
+		boolean ignoreFilter = false, delete = false, checkNeeded = false, stream = false, dryRun = false;
+
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+				switch (args[i])
+				{
+					case "--mode":
+						mode = TransferMode.valueOf(args[++i].toUpperCase(Locale.ROOT));
+						break;
+					case "--input":
+						input = args[++i].trim();
+						break;
+					case "--user":
+						user = args[++i];
+						break;
+					case "--cat":
+						cats = args[++i].trim();
+						break;
+					case "--ignore-filter":
+						ignoreFilter = true;
+						break;
+					case "--delete":
+						delete = true;
+						break;
+					case "--check-needed":
+						checkNeeded = true;
+						break;
+					case "--stream":
+						stream = true;
+						break;
+					case "--dry-run":
+						dryRun = true;
+						break;
+					case "--report":
+						report = args[++i];
+						break;
+					case "--resume":
+						resumeId = args[++i];
+						break;
+					case "--metrics-port":
+						metricsPort = Integer.parseInt(args[++i]);
+						break;
+					case "--spool-mb":
+						spoolMb = Long.parseLong(args[++i]);
+						break;
+					case "--help":
+					case "-h":
+						System.out.print(usage);
+						return EXIT_OK;
+					default:
+						throw new IllegalArgumentException("Unknown argument: " + args[i]);
+				}
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			System.err.println(e instanceof ArrayIndexOutOfBoundsException ? "Missing value for " + args[args.length - 1] : e.getMessage());
+			System.err.print(usage);
+			return EXIT_ERROR;
+		}
+
+		TransferJournal journal = null;
+		if (resumeId != null)
+			try
+			{
+				journal = TransferJournal.open(resumeId);
+				mode = TransferMode.valueOf(journal.job.get("mode").getAsString());
+				input = journal.job.get("input").getAsString();
+				cats = journal.job.get("cats").getAsString();
+				ignoreFilter = journal.job.get("ignoreFilter").getAsBoolean();
+				delete = journal.job.get("deleteOnTransfer").getAsBoolean();
+				checkNeeded = journal.job.get("useCheckNeededCat").getAsBoolean();
+				stream = journal.job.get("streamUploads").getAsBoolean();
+				dryRun = false;
+			}
+			catch (Throwable e)
+			{
+				System.err.println("Could not resume job: " + e.getMessage());
+				return EXIT_ERROR;
+			}
+
+		if (mode == null || input == null || input.isEmpty() || (user == null && !dryRun))
+		{
+			System.err.print(usage);
+			return EXIT_ERROR;
+		}
+
+		if (user != null && System.getenv(passwordEnv) == null)
+		{
+			System.err.printf("Please set $%s to the password for %s%n", passwordEnv, user);
+			return EXIT_ERROR;
+		}
+
+		Wiki enwp = new Wiki.Builder().build();
+
+		String minVersion = enwp.getPageText(MStrings.fullname + "/Version").trim();
+		if (!App.versionCheck(MStrings.version, minVersion))
+		{
+			System.err.printf("Your version of %s (%s) is outdated.  The current version is (%s), please download the newest version.%n", MStrings.name,
+					MStrings.version, minVersion);
+			return EXIT_ERROR;
+		}
+
+		Wiki com;
+		if (user != null && !enwp.login(user, System.getenv(passwordEnv)) || (com = enwp.getWiki(MStrings.comHN)) == null)
+		{
+			System.err.println("Could not login. Please verify your credentials and that you are connected to the internet.");
+			return EXIT_ERROR;
+		}
+
+		if (spoolMb >= 0)
+			MTC.spool = new Spool(MTC.mtcfiles, spoolMb * 1024 * 1024);
+
+		MTC mtc;
+		try
+		{
+			mtc = new MTC(enwp, com);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not open the download spool or data folder: " + e.getMessage());
+			return EXIT_ERROR;
+		}
+
+		mtc.ignoreFilter = ignoreFilter;
+		mtc.deleteOnTransfer = delete;
+		mtc.useCheckNeededCat = checkNeeded;
+		mtc.streamUploads = stream;
+		mtc.dryRun = dryRun;
+
+		if (metricsPort >= 0)
+			try
+			{
+				System.err.printf("Serving metrics at http://127.0.0.1:%d/metrics%n", mtc.metrics.serve(metricsPort).getAddress().getPort());
+			}
+			catch (Throwable e)
+			{
+				System.err.println("Could not serve metrics: " + e.getMessage());
+				return EXIT_ERROR;
+			}
+
+		if (dryRun)
+			try
+			{
+				mtc.preview = new PreviewReport(report != null ? Paths.get(report)
+						: MTC.mtcdata.resolve("previews").resolve(LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".jsonl.gz"));
+				System.err.println("Writing preview report to " + mtc.preview.path);
+			}
+			catch (Throwable e)
+			{
+				System.err.println("Could not create the preview report: " + e.getMessage());
+				return EXIT_ERROR;
+			}
+		else
+			try
+			{
+				mtc.journal = journal != null ? journal : TransferJournal.create(mode, input, cats, mtc);
+				System.err.printf("Job %s, resume with --resume %<s if interrupted%n", mtc.journal.id);
+			}
+			catch (Throwable e)
+			{
+				System.err.println("Could not create the job journal: " + e.getMessage());
+				return EXIT_ERROR;
+			}
+
+		String[] catL = cats == null || cats.isEmpty() ? null : cats.split("\\|");
+		AtomicInteger total = new AtomicInteger(), eligible = new AtomicInteger(), done = new AtomicInteger();
+		List<String> fails = Collections.synchronizedList(new ArrayList<>());
+
+		long start = System.currentTimeMillis();
+		try
+		{
+			TitleStream ts = mode.titles(enwp, input);
+			if (journal != null && journal.continuation() != null)
+				ts.resume(journal.continuation());
+
+			if (catL != null)
+				mtc.addCats.addAll(Arrays.asList(catL));
+
+			Iterable<FileInfo> tol = mtc.transferFiles(ts, (n, e) -> {
+				int tt = total.addAndGet(n), et = eligible.addAndGet(e);
+				System.err.printf("[Total/Filtered/Eligible]: [%d/%d/%d]%n", tt, tt - et, et);
+			});
+
+			new TransferPipeline(mtc).run(tol, () -> false, (to, ok) -> {
+				System.err.printf("Transfer [%d/%d]: %s%s%n", done.incrementAndGet(), eligible.get(), to.wpFN, ok ? "" : " (FAILED)");
+				if (!ok)
+					fails.add(to.wpFN);
+			});
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			return EXIT_ERROR;
+		}
+		finally
+		{
+			MTC.ctpCache.save();
+
+			if (mtc.preview != null)
+				try
+				{
+					mtc.preview.close();
+				}
+				catch (Throwable e)
+				{
+					e.printStackTrace();
+				}
+
+			if (mtc.journal != null)
+				try
+				{
+					mtc.journal.close();
+				}
+				catch (Throwable e)
+				{
+					e.printStackTrace();
+				}
+
+			try
+			{
+				System.err.println("Metrics saved to " + mtc.metrics.dump(MTC.mtcdata.resolve("metrics")));
+			}
+			catch (Throwable e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		JsonObject summary = new JsonObject();
+		summary.addProperty("mode", mode.name().toLowerCase(Locale.ROOT));
+		summary.addProperty("input", input);
+		summary.addProperty("dryRun", dryRun);
+		if (mtc.journal != null)
+			summary.addProperty("job", mtc.journal.id);
+		if (mtc.preview != null)
+			summary.addProperty("report", mtc.preview.path.toString());
+		summary.addProperty("total", total.get());
+		summary.addProperty("eligible", eligible.get());
+		summary.addProperty("transferred", done.get() - fails.size());
+
+		JsonArray failed = new JsonArray();
+		fails.forEach(failed::add);
+		summary.add("failed", failed);
+		summary.addProperty("seconds", (System.currentTimeMillis() - start) / 1000.0);
+		summary.add("metrics", mtc.metrics.toJson());
+
+		System.out.println(summary);
+		return fails.isEmpty() ? EXIT_OK : EXIT_FAILURES;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package mtc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which files are eligible for transfer, based on their categories. A file is eligible if it is in at least one
+ * allowed (whitelisted) category and in no denied (blacklisted) category.
+ * <p>
+ * Only categories named in a rule are interned, to small integer ids; every other category is irrelevant to the outcome
+ * and is skipped after a single hash lookup. The allow and deny rules are BitSets over those ids, so checking a file
+ * costs one lookup per category and no allocation.
+ *
+ * @author Fastily
+ *
+ */
+public class CategoryFilter
+{
+	/**
+	 * The id of each category named in a rule.
+	 */
+	private final HashMap<String, Integer> ids = new HashMap<>();
+
+	/**
+	 * The ids of denied categories.
+	 */
+	private final BitSet deny = new BitSet();
+
+	/**
+	 * The ids of allowed categories.
+	 */
+	private final BitSet allow = new BitSet();
+
+	/**
+	 * Constructor, creates a new CategoryFilter.
+	 *
+	 * @param blacklist Files in any of these categories are not eligible.
+	 * @param whitelist Files must be in at least one of these categories to be eligible.
+	 */
+	public CategoryFilter(Collection<String> blacklist, Collection<String> whitelist)
+	{
+		for (String c : blacklist)
+			deny.set(intern(c));
+		for (String c : whitelist)
+			allow.set(intern(c));
+	}
+
+	/**
+	 * Gets the id of a category, assigning the next free id if it has none.
+	 *
+	 * @param category The category
+	 * @return The id of {@code category}.
+	 */
+	private int intern(String category)
+	{
+		return ids.computeIfAbsent(category, k -> ids.size());
+	}
+
+	/**
+	 * Determines if a file with the given categories is eligible for transfer. A category which is both denied and allowed
+	 * is treated as denied.
+	 *
+	 * @param categories The categories of the file
+	 * @return True if the file is eligible.
+	 */
+	public boolean test(List<String> categories)
+	{
+		boolean allowed = false;
+		for (int i = 0, n = categories.size(); i < n; i++)
+		{
+			Integer id = ids.get(categories.get(i));
+			if (id == null)
+				continue;
+			else if (deny.get(id))
+				return false;
+
+			allowed |= allow.get(id);
+		}
+
+		return allowed;
+	}
+
+	/**
+	 * Explains why a file with the given categories is not eligible for transfer. Slower than {@link #test(List)}, for
+	 * reports.
+	 *
+	 * @param categories The categories of the file
+	 * @return The first denied category of the file, {@code no allowed category}, or null if the file is eligible.
+	 */
+	public String explain(List<String> categories)
+	{
+		if (test(categories))
+			return null;
+
+		for (String c : categories)
+		{
+			Integer id = ids.get(c);
+			if (id != null && deny.get(id))
+				return c;
+		}
+
+		return "no allowed category";
+	}
+
+	/**
+	 * Filters {@code titles} in one pass.
+	 *
+	 * @param titles The titles to filter
+	 * @param categories The categories of each title. Titles without an entry are treated as having no categories.
+	 * @return The eligible titles, in the order of {@code titles}.
+	 */
+	public ArrayList<String> filter(List<String> titles, Map<String, ? extends List<String>> categories)
+	{
+		ArrayList<String> l = new ArrayList<>(titles.size());
+		for (String t : titles)
+		{
+			List<String> cats = categories.get(t);
+			if (test(cats != null ? cats : Collections.emptyList()))
+				l.add(t);
+		}
+
+		return l;
+	}
+}
\ No newline at end of file
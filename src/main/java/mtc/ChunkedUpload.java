@@ -0,0 +1,335 @@
+package mtc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.function.BooleanSupplier;
+
+import org.fastily.jwiki.util.FL;
+
+import com.google.gson.JsonObject;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Uploads a large file with MediaWiki's chunked upload flow: the file is sent to the upload stash in chunks
+ * ({@code stash=1}), and then published from the stash by its {@code filekey}. Each chunk is retried on its own, so a
+ * failed request only costs one chunk instead of the whole file.
+ * <p>
+ * MediaWiki only accepts the chunk which starts at the end of the data stashed so far, so chunks are sent one at a
+ * time. Chunks are never held in memory: each is streamed from the file through a pooled buffer (see
+ * {@link BufferPool}) as it is written to the wire, and read again if it has to be sent again. If a chunk failed in a way which leaves its fate unknown (e.g. the connection dropped after the server got it), the stash
+ * is asked where to resume ({@code checkstatus=1}) before the chunk is sent again.
+ * <p>
+ * Publishing is a write, so it is retried with {@link RetryPolicy#run}, which first asks the caller whether the failed
+ * attempt published the file anyway.
+ *
+ * @author Fastily
+ *
+ */
+public class ChunkedUpload
+{
+	/**
+	 * The media type of a chunk.
+	 */
+	private static final MediaType octetStream = MediaType.get("application/octet-stream");
+
+	/**
+	 * The client to upload with.
+	 */
+	private final WikiClient client;
+
+	/**
+	 * The size of each chunk, in bytes.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * Receives bytes uploaded, retries, and the causes of failures. Optional, may be null.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * How many times each request is attempted, and how long to back off between attempts.
+	 */
+	private final RetryPolicy retries;
+
+	/**
+	 * Constructor, creates a new ChunkedUpload.
+	 *
+	 * @param client The client to upload with
+	 * @param chunkSize The size of each chunk, in bytes.
+	 * @param metrics Receives bytes uploaded, retries, and the causes of failures. Optional, may be null.
+	 */
+	public ChunkedUpload(WikiClient client, int chunkSize, Metrics metrics)
+	{
+		this.client = client;
+		this.chunkSize = chunkSize;
+		this.metrics = metrics;
+
+		retries = new RetryPolicy(5, 500, 10_000, metrics);
+	}
+
+	/**
+	 * Uploads a file, replacing any file with the same name.
+	 *
+	 * @param file The file to upload
+	 * @param filename The title to upload to, without namespace prefix.
+	 * @param text The text of the file description page
+	 * @param comment The upload summary
+	 * @param applied Returns true if the file was published, e.g. by an attempt whose response was lost.
+	 * @return True on success. On failure, the cause is reported to {@code metrics}.
+	 */
+	public boolean upload(Path file, String filename, String text, String comment, BooleanSupplier applied)
+	{
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long size = ch.size(), offset = 0;
+			if (size == 0)
+				throw new EOFException(file + " is empty");
+
+			String[] filekey = new String[1];
+			while (offset < size)
+			{
+				offset = sendChunk(ch, offset, Math.min(chunkSize, size - offset), filename, size, filekey);
+				if (offset < 0)
+					return false;
+			}
+
+			return publish(FL.pMap("filekey", filekey[0], "filename", filename, "text", text, "comment", comment, "ignorewarnings", "1"), applied);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			cause(e);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			cause(e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sends one chunk to the stash, retrying it if necessary.
+	 *
+	 * @param ch The file being uploaded
+	 * @param offset The offset of the chunk in the file
+	 * @param length The length of the chunk
+	 * @param filename The title being uploaded to, without namespace prefix.
+	 * @param size The size of the file
+	 * @param filekey The file key of the stashed upload, in its first element. Null before the first chunk, which sets it.
+	 * @return The offset the stash expects the next chunk at, or {@code size} if the stash has the whole file. -1 if the
+	 *         chunk failed, in which case the cause was reported.
+	 * @throws InterruptedException If the thread was interrupted while backing off.
+	 */
+	private long sendChunk(FileChannel ch, long offset, long length, String filename, long size, String[] filekey) throws InterruptedException
+	{
+		for (int attempt = 1;; attempt++)
+		{
+			String reason;
+			try
+			{
+				HashMap<String, String> form = FL.pMap("filename", filename, "filesize", String.valueOf(size), "offset", String.valueOf(offset), "stash", "1",
+						"ignorewarnings", "1");
+				if (filekey[0] != null)
+					form.put("filekey", filekey[0]);
+
+				JsonObject jo = client.multipart("upload", form, "chunk", filename, body(ch, offset, length));
+				if (jo.has("upload"))
+				{
+					JsonObject u = jo.getAsJsonObject("upload");
+					filekey[0] = u.get("filekey").getAsString();
+					if (metrics != null)
+						metrics.uploaded(length);
+
+					return "Success".equals(u.get("result").getAsString()) ? size : u.get("offset").getAsLong();
+				}
+
+				reason = errorCode(jo);
+				if (reason == null || !RetryPolicy.isTransientApiError(reason) || attempt >= retries.maxAttempts)
+				{
+					System.err.printf("Chunk at offset %d of '%s' was rejected: %s%n", offset, filename, jo);
+					if (metrics != null)
+						metrics.cause("api_" + reason);
+					return -1;
+				}
+			}
+			catch (IOException e)
+			{
+				if (attempt >= retries.maxAttempts)
+				{
+					e.printStackTrace();
+					cause(e);
+					return -1;
+				}
+
+				reason = "io";
+			}
+
+			System.err.printf("Chunk at offset %d of '%s' failed (%s), retrying [%d/%d]%n", offset, filename, reason, attempt + 1, retries.maxAttempts);
+			if (metrics != null)
+				metrics.retry(Stage.UPLOAD, "chunk");
+			Thread.sleep(retries.backoff(attempt));
+
+			if (filekey[0] != null)
+			{
+				long at = status(filekey[0]);
+				if (at >= 0 && at != offset)
+					return at;
+			}
+		}
+	}
+
+	/**
+	 * Asks the stash how much of an upload it has.
+	 *
+	 * @param filekey The file key of the stashed upload
+	 * @return The offset the stash expects the next chunk at, {@link Long#MAX_VALUE} if it has the whole file, or -1 if
+	 *         this could not be determined.
+	 */
+	private long status(String filekey)
+	{
+		try
+		{
+			JsonObject jo = client.post("upload", FL.pMap("checkstatus", "1", "filekey", filekey));
+			if (!jo.has("upload"))
+				return -1;
+
+			JsonObject u = jo.getAsJsonObject("upload");
+			return u.has("offset") ? u.get("offset").getAsLong() : "Success".equals(u.get("result").getAsString()) ? Long.MAX_VALUE : -1;
+		}
+		catch (Throwable e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Publishes a stashed upload, retrying it while it fails transiently and has not taken effect.
+	 *
+	 * @param form The form fields of the request
+	 * @param applied Returns true if the file was published.
+	 * @return True on success. On failure, the cause is reported.
+	 */
+	private boolean publish(HashMap<String, String> form, BooleanSupplier applied)
+	{
+		String cause = retries.run(Stage.UPLOAD, form.get("filename"), () -> publishOnce(form), applied);
+		if (cause != null && metrics != null)
+			metrics.cause(cause);
+
+		return cause == null;
+	}
+
+	/**
+	 * Makes one attempt to publish a stashed upload.
+	 *
+	 * @param form The form fields of the request
+	 * @return True on success. On failure, the cause is reported.
+	 */
+	private boolean publishOnce(HashMap<String, String> form)
+	{
+		try
+		{
+			JsonObject jo = client.post("upload", form);
+			if (jo.has("upload") && "Success".equals(jo.getAsJsonObject("upload").get("result").getAsString()))
+				return true;
+
+			System.err.printf("Publishing '%s' from the stash was rejected: %s%n", form.get("filename"), jo);
+			if (metrics != null)
+				metrics.cause("api_" + errorCode(jo));
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			cause(e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gets the error code of an API response. Discards the cached CSRF token if it was rejected.
+	 *
+	 * @param jo The API response
+	 * @return The error code, or null if the response is not an error.
+	 */
+	private String errorCode(JsonObject jo)
+	{
+		if (!jo.has("error"))
+			return null;
+
+		String code = jo.getAsJsonObject("error").get("code").getAsString();
+		if ("badtoken".equals(code))
+			client.resetToken();
+
+		return code;
+	}
+
+	/**
+	 * Reports an exception as the cause of a failed upload.
+	 *
+	 * @param e The exception
+	 */
+	private void cause(Throwable e)
+	{
+		if (metrics != null)
+			metrics.cause(e);
+	}
+
+	/**
+	 * Wraps a chunk of a file as a RequestBody which can be sent any number of times. The chunk is read from the file
+	 * each time it is sent.
+	 *
+	 * @param ch The file
+	 * @param offset The offset of the chunk in the file
+	 * @param length The length of the chunk
+	 * @return The RequestBody
+	 */
+	private static RequestBody body(FileChannel ch, long offset, long length)
+	{
+		return new RequestBody() {
+			public MediaType contentType()
+			{
+				return octetStream;
+			}
+
+			public long contentLength()
+			{
+				return length;
+			}
+
+			public void writeTo(BufferedSink sink) throws IOException
+			{
+				ByteBuffer b = BufferPool.acquire();
+				try
+				{
+					for (long pos = offset, end = offset + length; pos < end;)
+					{
+						b.clear().limit((int) Math.min(b.capacity(), end - pos));
+						int n = ch.read(b, pos);
+						if (n < 0)
+							throw new EOFException("No data at offset " + pos);
+
+						pos += n;
+						b.flip();
+						while (b.hasRemaining())
+							sink.write(b);
+					}
+				}
+				finally
+				{
+					BufferPool.release(b);
+				}
+			}
+		};
+	}
+}
\ No newline at end of file
@@ -0,0 +1,328 @@
+package mtc;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
+import javafx.scene.control.ListView;
+
+/**
+ * A log for the MTC window which stays fast no matter how long a run gets. The most recent {@link #capacity} lines are
+ * kept in a ring buffer and shown in a ListView, which is refreshed at most {@link #maxFps} times a second with every
+ * line logged since the last refresh. Every line is also written to a rotating log file in the background.
+ *
+ * @author Fastily
+ *
+ */
+public class ConsoleLog implements Closeable
+{
+	/**
+	 * The maximum number of lines shown.
+	 */
+	public static final int capacity = 5000;
+
+	/**
+	 * The maximum number of times per second the view is refreshed.
+	 */
+	public static final int maxFps = 15;
+
+	/**
+	 * The size, in bytes, at which the log file is rotated.
+	 */
+	private static final long maxFileSize = 10L * 1024 * 1024;
+
+	/**
+	 * The number of rotated log files to keep, in addition to the current one.
+	 */
+	private static final int keepFiles = 5;
+
+	/**
+	 * The maximum number of lines waiting to be written to the log file. Lines logged while the queue is full are
+	 * counted and dropped, rather than blocking the logging thread.
+	 */
+	private static final int maxPending = 65536;
+
+	/**
+	 * Date format for prefixing output.
+	 */
+	private static final DateTimeFormatter df = DateTimeFormatter.ofPattern("MMM dd, yyyy hh:mm:ss a");
+
+	/**
+	 * Marks the end of the log file queue.
+	 */
+	private static final String eof = new String();
+
+	/**
+	 * The most recent lines, indexed by line number modulo {@link #capacity}. Guards itself and {@code written}.
+	 */
+	private final String[] ring = new String[capacity];
+
+	/**
+	 * The number of lines logged so far.
+	 */
+	private long written = 0;
+
+	/**
+	 * The number of lines logged when the view was last refreshed. Only accessed from the FX thread.
+	 */
+	private long shown = 0;
+
+	/**
+	 * The ListView showing this log.
+	 */
+	private final ListView<String> view;
+
+	/**
+	 * Refreshes {@code view} on the FX thread, at most {@link #maxFps} times a second.
+	 */
+	private final AnimationTimer refresher = new AnimationTimer() {
+		/**
+		 * The time of the last refresh, in nanoseconds.
+		 */
+		private long last = 0;
+
+		public void handle(long now)
+		{
+			if (now - last >= 1_000_000_000L / maxFps)
+			{
+				last = now;
+				refresh();
+			}
+		}
+	};
+
+	/**
+	 * Lines waiting to be written to the log file.
+	 */
+	private final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>(maxPending);
+
+	/**
+	 * The number of lines dropped from the log file since the last write, because {@code pending} was full.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * The current log file. Rotated files are named after it, with a number before the extension.
+	 */
+	private final Path file;
+
+	/**
+	 * Writes lines from {@code pending} to {@code file}.
+	 */
+	private final Thread writer;
+
+	/**
+	 * Constructor, creates a new ConsoleLog and starts showing it in {@code view}. CAVEAT: This must be called from the FX
+	 * thread.
+	 *
+	 * @param view The ListView to show this log in. Its items are replaced.
+	 * @param dir The folder to keep log files in. Created if it does not exist.
+	 */
+	public ConsoleLog(ListView<String> view, Path dir)
+	{
+		this.view = view;
+		file = dir.resolve("mtc.log");
+
+		view.getItems().clear();
+		refresher.start();
+
+		writer = new Thread(() -> writeLoop(dir), "mtc-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Adds a time-stamped message to this log. Safe to call from any thread; never blocks on the FX thread or the disk.
+	 *
+	 * @param msg The message to add. Trailing line breaks are removed.
+	 */
+	public void log(String msg)
+	{
+		String line = String.format("(%s): %s", LocalDateTime.now().format(df), msg.stripTrailing());
+
+		synchronized (ring)
+		{
+			ring[(int) (written++ % capacity)] = line;
+		}
+
+		if (!pending.offer(line))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * Removes every line from the view. The log file is not affected. CAVEAT: This must be called from the FX thread.
+	 */
+	public void clear()
+	{
+		synchronized (ring)
+		{
+			shown = written;
+		}
+
+		view.getItems().clear();
+	}
+
+	/**
+	 * Stops refreshing the view, and waits briefly for pending lines to be written to the log file.
+	 */
+	public void close()
+	{
+		refresher.stop();
+
+		try
+		{
+			if (pending.offer(eof, 1, TimeUnit.SECONDS))
+				writer.join(TimeUnit.SECONDS.toMillis(2));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Appends every line logged since the last refresh to the view, removes the oldest lines beyond {@link #capacity},
+	 * and scrolls to the newest line.
+	 */
+	private void refresh()
+	{
+		String[] lines;
+		boolean replace;
+		synchronized (ring)
+		{
+			if (written == shown)
+				return;
+
+			int n = (int) Math.min(written - shown, capacity);
+			replace = n == capacity;
+
+			lines = new String[n];
+			for (int i = 0; i < n; i++)
+				lines[i] = ring[(int) ((written - n + i) % capacity)];
+
+			shown = written;
+		}
+
+		ObservableList<String> items = view.getItems();
+		if (replace)
+			items.setAll(lines);
+		else
+		{
+			items.addAll(lines);
+			if (items.size() > capacity)
+				items.remove(0, items.size() - capacity);
+		}
+
+		view.scrollTo(items.size() - 1);
+	}
+
+	/**
+	 * Writes lines from {@code pending} to the log file in batches until {@link #eof} is read, rotating the file when it
+	 * grows past {@link #maxFileSize}.
+	 *
+	 * @param dir The folder holding the log files.
+	 */
+	private void writeLoop(Path dir)
+	{
+		ArrayList<String> batch = new ArrayList<>();
+		BufferedWriter out = null;
+		try
+		{
+			Files.createDirectories(dir);
+			out = open();
+
+			while (true)
+			{
+				batch.add(pending.take());
+				pending.drainTo(batch);
+
+				long lost = dropped.getAndSet(0);
+				if (lost > 0)
+					out.write(String.format("(%d lines dropped from this file while the disk was busy)%n", lost));
+
+				for (String line : batch)
+				{
+					if (line == eof)
+						return;
+
+					out.write(line);
+					out.newLine();
+				}
+				out.flush();
+				batch.clear();
+
+				if (Files.size(file) > maxFileSize)
+				{
+					out.close();
+					rotate();
+					out = open();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (out != null)
+				try
+				{
+					out.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+		}
+	}
+
+	/**
+	 * Opens the current log file for appending, rotating it first if it is already full.
+	 *
+	 * @return A writer for the current log file.
+	 * @throws IOException If the file could not be opened.
+	 */
+	private BufferedWriter open() throws IOException
+	{
+		if (Files.isRegularFile(file) && Files.size(file) > maxFileSize)
+			rotate();
+
+		return Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Shifts each rotated log file up by one number, discarding the oldest, and makes the current log file the first
+	 * rotated file.
+	 *
+	 * @throws IOException If a file could not be moved.
+	 */
+	private void rotate() throws IOException
+	{
+		Path[] l = new Path[keepFiles + 1];
+		l[0] = file;
+		for (int i = 1; i < l.length; i++)
+			l[i] = file.resolveSibling(String.format("mtc.%d.log", i));
+
+		Files.deleteIfExists(l[keepFiles]);
+		for (int i = keepFiles - 1; i >= 0; i--)
+			if (Files.exists(l[i]))
+				Files.move(l[i], l[i + 1], StandardCopyOption.REPLACE_EXISTING);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,176 @@
+package mtc;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.fastily.jwiki.dwrap.ImageInfo;
+import org.fastily.wptoolbox.Dates;
+
+/**
+ * Writes Commons file description pages. The summary and license sections are collected first, since the Information
+ * template can only be filled in once the license templates have been taken out of the description. {@link #render}
+ * then writes everything into one output buffer, sized up front so it never grows: the summary and license sections
+ * with their links rewritten (see {@link WikiSanitizer#rewriteLinks(CharSequence, StringBuilder)}), the upload log
+ * table, and the categories. Values are appended piece by piece, without format strings or intermediate Strings.
+ * <p>
+ * The output is the same as that of the {@code String.format} based code this replaced, including the platform line
+ * separator after each license template and each row of the upload log.
+ *
+ * @author Fastily
+ *
+ */
+public class DescriptionRenderer
+{
+	/**
+	 * The platform line separator, which {@code %n} used to produce.
+	 */
+	private static final String nl = System.lineSeparator();
+
+	/**
+	 * A generous estimate of the length of one row of the upload log, excluding the upload summary.
+	 */
+	private static final int rowLength = 96;
+
+	/**
+	 * The summary section, up to the end of the Information template.
+	 */
+	private final StringBuilder summary;
+
+	/**
+	 * The license section.
+	 */
+	private final StringBuilder license = new StringBuilder(256).append("\n== {{int:license-header}} ==\n");
+
+	/**
+	 * Constructor, creates a new DescriptionRenderer.
+	 *
+	 * @param sizeHint The expected length of the description, e.g. the length of the enwp description page.
+	 */
+	public DescriptionRenderer(int sizeHint)
+	{
+		summary = new StringBuilder(sizeHint + 256).append("== {{int:filedesc}} ==\n");
+	}
+
+	/**
+	 * Adds a template to the license section.
+	 *
+	 * @param template The template, as wikitext.
+	 * @return This DescriptionRenderer.
+	 */
+	public DescriptionRenderer license(Object template)
+	{
+		license.append(template).append(nl);
+		return this;
+	}
+
+	/**
+	 * Writes the Information template of the summary section. Call once. Every value except {@code description} is trimmed.
+	 *
+	 * @param description The description, as is.
+	 * @param extraDescription Appended to {@code description}, trimmed.
+	 * @param source The source
+	 * @param date The date
+	 * @param author The author
+	 * @param permission The permission
+	 * @param otherVersions The other versions
+	 * @return This DescriptionRenderer.
+	 */
+	public DescriptionRenderer information(String description, String extraDescription, String source, String date, String author, String permission,
+			String otherVersions)
+	{
+		summary.append("{{Information\n|description=").append(description);
+		appendTrimmed(summary, extraDescription);
+		appendTrimmed(summary.append("\n|source="), source);
+		appendTrimmed(summary.append("\n|date="), date);
+		appendTrimmed(summary.append("\n|author="), author);
+		appendTrimmed(summary.append("\n|permission="), permission);
+		appendTrimmed(summary.append("\n|other_versions="), otherVersions);
+		summary.append("\n}}\n");
+
+		return this;
+	}
+
+	/**
+	 * Renders the complete description page.
+	 *
+	 * @param title The enwp title of the file, without namespace prefix.
+	 * @param history The upload history of the file, newest first.
+	 * @param categories The categories to add, with namespace prefix. If empty, the file is tagged as uncategorized.
+	 * @param trackingCategory Set true to add the category tracking MTC uploads
+	 * @return The text of the description page.
+	 */
+	public String render(String title, List<ImageInfo> history, List<String> categories, boolean trackingCategory)
+	{
+		int size = summary.length() + license.length() + 256 + title.length() + history.size() * rowLength;
+		for (ImageInfo ii : history)
+			size += 2 * ii.user.length() + ii.summary.length();
+		for (String c : categories)
+			size += c.length() + 5;
+
+		StringBuilder out = new StringBuilder(size);
+		WikiSanitizer.rewriteLinks(summary.append(license), out); // add enwp prefix to links, fix double colons, remove excessive spacing
+
+		out.append("\n== {{Original upload log}} ==\n{{Original file page|en.wikipedia|").append(title).append("}}").append(nl)
+				.append("{| class=\"wikitable\"\n! {{int:filehist-datetime}} !! {{int:filehist-dimensions}} !! {{int:filehist-user}} !! {{int:filehist-comment}}");
+
+		for (ImageInfo ii : history)
+		{
+			out.append(nl).append("|-").append(nl).append("| ");
+			Dates.iso8601dtf.formatTo(LocalDateTime.ofInstant(ii.timestamp, ZoneOffset.UTC), out);
+			out.append(" || ").append(ii.width).append(" × ").append(ii.height).append(" || [[w:User:").append(ii.user).append('|').append(ii.user)
+					.append("]] || ''<nowiki>");
+			appendSummary(out, ii.summary);
+			out.append("</nowiki>''");
+		}
+		out.append("\n|}\n");
+
+		if (categories.isEmpty())
+			out.append("\n{{Subst:Unc}}");
+		else
+			for (String c : categories)
+				out.append("\n[[").append(c).append("]]");
+
+		if (trackingCategory)
+			out.append("\n[[Category:Uploaded with MTC!]]");
+
+		return out.toString();
+	}
+
+	/**
+	 * Appends {@code s} without leading and trailing whitespace, as per {@link String#trim()}.
+	 *
+	 * @param sb The buffer to append to
+	 * @param s The String to append
+	 */
+	private static void appendTrimmed(StringBuilder sb, String s)
+	{
+		int start = 0, end = s.length();
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		while (end > start && s.charAt(end - 1) <= ' ')
+			end--;
+
+		sb.append(s, start, end);
+	}
+
+	/**
+	 * Appends an upload summary on one line. Equivalent to {@code s.replace("\n", " ").replace("  ", " ")}.
+	 *
+	 * @param sb The buffer to append to
+	 * @param s The upload summary
+	 */
+	private static void appendSummary(StringBuilder sb, String s)
+	{
+		for (int i = 0, n = s.length(); i < n; i++)
+		{
+			char c = s.charAt(i);
+			if (c == '\n')
+				c = ' ';
+
+			sb.append(c);
+			if (c == ' ' && i + 1 < n && (s.charAt(i + 1) == ' ' || s.charAt(i + 1) == '\n'))
+				i++; // a pair of spaces becomes one
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package mtc;
+
+/**
+ * A file queued for transfer, without any of the state of its transfer. Jobs are listed as FileRefs, and each is only
+ * made into a FileInfo (see {@link MTC#fileInfo(FileRef)}) shortly before it is transferred, so the memory a job needs
+ * depends on the number of files in flight rather than on the size of the job.
+ *
+ * @author Fastily
+ *
+ */
+public class FileRef
+{
+	/**
+	 * The enwp and Commons titles of the file.
+	 */
+	public final String wpFN, comFN;
+
+	/**
+	 * Flag indicating if the file is tagged as own work.
+	 */
+	public final boolean isOwnWork;
+
+	/**
+	 * The last Stage the file completed, if it is part of an interrupted job. Null if it completed none.
+	 */
+	protected final Stage lastStage;
+
+	/**
+	 * The offset of the Commons text generated for the file in the job journal (see {@link TransferJournal#comText(long)}),
+	 * if it is part of an interrupted job. -1 if it was not generated.
+	 */
+	protected final long comTextAt;
+
+	/**
+	 * Constructor, creates a new FileRef for a file which has not been worked on.
+	 *
+	 * @param wpFN The enwp title of the file
+	 * @param comFN The Commons title assigned to the file
+	 * @param isOwnWork Set true if the file is tagged as own work
+	 */
+	public FileRef(String wpFN, String comFN, boolean isOwnWork)
+	{
+		this(wpFN, comFN, isOwnWork, null, -1);
+	}
+
+	/**
+	 * Constructor, creates a new FileRef.
+	 *
+	 * @param wpFN The enwp title of the file
+	 * @param comFN The Commons title assigned to the file
+	 * @param isOwnWork Set true if the file is tagged as own work
+	 * @param lastStage The last Stage the file completed. Null if it completed none.
+	 * @param comTextAt The offset of the Commons text generated for the file in the job journal. -1 if it was not generated.
+	 */
+	public FileRef(String wpFN, String comFN, boolean isOwnWork, Stage lastStage, long comTextAt)
+	{
+		this.wpFN = wpFN;
+		this.comFN = comFN;
+		this.isOwnWork = isOwnWork;
+		this.lastStage = lastStage;
+		this.comTextAt = comTextAt;
+	}
+}
\ No newline at end of file
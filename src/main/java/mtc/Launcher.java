@@ -1,7 +1,8 @@
 package mtc;
 
 /**
- * Dummy entry point because JavaFX doesn't play well with fat jars
+ * Dummy entry point because JavaFX doesn't play well with fat jars. Starts the headless {@link CLI} if any arguments
+ * are passed, otherwise the GUI.
  * 
  * @author Fastily
  *
@@ -12,11 +13,14 @@ public class Launcher
 	/**
 	 * Main driver
 	 * 
-	 * @param args CLI args, not used
+	 * @param args CLI args. If present, these are passed to {@link CLI}.
 	 */
 	public static void main(String[] args)
 	{
-		App.main(args);
+		if (args.length > 0)
+			CLI.main(args);
+		else
+			App.main(args);
 	}
 
 }
\ No newline at end of file
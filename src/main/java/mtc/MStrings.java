@@ -33,6 +33,11 @@ class MStrings
 	 */
 	protected static final String tTo = String.format("Transferred to Commons ([[%s|%s]]) (%s)", fullname, name, version);
 
+	/**
+	 * User agent for HTTP requests made by MTC! itself
+	 */
+	protected static final String userAgent = String.format("%s/%s (https://en.wikipedia.org/wiki/%s)", name, version, fullname);
+
 	/**
 	 * Short-form hostname for the English Wikipedia
 	 */
@@ -1,16 +1,28 @@
 package mtc;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 import org.fastily.jwiki.core.MQuery;
 import org.fastily.jwiki.core.NS;
@@ -20,12 +32,17 @@ import org.fastily.jwiki.core.WParser.WikiText;
 import org.fastily.jwiki.core.Wiki;
 import org.fastily.jwiki.dwrap.ImageInfo;
 import org.fastily.jwiki.util.FL;
-import org.fastily.wptoolbox.Dates;
-import org.fastily.wptoolbox.HTTP;
-import org.fastily.wptoolbox.Sys;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 /**
  * Business Logic for MTC. Contains shared methods, constants, and Objects.
@@ -36,14 +53,25 @@ import okhttp3.Response;
 public class MTC
 {
 	/**
-	 * Cache of whether a Template exists on Commons.
+	 * Path pointing to temporary folder to store downloaded files.
 	 */
-	protected static HashMap<String, Boolean> ctpCache = new HashMap<>();
+	protected static Path mtcfiles = Paths.get((System.getProperty("os.name").contains("Windows") ? "" : "/tmp/") + "mtcfiles");
 
 	/**
-	 * Path pointing to temporary folder to store downloaded files.
+	 * Downloaded files, kept in {@code mtcfiles} until they are uploaded. The byte budget defaults to 4 GiB, and can be
+	 * set (in MiB) with the {@code mtc.spoolMb} system property.
 	 */
-	protected static Path mtcfiles = Paths.get((System.getProperty("os.name").contains("Windows") ? "" : "/tmp/") + "mtcfiles");
+	protected static Spool spool = new Spool(mtcfiles, Long.getLong("mtc.spoolMb", 4096) * 1024 * 1024);
+
+	/**
+	 * Path pointing to folder to store data which should persist between sessions.
+	 */
+	protected static Path mtcdata = Paths.get(System.getProperty("user.home"), ".mtc");
+
+	/**
+	 * Cache of whether a Template exists on Commons. Shared by files generated in parallel, and saved between sessions.
+	 */
+	protected static TemplateCache ctpCache = new TemplateCache(mtcdata.resolve("ctpCache.tsv"));
 
 	/**
 	 * The Wiki objects to use
@@ -53,13 +81,24 @@ public class MTC
 	/**
 	 * Regex matching Copy to Commons templates.
 	 */
-	protected String mtcRegex;
+	protected Pattern mtcRegex;
+
+	/**
+	 * Regex matching the {@code ncd} tag MTC adds to transferred files, before or after substitution.
+	 */
+	private static final Pattern ncdRegex = Pattern.compile("(?i)\\{\\{\\s*(subst:\\s*)?(ncd|now ?commons)\\b");
 
 	/**
 	 * Flag indicating whether this is a debug-mode/dry run (do not perform transfers)
 	 */
 	protected boolean dryRun = false;
 
+	/**
+	 * Records generated text and skipped files in a dry run. Optional, may be null, in which case dry runs only count the
+	 * generated files in {@code metrics}.
+	 */
+	protected PreviewReport preview;
+
 	/**
 	 * Flag indicating whether the non-free content filter is to be ignored.
 	 */
@@ -75,54 +114,120 @@ public class MTC
 	 */
 	protected boolean useCheckNeededCat = false;
 
+	/**
+	 * Categories to add to every transferred file.
+	 */
+	protected ArrayList<String> addCats = new ArrayList<>();
+
 	/**
 	 * Flag indicating whether we should attempt deletion on successful transfer.
 	 */
 	protected boolean deleteOnTransfer = false;
 
+	/**
+	 * Flag indicating whether files should be streamed from enwp straight into their Commons upload, instead of being saved
+	 * to disk first.
+	 */
+	protected boolean streamUploads = false;
+
+	/**
+	 * Files larger than this many bytes are always saved to disk before uploading, because Commons does not accept them in
+	 * a single upload request.
+	 */
+	protected static final long maxStreamSize = 100L * 1024 * 1024;
+
+	/**
+	 * Files larger than this many bytes are uploaded in chunks (see {@link ChunkedUpload}), so that a failed request does
+	 * not cost the whole upload. Such files are never streamed.
+	 */
+	protected long chunkedUploadThreshold = 32L * 1024 * 1024;
+
+	/**
+	 * The size, in bytes, of each chunk of a chunked upload.
+	 */
+	protected int chunkSize = 8 * 1024 * 1024;
+
+	/**
+	 * Raw API access for enwp and Commons, sharing the login sessions of {@code enwp} and {@code com}. Created on first
+	 * use.
+	 */
+	private WikiClient enwpClient, comClient;
+
+	/**
+	 * Assigns collision-free Commons filenames to transfer candidates.
+	 */
+	protected NameResolver names;
+
+	/**
+	 * The journal of the running job. Optional, null if the job is not being journaled.
+	 */
+	protected TransferJournal journal;
+
 	/**
 	 * Contains redirect data for license tags
 	 */
 	protected HashMap<String, String> tpMap = new HashMap<>();
 
 	/**
-	 * Files with these categories should not be transferred.
+	 * Latency, throughput, and failure counters for transfers made with this MTC.
+	 */
+	protected final Metrics metrics = new Metrics();
+
+	/**
+	 * The maximum number of concurrent writes to each wiki.
+	 */
+	protected static final int maxWriters = 8;
+
+	/**
+	 * Limit concurrent uploads to Commons, and edits and deletions on enwp, respectively, to what the servers can sustain.
 	 */
-	protected HashSet<String> blacklist;
+	protected final AdaptiveLimiter comLimiter = new AdaptiveLimiter(2, maxWriters, metrics), enwpLimiter = new AdaptiveLimiter(2, maxWriters, metrics);
 
 	/**
-	 * Files must be members of at least one of the following categories to be eligible for transfer.
+	 * Retry Stages of a transfer, and idempotent (GET) requests to either wiki, respectively, which failed transiently.
 	 */
-	protected HashSet<String> whitelist;
+	protected final RetryPolicy stageRetries = new RetryPolicy(5, 1000, 60_000, metrics), requestRetries = new RetryPolicy(3, 500, 10_000, metrics);
 
 	/**
-	 * Creates an MTC object.
+	 * The number of files made into FileInfo objects and prefetched at a time. Matches the number of titles MQuery sends
+	 * per request, so prefetching in windows this size costs no extra requests.
+	 */
+	private static final int prefetchWindow = 50;
+
+	/**
+	 * Decides which files are eligible for transfer, from the blacklist and whitelist of categories.
+	 */
+	protected CategoryFilter filter;
+
+	/**
+	 * Creates an MTC object. Opens its folders (see {@link #openFolders()}) if that was not done already.
 	 * 
-	 * @param cliOnly Set true to disable download folder creation. CAVEAT: This is only for read-only usage.
+	 * @param enwp The Wiki object for enwp
+	 * @param com The Wiki object for Commons
+	 * @throws IOException If the folders could not be opened.
 	 */
-	public MTC(Wiki enwp, Wiki com)
+	public MTC(Wiki enwp, Wiki com) throws IOException
 	{
 		this.enwp = enwp;
 		this.com = com;
+		names = new NameResolver(com);
 
-		// Generate whitelist & blacklist
-		HashMap<String, ArrayList<String>> l = MQuery.getLinksOnPage(enwp, FL.toSAL(MStrings.fullname + "/Blacklist", MStrings.fullname + "/Whitelist"));
-		blacklist = new HashSet<>(l.get(MStrings.fullname + "/Blacklist"));
-		whitelist = new HashSet<>(l.get(MStrings.fullname + "/Whitelist"));
+		metrics.instrument(enwp);
+		metrics.instrument(com);
+		enwpLimiter.instrument(enwp);
+		comLimiter.instrument(com);
+		requestRetries.instrument(enwp);
+		requestRetries.instrument(com);
 
-		// Generate download directory
-		try // TODO: Split into own method
-		{
-			if (!Files.isDirectory(mtcfiles))
-				Files.createDirectory(mtcfiles);
-		}
-		catch (Throwable e)
-		{
-			Sys.errAndExit(e, "Failed to create output folder.  Do you have write permissions?");
-		}
+		openFolders();
+		ctpCache.load();
+
+		// Fetch whitelist, blacklist, and redirects
+		WikiConfig config = WikiConfig.load(enwp, mtcdata.resolve("config.json"));
+		filter = new CategoryFilter(config.blacklist, config.whitelist);
 
 		// Process template redirect data
-		for (String line : enwp.getPageText(MStrings.fullname + "/Redirects").split("\n"))
+		for (String line : config.redirects.split("\n"))
 			if (!line.startsWith("<") && !line.isEmpty())
 			{
 				String[] splits = line.split("\\|");
@@ -131,81 +236,476 @@ public class MTC
 			}
 
 		// Setup mtcRegex
-		ArrayList<String> rtl = enwp.nss(enwp.whatLinksHere("Template:Copy to Wikimedia Commons", true));
+		ArrayList<String> rtl = enwp.nss(config.ctcRedirects);
 		rtl.add("Copy to Wikimedia Commons");
-		mtcRegex = "(?si)\\{\\{(" + FL.pipeFence(rtl) + ").*?\\}\\}";
+		mtcRegex = Pattern.compile("(?si)\\{\\{(" + FL.pipeFence(rtl) + ").*?\\}\\}");
+	}
+
+	/**
+	 * Creates the data folder, and opens the download spool. Does nothing if this was done already.
+	 * 
+	 * @throws IOException If a folder could not be created, or the spool is in use by other MTC processes.
+	 */
+	protected static void openFolders() throws IOException
+	{
+		spool.open();
+		Files.createDirectories(mtcdata);
 	}
 
 	/**
-	 * Creates TransferFile obejcts from a List of titles. Also filters (if enabled) and auto-resolves Commons filenames for transfer candidates.
+	 * Creates FileRef objects from a List of titles. Also filters (if enabled), drops files already on Commons (see
+	 * {@link #findDuplicates(List)}), and auto-resolves Commons filenames for transfer candidates.
 	 * 
-	 * @param titles The List of enwp files to transfer
-	 * @return An ArrayList of TransferObject objects.
+	 * @param titles The List of enwp files to transfer. Not modified.
+	 * @return An ArrayList of FileRef objects.
 	 */
-	public ArrayList<FileInfo> makeTransferFile(ArrayList<String> titles)
+	public ArrayList<FileRef> makeTransferFile(ArrayList<String> titles)
 	{
 		HashMap<String, ArrayList<String>> catL = MQuery.getCategoriesOnPage(enwp, titles);
 		if (!ignoreFilter)
 		{
-			catL.forEach((k, v) -> {
-				if (v.stream().anyMatch(blacklist::contains) || !v.stream().anyMatch(whitelist::contains))
-					titles.remove(k);
-			});
+			ArrayList<String> eligible = filter.filter(titles, catL);
+			if (preview != null && eligible.size() < titles.size())
+			{
+				HashSet<String> kept = new HashSet<>(eligible);
+				for (String t : titles)
+					if (!kept.contains(t))
+						preview.skipped(t, "filter", filter.explain(catL.getOrDefault(t, new ArrayList<>())));
+			}
 
-			MQuery.getSharedDuplicatesOf(enwp, titles).forEach((k, v) -> {
-				if (!v.isEmpty())
-					titles.remove(k);
-			});
+			titles = eligible;
 		}
 
-		ArrayList<FileInfo> l = new ArrayList<>();
-		MQuery.exists(com, titles).forEach((k, v) -> {
-			if (!v)
-				l.add(new FileInfo(k, k, catL.get(k)));
-			else
+		HashSet<String> dupes = findDuplicates(titles);
+		if (!dupes.isEmpty())
+		{
+			System.err.printf("Skipping %d file(s) with the same contents as a file on Commons or earlier in the batch%n", dupes.size());
+			metrics.skipped("duplicate", dupes.size());
+			if (preview != null)
+				dupes.forEach(t -> preview.skipped(t, "duplicate", null));
+			titles = new ArrayList<>(titles);
+			titles.removeIf(dupes::contains);
+		}
+
+		ArrayList<FileRef> l = new ArrayList<>();
+		names.resolve(titles).forEach((k, v) -> {
+			ArrayList<String> cats = catL.get(k);
+			l.add(new FileRef(k, v, cats != null && cats.contains("Category:Self-published work")));
+		});
+
+		return l;
+	}
+
+	/**
+	 * Finds transfer candidates which need not be transferred because their current version has the same SHA-1 as a file
+	 * on Commons, or as a candidate earlier in {@code titles}. Commons is the shared file repository of enwp, so enwp
+	 * compares the hashes with {@code prop=duplicatefiles}, 50 files per request, and nothing is downloaded. Batches which
+	 * could not be checked are assumed to have no duplicates.
+	 *
+	 * @param titles The enwp files to check, in transfer order.
+	 * @return The titles in {@code titles} which are duplicates.
+	 */
+	public HashSet<String> findDuplicates(List<String> titles)
+	{
+		HashSet<String> dupes = new HashSet<>(), kept = new HashSet<>();
+		for (int i = 0; i < titles.size(); i += 50)
+		{
+			List<String> batch = titles.subList(i, Math.min(titles.size(), i + 50));
+			HashMap<String, ArrayList<String>> local = new HashMap<>();
+			ArrayList<String> params = FL.toSAL("prop", "duplicatefiles", "titles", FL.pipeFence(batch), "dflimit", "max", "formatversion", "2");
+
+			for (boolean more = true; more;)
+				try (Response r = enwp.basicGET("query", params.toArray(new String[0])))
+				{
+					if (r == null)
+						throw new IOException("No response");
+
+					JsonObject jo = WikiClient.parse(r);
+					if (jo.has("query"))
+						for (JsonElement e : jo.getAsJsonObject("query").getAsJsonArray("pages"))
+						{
+							JsonObject pg = e.getAsJsonObject();
+							if (!pg.has("duplicatefiles"))
+								continue;
+
+							String title = pg.get("title").getAsString();
+							for (JsonElement d : pg.getAsJsonArray("duplicatefiles"))
+							{
+								JsonObject dj = d.getAsJsonObject();
+								if (dj.has("shared") && dj.get("shared").getAsBoolean())
+									dupes.add(title);
+								else
+									local.computeIfAbsent(title, k -> new ArrayList<>()).add("File:" + dj.get("name").getAsString().replace('_', ' '));
+							}
+						}
+
+					more = jo.has("continue");
+					params.subList(8, params.size()).clear(); // drop the continuation of the previous request
+					if (more)
+						for (Map.Entry<String, JsonElement> c : jo.getAsJsonObject("continue").entrySet())
+						{
+							params.add(c.getKey());
+							params.add(c.getValue().getAsString());
+						}
+				}
+				catch (Throwable e)
+				{
+					e.printStackTrace();
+					more = false;
+				}
+
+			for (String t : batch)
+			{
+				ArrayList<String> l = local.get(t);
+				if (!dupes.contains(t) && l != null && l.stream().anyMatch(kept::contains))
+					dupes.add(t);
+				else if (!dupes.contains(t))
+					kept.add(t);
+			}
+		}
+
+		return dupes;
+	}
+
+	/**
+	 * Lazily creates FileInfo objects from batches of titles. Each batch is filtered and assigned Commons filenames (see
+	 * {@link #makeTransferFile(ArrayList)}) only once every file of the previous batch has been taken, so transfers can
+	 * start before {@code batches} is exhausted. The files of a batch are kept as FileRefs, and made into FileInfo objects
+	 * and prefetched {@link #prefetchWindow} at a time, so that only the files in flight hold any transfer state.
+	 * <p>
+	 * If {@code journal} is set, the unfinished files of its job (as of when it was opened) are returned first, and passed
+	 * to {@code onBatch} as a batch of their own. They are read from the journal as they are taken, and each keeps its
+	 * assigned Commons name (reserved as it is taken, which is before any new batch is assigned names), its generated text
+	 * (if any), and the last Stage it completed. Titles already in the journal are skipped, and each batch is recorded in the journal.
+	 *
+	 * @param batches The batches of enwp files to transfer
+	 * @param onBatch Called with the number of titles in each batch and the number of files eligible for transfer.
+	 * @return An Iterable which can be iterated once.
+	 */
+	public Iterable<FileInfo> transferFiles(TitleStream batches, BiConsumer<Integer, Integer> onBatch)
+	{
+		ArrayDeque<FileRef> queued = new ArrayDeque<>();
+
+		Iterator<FileInfo> it = new Iterator<>() {
+			/**
+			 * The unfinished files of the journaled job which have not been taken yet, read from the journal as they are
+			 * taken. Null until the first call to {@code hasNext()}.
+			 */
+			private Iterator<FileRef> resumed;
+
+			/**
+			 * The FileInfo objects which were created and prefetched, but not yet returned.
+			 */
+			private ArrayDeque<FileInfo> ready = new ArrayDeque<>();
+
+			public boolean hasNext()
 			{
-				String comFN;
-				do
+				if (resumed == null)
 				{
-					comFN = new StringBuilder(k).insert(k.lastIndexOf('.'), " " + Math.round(Math.random() * 1000)).toString();
-				} while (com.exists(comFN)); // loop until available filename is found
+					resumed = journal != null ? journal.pending().iterator() : Collections.emptyIterator();
+					if (journal != null && journal.unfinished() > 0)
+						onBatch.accept(journal.unfinished(), journal.unfinished());
+				}
+
+				while (ready.isEmpty() && queued.isEmpty() && !resumed.hasNext() && batches.hasNext())
+				{
+					ArrayList<String> titles = batches.next();
+					int total = titles.size();
+
+					if (journal != null)
+						titles.removeIf(journal::contains);
+
+					ArrayList<FileRef> l = makeTransferFile(titles);
+					if (journal != null)
+					{
+						for (FileRef r : l)
+							journal.queued(r.wpFN, r.comFN, r.isOwnWork);
+
+						journal.continuation(batches.continuation());
+					}
+
+					onBatch.accept(total, l.size());
+					queued.addAll(l);
+				}
 
-				l.add(new FileInfo(k, comFN, catL.get(k)));
+				if (ready.isEmpty() && (resumed.hasNext() || !queued.isEmpty()))
+				{
+					ArrayList<FileInfo> window = new ArrayList<>(prefetchWindow);
+					while (window.size() < prefetchWindow && (resumed.hasNext() || !queued.isEmpty()))
+					{
+						FileRef r;
+						if (resumed.hasNext())
+							names.reserve((r = resumed.next()).comFN);
+						else
+							r = queued.poll();
+
+						window.add(fileInfo(r));
+					}
+
+					prefetch(window);
+					ready.addAll(window);
+				}
+
+				return !ready.isEmpty();
 			}
-		});
 
-		return l;
+			public FileInfo next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				return ready.poll();
+			}
+		};
+
+		return () -> it;
 	}
 
 	/**
-	 * Downloads a file and saves it to disk.
+	 * Creates the FileInfo for a file queued for transfer. The generated text of a resumed file is read from
+	 * {@code journal}.
+	 *
+	 * @param r The file to create a FileInfo for
+	 * @return The new FileInfo.
+	 */
+	FileInfo fileInfo(FileRef r)
+	{
+		FileInfo fi = new FileInfo(r.wpFN, r.comFN, r.isOwnWork);
+		fi.lastStage = r.lastStage;
+		if (r.comTextAt >= 0 && (fi.comText = journal.comText(r.comTextAt)) == null && !fi.isDone(Stage.UPLOAD))
+			fi.lastStage = null; // generated text is lost, so generate it again
+
+		return fi;
+	}
+
+	/**
+	 * Creates a FileInfo whose upload history and description page text were already fetched, as if by
+	 * {@link #prefetch(Collection)}. Used by benchmarks, which run {@link FileInfo#gen()} on the same inputs repeatedly.
+	 *
+	 * @param wpFN The enwp title of the file
+	 * @param comFN The Commons title to transfer to
+	 * @param isOwnWork Set true if the file is tagged as own work
+	 * @param imgInfoL The upload history of the file, newest first.
+	 * @param rawText The unprocessed description page text of the file
+	 * @return The new FileInfo.
+	 */
+	FileInfo fileInfo(String wpFN, String comFN, boolean isOwnWork, ArrayList<ImageInfo> imgInfoL, String rawText)
+	{
+		FileInfo fi = new FileInfo(wpFN, comFN, isOwnWork);
+		fi.imgInfoL = imgInfoL;
+		fi.rawText = rawText;
+
+		return fi;
+	}
+
+	/**
+	 * Fetches the upload history and description page text of each file in {@code l} with batched (MQuery) requests, so
+	 * that {@link FileInfo#gen()} does not need to fetch these one file at a time. Files which already have this data, or
+	 * which could not be found, are left for {@link FileInfo#gen()} to fetch.
+	 * 
+	 * @param l The files to fetch data for.
+	 */
+	public void prefetch(Collection<FileInfo> l)
+	{
+		HashMap<String, FileInfo> infoM = new HashMap<>(), textM = new HashMap<>();
+		for (FileInfo fi : l)
+		{
+			if (fi.imgInfoL == null && !fi.isDone(Stage.UPLOAD))
+				infoM.put(fi.wpFN, fi);
+			if (fi.comText == null && fi.rawText == null)
+				textM.put(fi.wpFN, fi);
+		}
+
+		// the two queries are independent, so send them at the same time
+		try (TaskScope scope = new TaskScope())
+		{
+			TaskScope.Subtask<HashMap<String, ArrayList<ImageInfo>>> info = infoM.isEmpty() ? null
+					: scope.fork(() -> MQuery.getImageInfo(enwp, new ArrayList<>(infoM.keySet())));
+			TaskScope.Subtask<HashMap<String, String>> text = textM.isEmpty() ? null : scope.fork(() -> MQuery.getPageText(enwp, new ArrayList<>(textM.keySet())));
+			scope.join();
+
+			if (info != null)
+				info.result().forEach((k, v) -> {
+					FileInfo fi = infoM.get(k);
+					if (fi != null && v != null && !v.isEmpty())
+						fi.imgInfoL = v;
+				});
+
+			if (text != null)
+				text.result().forEach((k, v) -> {
+					FileInfo fi = textM.get(k);
+					if (fi != null && v != null)
+						fi.rawText = v;
+				});
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Gets the raw API client for enwp, creating it if necessary.
+	 * 
+	 * @return The WikiClient for {@code enwp}
+	 */
+	protected synchronized WikiClient enwpClient()
+	{
+		if (enwpClient == null)
+			enwpClient = new WikiClient(enwp);
+
+		return enwpClient;
+	}
+
+	/**
+	 * Gets the raw API client for Commons, creating it if necessary.
+	 * 
+	 * @return The WikiClient for {@code com}
+	 */
+	protected synchronized WikiClient comClient()
+	{
+		if (comClient == null)
+			comClient = new WikiClient(com);
+
+		return comClient;
+	}
+
+	/**
+	 * Downloads a file and saves it to disk. The SHA-1 of the file is computed as it downloads, and the file is only kept if
+	 * it matches {@code sha1}. If {@code localpath} already holds a file with a matching hash, it is reused as is. Partial
+	 * downloads are kept next to {@code localpath} (with a {@code .part} suffix) and resumed with an HTTP Range request on
+	 * the next attempt.
 	 * 
 	 * @param u The url to download from
 	 * @param localpath The local path to save the file at.
+	 * @param sha1 The expected SHA-1 of the file, as a hex String. Set null to skip verification.
 	 * @return True on success.
 	 */
-	private static boolean downloadFile(HttpUrl u, Path localpath)
+	private boolean downloadFile(HttpUrl u, Path localpath, String sha1)
 	{
+		try
+		{
+			if (sha1 != null && Files.isRegularFile(localpath) && sha1.equalsIgnoreCase(sha1Of(localpath)))
+			{
+				System.err.println("Reusing verified download at " + localpath);
+				return true;
+			}
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+
 		System.err.println("Downloading a file to " + localpath);
 
-		byte[] bf = new byte[1024 * 512]; // 512kb buffer.
-		int read;
-		try (Response r = HTTP.getResponse(u); OutputStream out = Files.newOutputStream(localpath))
+		Path part = localpath.resolveSibling(localpath.getFileName() + ".part");
+		ByteBuffer bf = BufferPool.acquire();
+		try
 		{
-			InputStream in = r.body().byteStream();
-			while ((read = in.read(bf)) > -1)
-				out.write(bf, 0, read);
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+			long offset = Files.isRegularFile(part) ? Files.size(part) : 0;
+			if (offset > 0)
+				try (InputStream in = Files.newInputStream(part))
+				{
+					byte[] b = new byte[8192];
+					int read;
+					while ((read = in.read(b)) > -1)
+						md.update(b, 0, read);
+				}
+
+			try (Response r = offset > 0 ? enwpClient().get(u, "Range", "bytes=" + offset + "-") : enwpClient().get(u))
+			{
+				if (offset > 0 && r.code() == 416) // partial download is unusable; start over
+				{
+					metrics.retry(Stage.DOWNLOAD, "range_not_satisfiable");
+					Files.deleteIfExists(part);
+					return downloadFile(u, localpath, sha1);
+				}
+				else if (!r.isSuccessful())
+				{
+					metrics.cause("http_" + r.code());
+					throw new IOException(String.format("HTTP %d while downloading %s", r.code(), u));
+				}
+				else if (offset > 0 && r.code() != 206) // server ignored the Range request; start over
+				{
+					metrics.retry(Stage.DOWNLOAD, "range_ignored");
+					offset = 0;
+					md.reset();
+				}
+				else if (offset > 0)
+					metrics.retry(Stage.DOWNLOAD, "resumed");
 
+				try (FileChannel out = offset > 0 ? FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+						: FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+				{
+					BufferedSource in = r.body().source();
+					long n;
+					while ((n = in.read(bf)) > -1)
+					{
+						metrics.downloaded(n);
+						bf.flip();
+						md.update(bf.duplicate());
+						while (bf.hasRemaining())
+							out.write(bf);
+						bf.clear();
+					}
+				}
+			}
+
+			String actual = String.format("%040x", new BigInteger(1, md.digest()));
+			if (sha1 != null && !sha1.equalsIgnoreCase(actual))
+			{
+				System.err.printf("SHA-1 mismatch for %s: expected %s, got %s%n", u, sha1, actual);
+				metrics.cause("sha1_mismatch");
+				Files.deleteIfExists(part);
+				return false;
+			}
+
+			Files.move(part, localpath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 			return true;
 		}
 		catch (Throwable e)
 		{
 			e.printStackTrace();
+			metrics.cause(e);
+		}
+		finally
+		{
+			BufferPool.release(bf);
 		}
 
 		return false;
 	}
 
+	/**
+	 * Computes the SHA-1 of a file on disk.
+	 * 
+	 * @param p The file to hash
+	 * @return The SHA-1 of {@code p}, as a lowercase hex String.
+	 * @throws Exception If the file could not be read.
+	 */
+	private static String sha1Of(Path p) throws Exception
+	{
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		ByteBuffer bf = BufferPool.acquire();
+		try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ))
+		{
+			while (in.read(bf) > -1)
+			{
+				bf.flip();
+				md.update(bf);
+				bf.clear();
+			}
+		}
+		finally
+		{
+			BufferPool.release(bf);
+		}
+
+		return String.format("%040x", new BigInteger(1, md.digest()));
+	}
+
 	/**
 	 * Represents a file to transfer to Commons
 	 * 
@@ -222,17 +722,28 @@ public class MTC
 		/**
 		 * The commons filename
 		 */
-		private String comFN;
+		protected String comFN;
 
 		/**
-		 * The local path
+		 * This file's hold on its download in the spool. Null if it does not hold one.
 		 */
-		private Path localFN;
+		private Spool.Lease spooled;
 
 		/**
 		 * Cached file description text on enwp.
 		 */
-		private String enwpText;
+		protected String enwpText;
+
+		/**
+		 * Unprocessed file description text on enwp, as fetched by {@link MTC#prefetch(Collection)}. Cleared by {@link #gen()}.
+		 */
+		private String rawText;
+
+		/**
+		 * Unprocessed file description text on enwp, as used by {@link #gen()}. Only kept for {@link MTC#preview}; null if
+		 * it is not set.
+		 */
+		protected String sourceText;
 
 		/**
 		 * The output text for Commons.
@@ -240,9 +751,9 @@ public class MTC
 		protected String comText;
 
 		/**
-		 * The summary and license sections.
+		 * Titles of the templates dropped by {@link #gen()} because they do not exist on Commons.
 		 */
-		private StringBuilder sumSection = new StringBuilder("== {{int:filedesc}} ==\n"), licSection = new StringBuilder("\n== {{int:license-header}} ==\n");
+		protected ArrayList<String> dropped = new ArrayList<>();
 
 		/**
 		 * The list of old revisions for the file
@@ -260,114 +771,364 @@ public class MTC
 		private boolean isOwnWork;
 
 		/**
-		 * Categories to add to the output text.
+		 * The last Stage this file completed. Null if it has not completed any.
 		 */
-		private ArrayList<String> cats = new ArrayList<>();
+		protected Stage lastStage;
 
 		/**
 		 * Constructor, creates a TransferObject
 		 * 
 		 * @param wpFN The enwp title to transfer
 		 * @param comFN The commons title to transfer to
-		 * @param enwpCats List of categories on the enwp file description page
+		 * @param isOwnWork Set true if the enwp file description page is tagged as own work
 		 */
-		private FileInfo(String wpFN, String comFN, ArrayList<String> enwpCats)
+		private FileInfo(String wpFN, String comFN, boolean isOwnWork)
 		{
 			this.comFN = comFN;
 			this.wpFN = wpFN;
-			this.isOwnWork = enwpCats.contains("Category:Self-published work");
+			this.isOwnWork = isOwnWork;
+		}
 
-			String baseFN = enwp.nss(wpFN);
-			localFN = mtcfiles.resolve(baseFN.hashCode() + baseFN.substring(baseFN.lastIndexOf('.')));
+		/**
+		 * Determines if this file has completed {@code stage}.
+		 * 
+		 * @param stage The Stage to check
+		 * @return True if this file completed {@code stage} or any later Stage.
+		 */
+		protected boolean isDone(Stage stage)
+		{
+			return lastStage != null && lastStage.compareTo(stage) >= 0;
+		}
 
-			if (useCheckNeededCat)
-				cats.add(String.format("Category:Files uploaded by %s with MTC! (check needed)", enwp.whoami()));
+		/**
+		 * Determines if {@code stage} took effect on the wikis, e.g. because an attempt at it which seemingly failed reached
+		 * the server anyway. Used to avoid repeating a Stage which must not be performed twice.
+		 * 
+		 * @param stage The Stage to check
+		 * @return True if the effect of {@code stage} is visible on the wikis. False if it is not, or if {@code stage} has no
+		 *         such effect.
+		 */
+		protected boolean isApplied(Stage stage)
+		{
+			switch (stage)
+			{
+				case UPLOAD:
+					ArrayList<ImageInfo> l = com.getImageInfo(comFN);
+					return !l.isEmpty() && l.get(0).sha1 != null && l.get(0).sha1.equalsIgnoreCase(latest().sha1);
+				case EDIT:
+					String text = enwp.getPageText(wpFN);
+					return text != null && text.contains(com.nss(comFN)) && ncdRegex.matcher(text).find();
+				case DELETE:
+					return !enwp.exists(wpFN);
+				default:
+					return false;
+			}
+		}
+
+		/**
+		 * Gets the image info of the current revision of this file, fetching the file's upload history if necessary.
+		 * 
+		 * @return The ImageInfo of the current revision.
+		 */
+		private ImageInfo latest()
+		{
+			return history().get(0);
+		}
+
+		/**
+		 * Gets the upload history of this file, fetching it if necessary. Safe to call from several threads at once; only
+		 * one fetches.
+		 * 
+		 * @return The upload history, newest first.
+		 */
+		private synchronized ArrayList<ImageInfo> history()
+		{
+			if (imgInfoL == null)
+				imgInfoL = enwp.getImageInfo(wpFN);
+
+			return imgInfoL;
 		}
 
 		/**
-		 * Adds categories which will be applied to transferred files.
+		 * Downloads this file from enwp. Does nothing if this file will be streamed into its upload instead. May run
+		 * concurrently with {@link #gen()}.
 		 * 
-		 * @param catL The categories to add.
+		 * @return True on success.
 		 */
-		public void addCat(String... catL)
+		protected boolean download()
 		{
-			cats.addAll(Arrays.asList(catL));
+			return isStreamable() || downloadToSpool();
 		}
 
 		/**
-		 * Attempts to transfer an enwp file to Commons
+		 * Downloads this file into the spool, unless a verified copy is already there. Takes a Lease on the file if this
+		 * FileInfo does not hold one.
 		 * 
 		 * @return True on success.
 		 */
-		public boolean doTransfer()
+		private boolean downloadToSpool()
 		{
 			try
 			{
-				if (comText == null)
-					gen();
+				if (spooled == null)
+					spooled = MTC.spool.acquire(latest().sha1, latest().size);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				metrics.cause(e);
+				return false;
+			}
 
-				if (dryRun)
-				{
-					System.out.println(comText);
+			spooled.lock(); // another file with the same contents may be downloading it
+			try
+			{
+				return downloadFile(latest().url, spooled.path, latest().sha1);
+			}
+			finally
+			{
+				spooled.unlock();
+			}
+		}
+
+		/**
+		 * Drops the transfer state of this file (its texts, upload history, and hold on its download in the spool), keeping
+		 * only its titles and last completed Stage. Call when this file reached a terminal state.
+		 */
+		protected void release()
+		{
+			releaseSpool();
+
+			enwpText = rawText = sourceText = comText = uploader = null;
+			imgInfoL = null;
+			dropped.clear();
+		}
+
+		/**
+		 * Releases this file's hold on its download in the spool, if it has one. The download is kept, so that a retry can
+		 * reuse it, until the spool needs the space.
+		 */
+		private void releaseSpool()
+		{
+			if (spooled != null)
+			{
+				spooled.release(false);
+				spooled = null;
+			}
+		}
+
+		/**
+		 * Uploads this file to Commons, in chunks if it is larger than {@link MTC#chunkedUploadThreshold}. If the file is
+		 * streamable but streaming fails without taking effect, the file is saved to disk and the upload retried from there.
+		 * Once the upload succeeded, the download is deleted. PRECONDITION: {@link #download()} succeeded. If this file has
+		 * no download (e.g. because its job is being resumed), it is downloaded again, or a verified copy in the spool is
+		 * reused.
+		 * 
+		 * @return True on success.
+		 */
+		protected boolean upload()
+		{
+			if (isStreamable())
+			{
+				if (streamUpload())
 					return true;
+
+				try
+				{
+					if (isApplied(Stage.UPLOAD)) // the server got the file, but the response was lost
+					{
+						System.err.printf("Streamed upload of '%s' took effect after all%n", wpFN);
+						metrics.takeCause();
+						return true;
+					}
+				}
+				catch (Throwable e) // unknown, so leave it to the stage retries, which check again first
+				{
+					e.printStackTrace();
+					return false;
 				}
 
-				return comText != null && downloadFile(imgInfoL.get(0).url, localFN) && com.upload(localFN, comFN, comText, MStrings.tFrom)
-						&& enwp.edit(wpFN, String.format("{{subst:ncd|%s}}%n", comFN) + enwpText, MStrings.tTo)
-						&& (!deleteOnTransfer || enwp.delete(wpFN, String.format("[[WP:CSD#F8|F8]]: Media file available on Commons: [[:%s]]", comFN)));
+				System.err.printf("Streamed upload of '%s' failed, retrying from disk%n", wpFN);
+				metrics.retry(Stage.UPLOAD, "stream_fallback");
+				metrics.takeCause();
 			}
-			catch (Throwable e)
+
+			if (spooled == null && !downloadToSpool())
+				return false;
+
+			try
+			{
+				Path p = spooled.path;
+				long size = Files.size(p);
+				if (size > chunkedUploadThreshold)
+				{
+					if (!new ChunkedUpload(comClient(), chunkSize, metrics).upload(p, com.nss(comFN), comText, MStrings.tFrom, () -> isApplied(Stage.UPLOAD)))
+						return false;
+				}
+				else if (com.upload(p, comFN, comText, MStrings.tFrom))
+					metrics.uploaded(size);
+				else
+					return false;
+
+				spooled.release(true);
+				spooled = null;
+				return true;
+			}
+			catch (IOException e)
 			{
 				e.printStackTrace();
+				metrics.cause(e);
 				return false;
 			}
 		}
 
 		/**
-		 * Processes parsed text and templates from the API
+		 * Determines if this file should be streamed from enwp straight into its Commons upload.
+		 * 
+		 * @return True if this file should be streamed.
 		 */
-		public void gen()
+		private boolean isStreamable()
 		{
-			if (comText != null)
-				return;
+			return streamUploads && latest().size <= Math.min(maxStreamSize, chunkedUploadThreshold);
+		}
 
-			imgInfoL = enwp.getImageInfo(wpFN);
-			uploader = imgInfoL.get(imgInfoL.size() - 1).user;
+		/**
+		 * Uploads this file to Commons by piping the enwp download directly into the upload request, without saving it to
+		 * disk.
+		 * 
+		 * @return True on success.
+		 */
+		private boolean streamUpload()
+		{
+			try (Response r = enwpClient().get(latest().url))
+			{
+				if (!r.isSuccessful())
+				{
+					metrics.cause("http_" + r.code());
+					return false;
+				}
 
-			// preprocess text
-			String txt = enwp.getPageText(wpFN);
-			txt = txt.replaceAll(mtcRegex, ""); // strip copy to commons
+				ResponseBody src = r.body();
+				RequestBody body = new RequestBody() {
+					public MediaType contentType()
+					{
+						return src.contentType();
+					}
+
+					public long contentLength()
+					{
+						return src.contentLength();
+					}
+
+					public boolean isOneShot()
+					{
+						return true;
+					}
+
+					public void writeTo(BufferedSink sink) throws IOException
+					{
+						ByteBuffer bf = BufferPool.acquire();
+						try
+						{
+							BufferedSource in = src.source();
+							long n;
+							while ((n = in.read(bf)) > -1)
+							{
+								bf.flip();
+								while (bf.hasRemaining())
+									sink.write(bf);
+								metrics.downloaded(n);
+								metrics.uploaded(n);
+								bf.clear();
+							}
+						}
+						finally
+						{
+							BufferPool.release(bf);
+						}
+					}
+				};
+
+				String fn = com.nss(comFN);
+				JsonObject jo = comClient().multipart("upload", FL.pMap("filename", fn, "text", comText, "comment", MStrings.tFrom, "ignorewarnings", "1"), "file", fn,
+						body);
+
+				if (jo.has("upload") && "Success".equals(jo.getAsJsonObject("upload").get("result").getAsString()))
+					return true;
 
-			enwpText = new String(txt); // cache description page text
+				if (jo.has("error"))
+				{
+					String code = jo.getAsJsonObject("error").get("code").getAsString();
+					if ("badtoken".equals(code))
+						comClient().resetToken();
 
-			txt = txt.replaceAll("(?s)\\<!\\-\\-.*?\\-\\-\\>", ""); // strip comments
-			txt = txt.replaceAll("(?i)\\n?\\[\\[(Category:).*?\\]\\]", ""); // categories don't transfer well.
-			txt = txt.replaceAll("\\n?\\=\\=.*?\\=\\=\\n?", ""); // strip headers
-			txt = txt.replaceAll("(?si)\\{\\|\\s*?class\\=\"wikitable.+?\\|\\}", ""); // strip captions
-			txt = txt.replaceAll("(?si)\\{\\{(bots|nobots).*?\\}\\}", ""); // strip nobots
+					metrics.cause("api_" + code);
+				}
 
-			WikiText docRoot = WParser.parseText(enwp, txt);
-			ArrayList<WTemplate> masterTPL = docRoot.getTemplatesR();
+				System.err.printf("Streamed upload of '%s' was rejected: %s%n", wpFN, jo);
+			}
+			catch (Throwable e)
+			{
+				e.printStackTrace();
+				metrics.cause(e);
+			}
 
-			// Normalize template titles
-			masterTPL.forEach(t -> {
-				t.normalizeTitle(enwp);
+			return false;
+		}
 
-				if (tpMap.containsKey(t.title))
-					t.title = tpMap.get(t.title);
-			});
+		/**
+		 * Tags the enwp file description page with {@code ncd}. PRECONDITION: {@link #upload()} succeeded.
+		 * 
+		 * @return True on success.
+		 */
+		protected boolean edit()
+		{
+			if (enwpText == null) // resumed after generating
+				enwpText = mtcRegex.matcher(enwp.getPageText(wpFN)).replaceAll("");
 
-			// Filter Templates which are not on Commons
-			MQuery.exists(com, FL.toAL(masterTPL.stream().filter(t -> !ctpCache.containsKey(t.title)).map(t -> com.convertIfNotInNS(t.title, NS.TEMPLATE))))
-					.forEach((k, v) -> ctpCache.put(com.nss(k), v));
-			masterTPL.removeIf(t -> {
-				if (ctpCache.containsKey(t.title) && !ctpCache.get(t.title))
+			return enwp.edit(wpFN, String.format("{{subst:ncd|%s}}%n", comFN) + enwpText, MStrings.tTo);
+		}
+
+		/**
+		 * Deletes the file on enwp, if {@code deleteOnTransfer} is set. PRECONDITION: {@link #edit()} succeeded.
+		 * 
+		 * @return True on success, or if deletion was not requested.
+		 */
+		protected boolean delete()
+		{
+			return !deleteOnTransfer || enwp.delete(wpFN, String.format("[[WP:CSD#F8|F8]]: Media file available on Commons: [[:%s]]", comFN));
+		}
+
+		/**
+		 * Processes parsed text and templates from the API
+		 */
+		public void gen()
+		{
+			if (comText != null)
+				return;
+
+			// Fetch the upload history while the description page is fetched and parsed
+			Map.Entry<WikiText, ArrayList<WTemplate>> parsed;
+			if (imgInfoL != null)
+				parsed = parse();
+			else
+				try (TaskScope scope = new TaskScope())
 				{
-					t.drop();
-					return true;
+					scope.fork(this::history);
+					TaskScope.Subtask<Map.Entry<WikiText, ArrayList<WTemplate>>> p = scope.fork(this::parse);
+					scope.join();
+
+					parsed = p.result();
 				}
-				return false;
-			});
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+
+			uploader = imgInfoL.get(imgInfoL.size() - 1).user;
+			WikiText docRoot = parsed.getKey();
+			ArrayList<WTemplate> masterTPL = parsed.getValue();
 
 			// Transform special Templates
 			WTemplate info = null;
@@ -403,42 +1164,88 @@ public class MTC
 			}
 
 			// Add any Commons-compatible top-level templates to License section.
+			DescriptionRenderer r = new DescriptionRenderer(enwpText.length());
 			masterTPL.retainAll(docRoot.getTemplates());
 			masterTPL.forEach(t -> {
-				licSection.append(String.format("%s%n", t));
+				r.license(t);
 				t.drop();
 			});
 
 			// fill-out an Information Template
-			sumSection.append(String.format("{{Information\n|description=%s\n|source=%s\n|date=%s\n|author=%s\n|permission=%s\n|other_versions=%s\n}}\n",
-					fuzzForParam(info, "Description", "") + docRoot.toString().trim(), fuzzForParam(info, "Source", isOwnWork ? "{{Own work by original uploader}}" : "").trim(),
-					fuzzForParam(info, "Date", "").trim(), fuzzForParam(info, "Author", isOwnWork ? String.format("[[User:%s|%s]]", uploader, uploader) : "").trim(),
-					fuzzForParam(info, "Permission", "").trim(), fuzzForParam(info, "Other_versions", "").trim()));
-
-			// Work with text as String
-			comText = sumSection.toString() + licSection.toString();
-			comText = comText.replaceAll("(?<=\\[\\[)(.+?\\]\\])", "w:$1"); // add enwp prefix to links
-			comText = comText.replaceAll("(?i)\\[\\[(w::|w:w:)", "[[w:"); // Remove any double colons in interwiki links
-			comText = comText.replaceAll("\\n{3,}", "\n"); // Remove excessive spacing
-
-			// Generate Upload Log Section
-			comText += "\n== {{Original upload log}} ==\n" + String.format("{{Original file page|en.wikipedia|%s}}%n", enwp.nss(wpFN))
-					+ "{| class=\"wikitable\"\n! {{int:filehist-datetime}} !! {{int:filehist-dimensions}} !! {{int:filehist-user}} " + "!! {{int:filehist-comment}}";
-
-			for (ImageInfo ii : imgInfoL)
-				comText += String.format("%n|-%n| %s || %d × %d || [[w:User:%s|%s]] || ''<nowiki>%s</nowiki>''", Dates.iso8601dtf.format(LocalDateTime.ofInstant(ii.timestamp, ZoneOffset.UTC)), ii.width,
-						ii.height, ii.user, ii.user, ii.summary.replace("\n", " ").replace("  ", " "));
-			comText += "\n|}\n";
-
-			// Fill in cats
-			if (cats.isEmpty())
-				comText += "\n{{Subst:Unc}}";
-			else
-				for (String s : cats)
-					comText += String.format("\n[[%s]]", com.convertIfNotInNS(s, NS.CATEGORY));
+			r.information(fuzzForParam(info, "Description", ""), docRoot.toString(), fuzzForParam(info, "Source", isOwnWork ? "{{Own work by original uploader}}" : ""),
+					fuzzForParam(info, "Date", ""), fuzzForParam(info, "Author", isOwnWork ? "[[User:" + uploader + "|" + uploader + "]]" : ""),
+					fuzzForParam(info, "Permission", ""), fuzzForParam(info, "Other_versions", ""));
+
+			// Generate Upload Log Section and fill in cats
+			ArrayList<String> comCats = new ArrayList<>(addCats.size() + 1);
+			if (useCheckNeededCat)
+				comCats.add(String.format("Category:Files uploaded by %s with MTC! (check needed)", enwp.whoami()));
+			for (String s : addCats)
+				comCats.add(com.convertIfNotInNS(s, NS.CATEGORY));
+
+			comText = r.render(enwp.nss(wpFN), imgInfoL, comCats, useTrackingCat);
+		}
+
+		/**
+		 * Fetches (unless prefetched) and parses the description page of this file, and drops templates which do not exist
+		 * on Commons.
+		 * 
+		 * @return The parsed description page, and its remaining templates (recursively).
+		 */
+		private Map.Entry<WikiText, ArrayList<WTemplate>> parse()
+		{
+			// preprocess text
+			String txt = rawText != null ? rawText : enwp.getPageText(wpFN);
+			rawText = null;
+			if (preview != null)
+				sourceText = txt;
+
+			txt = mtcRegex.matcher(txt).replaceAll(""); // strip copy to commons
+
+			enwpText = txt; // cache description page text
+
+			txt = WikiSanitizer.strip(txt); // strip comments, categories, headers, captions, and nobots
+
+			WikiText docRoot = WParser.parseText(enwp, txt);
+			ArrayList<WTemplate> masterTPL = docRoot.getTemplatesR();
+
+			// Normalize template titles
+			masterTPL.forEach(t -> {
+				t.normalizeTitle(enwp);
+
+				if (tpMap.containsKey(t.title))
+					t.title = tpMap.get(t.title);
+			});
+
+			// Filter Templates which are not on Commons
+			HashMap<String, Boolean> tpExists = new HashMap<>();
+			ArrayList<String> uncached = new ArrayList<>();
+			for (WTemplate t : masterTPL)
+			{
+				Boolean b = ctpCache.get(t.title);
+				if (b != null)
+					tpExists.put(t.title, b);
+				else
+					uncached.add(com.convertIfNotInNS(t.title, NS.TEMPLATE));
+			}
+
+			if (!uncached.isEmpty())
+				MQuery.exists(com, uncached).forEach((k, v) -> {
+					ctpCache.put(com.nss(k), v);
+					tpExists.put(com.nss(k), v);
+				});
+
+			masterTPL.removeIf(t -> {
+				if (tpExists.containsKey(t.title) && !tpExists.get(t.title))
+				{
+					dropped.add(t.title);
+					t.drop();
+					return true;
+				}
+				return false;
+			});
 
-			if (useTrackingCat)
-				comText += "\n[[Category:Uploaded with MTC!]]";
+			return Map.entry(docRoot, masterTPL);
 		}
 
 		/**
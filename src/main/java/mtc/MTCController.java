@@ -1,12 +1,12 @@
 package mtc;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.fastily.jwiki.core.NS;
 import org.fastily.jwiki.core.Wiki;
-import org.fastily.jwiki.util.FL;
 
 import javafx.application.Platform;
 import javafx.concurrent.Task;
@@ -14,9 +14,9 @@ import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.ComboBox;
+import javafx.scene.control.ListView;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.ProgressBar;
-import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import mtc.MTC.FileInfo;
 
@@ -34,12 +34,10 @@ public class MTCController
 	public static final String fxmlLoc = "MTC.fxml";
 
 	/**
-	 * Date format for prefixing output.
+	 * The log view for the UI
 	 */
-	private static DateTimeFormatter df = DateTimeFormatter.ofPattern("MMM dd, yyyy hh:mm:ss a");
-
 	@FXML
-	protected TextArea console;
+	protected ListView<String> console;
 
 	/**
 	 * The ProgressBar for the UI
@@ -82,6 +80,12 @@ public class MTCController
 	 */
 	@FXML
 	protected CheckMenuItem maintToggle;
+
+	/**
+	 * UI component toggling streaming of files straight from enwp into their Commons upload.
+	 */
+	@FXML
+	protected CheckMenuItem streamToggle;
 	
 	/**
 	 * The exit button in the menu
@@ -105,6 +109,11 @@ public class MTCController
 	 */
 	private MTC mtc;
 
+	/**
+	 * The log backing {@code console}.
+	 */
+	private ConsoleLog log;
+
 	/**
 	 * The most recently created TransferTask. This may or may not be running.
 	 */
@@ -119,8 +128,9 @@ public class MTCController
 	protected void initData(MTC mtc)
 	{
 		enwp = (this.mtc = mtc).enwp;
+		log = new ConsoleLog(console, MTC.mtcdata.resolve("logs"));
 
-		printToConsole(String.format("Hello %s, welcome to MTC!%n", enwp.whoami()));
+		printToConsole(String.format("Hello %s, welcome to MTC!", enwp.whoami()));
 		modeSelect.getItems().addAll(TransferMode.values());
 		deleteToggle.setDisable(!enwp.listUserRights(enwp.whoami()).contains("sysop"));
 	}
@@ -155,13 +165,22 @@ public class MTCController
 	}
 
 	/**
-	 * Adds a time-stamped message to the {@code console} TextArea.
+	 * Stops updating the log view and flushes the log file. Call when the MTC window is closed.
+	 */
+	protected void close()
+	{
+		if (log != null)
+			log.close();
+	}
+
+	/**
+	 * Adds a time-stamped message to the {@code console} log. Safe to call from any thread.
 	 * 
 	 * @param msg The new message to add.
 	 */
-	private synchronized void printToConsole(String msg)
+	private void printToConsole(String msg)
 	{
-		console.appendText(String.format("(%s): %s%n", LocalDateTime.now().format(df), msg));
+		log.log(msg);
 	}
 
 	/**
@@ -185,7 +204,7 @@ public class MTCController
 		/**
 		 * Titles of all files which could not be transferred.
 		 */
-		private ArrayList<String> fails = new ArrayList<>();
+		private List<String> fails = Collections.synchronizedList(new ArrayList<>());
 
 		/**
 		 * Constructor, creates a new TransferTask.
@@ -201,13 +220,13 @@ public class MTCController
 			mtc.ignoreFilter = filterToggle.isSelected();
 			mtc.deleteOnTransfer = deleteToggle.isSelected();
 			mtc.useCheckNeededCat = maintToggle.isSelected();
+			mtc.streamUploads = streamToggle.isSelected();
 
-			messageProperty().addListener((obv, o, n) -> printToConsole(n));
 			stateProperty().addListener((obv, o, n) -> {
 				switch (n)
 				{
 					case SCHEDULED:
-						console.clear();
+						log.clear();
 						startButton.setText("Cancel");
 						updateProgress(0, 1);
 						break;
@@ -223,143 +242,96 @@ public class MTCController
 				}
 			});
 
-			setOnCancelled(e -> updateMessage("You cancelled this transfer!"));
-			setOnFailed(e -> updateMessage("Something's not right."));
-			setOnSucceeded(e -> updateMessage(String.format("Task succeeded, with %d failures: %s", fails.size(), fails)));
+			setOnCancelled(e -> printToConsole("You cancelled this transfer!"));
+			setOnFailed(e -> printToConsole("Something's not right."));
+			setOnSucceeded(e -> printToConsole(String.format("Task succeeded, with %d failures: %s", fails.size(), fails)));
 
 			pb.progressProperty().bind(progressProperty());
 		}
 
 		/**
-		 * Performs the actual file transfer(s).
+		 * Performs the actual file transfer(s), then saves the Template cache and metrics, and closes the job journal.
 		 */
-		public Void call()
+		public Void call() throws InterruptedException
 		{
-			updateMessage("Please wait, querying server...");
-
-			ArrayList<String> fl;
-			switch (mode)
+			try
+			{
+				transfer();
+			}
+			finally
 			{
-				case FILE:
-					fl = FL.toSAL(enwp.convertIfNotInNS(userInput, NS.FILE));
-					break;
-				case CATEGORY:
-					fl = enwp.getCategoryMembers(enwp.convertIfNotInNS(userInput, NS.CATEGORY), NS.FILE);
-					break;
-				case USER:
-					fl = enwp.getUserUploads(enwp.nss(userInput));
-					break;
-				case TEMPLATE:
-					fl = enwp.whatTranscludesHere(enwp.convertIfNotInNS(userInput, NS.TEMPLATE), NS.FILE);
-					break;
-				case FILELINKS:
-					fl = enwp.getImagesOnPage(userInput);
-					break;
-				case LINKS:
-					fl = enwp.getLinksOnPage(true, userInput, NS.FILE);
-					break;
-				default:
-					fl = new ArrayList<>();
-					break;
+				MTC.ctpCache.save();
+
+				if (mtc.journal != null)
+					try
+					{
+						mtc.journal.close();
+					}
+					catch (Throwable e)
+					{
+						e.printStackTrace();
+					}
+
+				try
+				{
+					printToConsole("Metrics saved to " + mtc.metrics.dump(MTC.mtcdata.resolve("metrics")));
+				}
+				catch (Throwable e)
+				{
+					e.printStackTrace();
+				}
 			}
 
-			ArrayList<FileInfo> tol = mtc.makeTransferFile(fl);
-			int tolSize = tol.size();
+			return null;
+		}
+
+		/**
+		 * Performs the actual file transfer(s).
+		 */
+		private void transfer() throws InterruptedException
+		{
+			printToConsole("Please wait, querying server...");
 
-			// Checkpoint - kill Task now if cancelled
-			if (isCancelled())
-				return null;
+			String cats = catInput.getText().trim();
+			String[] catL = cats.isEmpty() ? null : cats.split("\\|");
 
-			// Apply Category information
-			if(!catInput.getText().trim().isEmpty())
+			try
 			{
-				String[] catL = catInput.getText().trim().split("\\|");
-				for(FileInfo t : tol)
-					t.addCat(catL);
+				mtc.journal = TransferJournal.create(mode, userInput, cats, mtc);
+				printToConsole(String.format("Job %s. If interrupted, resume it with: --resume %<s", mtc.journal.id));
 			}
-			
-			updateMessage(String.format("[Total/Filtered/Eligible]: [%d/%d/%d]", fl.size(), fl.size() - tolSize, tolSize));
-
-			if (tol.isEmpty())
+			catch (Throwable e)
 			{
-				updateMessage("Found no file(s) matching your request; verify your input(s) and/or disable the smart filter.");
-				updateProgress(0, 1);
+				e.printStackTrace();
+				mtc.journal = null;
 			}
-			else
-				for (int i = 0; i < tol.size() && !isCancelled(); i++)
-				{
-					FileInfo to = tol.get(i);
+			AtomicInteger total = new AtomicInteger(), eligible = new AtomicInteger(), done = new AtomicInteger();
 
-					updateProgress(i, tolSize);
-					updateMessage(String.format("Transfer [%d/%d]: %s", i, tolSize, to.wpFN));
+			// Apply Category information
+			mtc.addCats.clear();
+			if (catL != null)
+				mtc.addCats.addAll(Arrays.asList(catL));
 
-					if (!to.doTransfer())
-						fails.add(to.wpFN);
-				}
+			Iterable<FileInfo> tol = mtc.transferFiles(mode.titles(enwp, userInput), (n, e) -> {
+				int tt = total.addAndGet(n), et = eligible.addAndGet(e);
+				printToConsole(String.format("[Total/Filtered/Eligible]: [%d/%d/%d]", tt, tt - et, et));
+			});
 
-			return null;
-		}
-	}
+			new TransferPipeline(mtc).run(tol, this::isCancelled, (to, ok) -> {
+				int i = done.incrementAndGet(), et = eligible.get();
 
-	/**
-	 * Represents various supported file transfer modes.
-	 * 
-	 * @author Fastily
-	 *
-	 */
-	private enum TransferMode
-	{
-		/**
-		 * Represents the single file transfer mode.
-		 */
-		FILE("File"),
-	
-		/**
-		 * Represents category mass-transfer mode.
-		 */
-		CATEGORY("Category"),
-	
-		/**
-		 * Represents user uploads mass-transfer mode.
-		 */
-		USER("User"),
-	
-		/**
-		 * Represents template transclusions mass-transfer mode.
-		 */
-		TEMPLATE("Template"),
-	
-		/**
-		 * Represents all file links on a page mass-transfer mode.
-		 */
-		FILELINKS("Filelinks"),
-	
-		/**
-		 * Represents all file namespace links on a page mass-transfer mode.
-		 */
-		LINKS("Links");
-	
-		/**
-		 * Constructor, creates a new TransferMode.
-		 * 
-		 * @param name The user-suitable name to create this TransferMode with.
-		 */
-		private TransferMode(String name)
-		{
-			this.name = name;
-		}
-	
-		/**
-		 * The user-suitable name of this TransferMode.
-		 */
-		private String name;
-	
-		/**
-		 * Returns the user-suitable name of this TransferMode.
-		 */
-		public String toString()
-		{
-			return name;
+				updateProgress(i, et);
+				printToConsole(String.format("Transfer [%d/%d]: %s", i, et, to.wpFN));
+
+				if (!ok)
+					fails.add(to.wpFN);
+			});
+
+			if (eligible.get() == 0 && !isCancelled())
+			{
+				printToConsole("Found no file(s) matching your request; verify your input(s) and/or disable the smart filter.");
+				updateProgress(0, 1);
+			}
 		}
 	}
 }
\ No newline at end of file
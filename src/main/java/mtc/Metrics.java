@@ -0,0 +1,533 @@
+package mtc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.fastily.jwiki.core.Wiki;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Instrumentation for transfers: latency histograms per {@link Stage}, bytes moved, failures and retries by cause, and
+ * API requests per wiki. All counters are cumulative for the lifetime of this object and safe to update from any
+ * thread. They can be served in the Prometheus text format (see {@link #serve(int)}) and saved as JSON (see
+ * {@link #dump(Path)}).
+ *
+ * @author Fastily
+ *
+ */
+public class Metrics
+{
+	/**
+	 * Upper bounds, in seconds, of the latency histogram buckets. The last bucket ({@code +Inf}) is implied.
+	 */
+	private static final double[] buckets = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+	/**
+	 * Format of the names of metrics dumps.
+	 */
+	private static final DateTimeFormatter dumpFormat = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	/**
+	 * The time spent performing each Stage.
+	 */
+	private final EnumMap<Stage, Histogram> latency = new EnumMap<>(Stage.class);
+
+	/**
+	 * The number of times each Stage was performed, by stage and result ({@code ok} or {@code failed}).
+	 */
+	private final Family results = new Family("mtc_stage_results_total", "Stages performed, by result.", "stage", "result");
+
+	/**
+	 * The number of failed Stages, by stage and cause.
+	 */
+	private final Family failures = new Family("mtc_failures_total", "Failed stages, by cause.", "stage", "cause");
+
+	/**
+	 * The number of times a Stage retried part of its work, by stage and reason.
+	 */
+	private final Family retries = new Family("mtc_retries_total", "Work retried within a stage, by reason.", "stage", "reason");
+
+	/**
+	 * The number of transfer candidates skipped before any Stage was performed, by reason.
+	 */
+	private final Family skipped = new Family("mtc_skipped_total", "Files skipped before transfer, by reason.", "reason");
+
+	/**
+	 * The number of bytes moved, by direction ({@code download} from enwp or {@code upload} to Commons).
+	 */
+	private final Family bytes = new Family("mtc_bytes_total", "File bytes moved, by direction.", "direction");
+
+	/**
+	 * The number of HTTP requests sent, by wiki (host) and API action.
+	 */
+	private final Family requests = new Family("mtc_api_requests_total", "HTTP requests sent, by wiki and API action.", "wiki", "action");
+
+	/**
+	 * The number of HTTP error responses received, by wiki (host) and status code.
+	 */
+	private final Family httpErrors = new Family("mtc_http_errors_total", "HTTP error responses, by wiki and status code.", "wiki", "code");
+
+	/**
+	 * The cause of the current failure on each thread, as reported by the code which noticed it. Read and cleared when the
+	 * Stage finishes.
+	 */
+	private final ThreadLocal<String> cause = new ThreadLocal<>();
+
+	/**
+	 * Counts every request sent through an instrumented Wiki.
+	 */
+	private final Interceptor counter = chain -> {
+		Request r = chain.request();
+		String host = r.url().port() == HttpUrl.defaultPort(r.url().scheme()) ? r.url().host() : r.url().host() + ":" + r.url().port(), action = r.url().queryParameter("action");
+		requests.inc(1, host, action != null ? action : r.url().encodedPath().endsWith("api.php") ? "unknown" : "file");
+
+		Response resp = chain.proceed(r);
+		if (resp.code() >= 400)
+			httpErrors.inc(1, host, String.valueOf(resp.code()));
+
+		return resp;
+	};
+
+	/**
+	 * Constructor, creates a new, empty Metrics.
+	 */
+	public Metrics()
+	{
+		for (Stage s : Stage.values())
+			latency.put(s, new Histogram());
+	}
+
+	/**
+	 * Counts the API requests of {@code wiki} from now on. Instrumenting a Wiki more than once has no further effect.
+	 *
+	 * @param wiki The Wiki to instrument
+	 */
+	public void instrument(Wiki wiki)
+	{
+		try
+		{
+			WikiClient.addInterceptor(wiki, counter);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records that a Stage was performed.
+	 *
+	 * @param stage The Stage
+	 * @param nanos The time the Stage took, in nanoseconds.
+	 * @param ok Set true if the Stage succeeded
+	 */
+	public void stage(Stage stage, long nanos, boolean ok)
+	{
+		latency.get(stage).observe(nanos / 1e9);
+		results.inc(1, stage.toString(), ok ? "ok" : "failed");
+	}
+
+	/**
+	 * Records that a Stage failed.
+	 *
+	 * @param stage The Stage
+	 * @param cause A short, low-cardinality description of the cause, e.g. {@code sha1_mismatch} or an exception class.
+	 */
+	public void failure(Stage stage, String cause)
+	{
+		failures.inc(1, stage.toString(), cause);
+	}
+
+	/**
+	 * Records that a Stage retried part of its work.
+	 *
+	 * @param stage The Stage
+	 * @param reason A short, low-cardinality description of why.
+	 */
+	public void retry(Stage stage, String reason)
+	{
+		retries.inc(1, stage.toString(), reason);
+	}
+
+	/**
+	 * Records that transfer candidates were skipped before any Stage was performed.
+	 *
+	 * @param reason A short, low-cardinality description of why, e.g. {@code duplicate}.
+	 * @param n The number of candidates
+	 */
+	public void skipped(String reason, long n)
+	{
+		skipped.inc(n, reason);
+	}
+
+	/**
+	 * Records bytes downloaded from enwp.
+	 *
+	 * @param n The number of bytes
+	 */
+	public void downloaded(long n)
+	{
+		bytes.inc(n, "download");
+	}
+
+	/**
+	 * Records bytes uploaded to Commons.
+	 *
+	 * @param n The number of bytes
+	 */
+	public void uploaded(long n)
+	{
+		bytes.inc(n, "upload");
+	}
+
+	/**
+	 * Reports the cause of a failure in the Stage running on this thread. If several causes are reported, the first one
+	 * is kept, since later ones are usually consequences of it.
+	 *
+	 * @param cause A short, low-cardinality description of the cause
+	 */
+	public void cause(String cause)
+	{
+		if (this.cause.get() == null)
+			this.cause.set(cause);
+	}
+
+	/**
+	 * Reports an exception as the cause of a failure in the Stage running on this thread. Exceptions which only wrap the
+	 * exception of another thread (e.g. a failed subtask of a {@link TaskScope}) are reported as the wrapped exception.
+	 *
+	 * @param e The exception
+	 */
+	public void cause(Throwable e)
+	{
+		while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+			e = e.getCause();
+
+		cause(e.getClass().getSimpleName());
+	}
+
+	/**
+	 * Gets and clears the cause reported for the Stage running on this thread.
+	 *
+	 * @return The cause, or null if none was reported.
+	 */
+	public String takeCause()
+	{
+		String c = cause.get();
+		cause.remove();
+		return c;
+	}
+
+	/**
+	 * Renders every metric in the Prometheus text exposition format.
+	 *
+	 * @return The metrics, as text.
+	 */
+	public String prometheus()
+	{
+		StringBuilder sb = new StringBuilder(4096);
+
+		sb.append("# HELP mtc_stage_seconds Time spent performing each transfer stage.\n# TYPE mtc_stage_seconds histogram\n");
+		latency.forEach((s, h) -> {
+			long[] cumulative = h.cumulative();
+			for (int i = 0; i < cumulative.length; i++)
+				sb.append(String.format("mtc_stage_seconds_bucket{stage=\"%s\",le=\"%s\"} %d%n", s, i < buckets.length ? buckets[i] : "+Inf", cumulative[i]));
+
+			sb.append(String.format("mtc_stage_seconds_sum{stage=\"%s\"} %s%n", s, h.sum.sum()));
+			sb.append(String.format("mtc_stage_seconds_count{stage=\"%s\"} %d%n", s, cumulative[cumulative.length - 1]));
+		});
+
+		for (Family f : families())
+			f.prometheus(sb);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Renders every metric as JSON. Latencies include the total, count, and the upper bounds of the buckets holding the
+	 * median and 99th percentile.
+	 *
+	 * @return The metrics, as a JsonObject.
+	 */
+	public JsonObject toJson()
+	{
+		JsonObject stages = new JsonObject();
+		latency.forEach((s, h) -> {
+			long[] cumulative = h.cumulative();
+			long count = cumulative[cumulative.length - 1];
+			if (count == 0)
+				return;
+
+			JsonObject jo = new JsonObject();
+			jo.addProperty("count", count);
+			jo.addProperty("seconds", h.sum.sum());
+			jo.addProperty("p50", h.quantile(cumulative, 0.5));
+			jo.addProperty("p99", h.quantile(cumulative, 0.99));
+			stages.add(s.toString(), jo);
+		});
+
+		JsonObject jo = new JsonObject();
+		jo.add("stages", stages);
+		for (Family f : families())
+			jo.add(f.name.replaceFirst("^mtc_", "").replaceFirst("_total$", ""), f.toJson());
+
+		return jo;
+	}
+
+	/**
+	 * Saves every metric as JSON, in a new file named after the current time.
+	 *
+	 * @param dir The folder to save the file in. Created if it does not exist.
+	 * @return The path of the new file.
+	 * @throws IOException If the file could not be written.
+	 */
+	public Path dump(Path dir) throws IOException
+	{
+		Files.createDirectories(dir);
+
+		String name = LocalDateTime.now().format(dumpFormat);
+		Path p = dir.resolve(name + ".json");
+		for (int i = 2; Files.exists(p); i++)
+			p = dir.resolve(name + "-" + i + ".json");
+
+		return Files.writeString(p, new GsonBuilder().setPrettyPrinting().create().toJson(toJson()));
+	}
+
+	/**
+	 * Serves every metric in the Prometheus text format at {@code http://127.0.0.1:<port>/metrics}, until the returned
+	 * server is stopped. Only the loopback interface is bound.
+	 *
+	 * @param port The port to listen on. Set 0 to pick a free port.
+	 * @return The server.
+	 * @throws IOException If the server could not be started.
+	 */
+	public HttpServer serve(int port) throws IOException
+	{
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", ex -> {
+			byte[] b = prometheus().getBytes(StandardCharsets.UTF_8);
+			ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			ex.sendResponseHeaders(200, b.length);
+			try (OutputStream os = ex.getResponseBody())
+			{
+				os.write(b);
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "mtc-metrics");
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+
+		return server;
+	}
+
+	/**
+	 * Lists the counter families of this Metrics, in export order.
+	 *
+	 * @return The counter families.
+	 */
+	private List<Family> families()
+	{
+		return List.of(results, failures, retries, skipped, bytes, requests, httpErrors);
+	}
+
+	/**
+	 * A latency histogram with fixed buckets (see {@link Metrics#buckets}).
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Histogram
+	{
+		/**
+		 * The number of observations in each bucket. Not cumulative; the last bucket is {@code +Inf}.
+		 */
+		private final LongAdder[] counts = new LongAdder[buckets.length + 1];
+
+		/**
+		 * The sum of all observations, in seconds.
+		 */
+		private final DoubleAdder sum = new DoubleAdder();
+
+		/**
+		 * Constructor, creates a new, empty Histogram.
+		 */
+		private Histogram()
+		{
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+
+		/**
+		 * Records an observation.
+		 *
+		 * @param seconds The observation, in seconds.
+		 */
+		private void observe(double seconds)
+		{
+			int i = Arrays.binarySearch(buckets, seconds);
+			counts[i >= 0 ? i : -i - 1].increment();
+			sum.add(seconds);
+		}
+
+		/**
+		 * Gets a snapshot of the cumulative count of each bucket.
+		 *
+		 * @return The cumulative counts. The last element is the total count.
+		 */
+		private long[] cumulative()
+		{
+			long[] l = new long[counts.length];
+			for (int i = 0, n = 0; i < counts.length; i++)
+				l[i] = n += counts[i].sum();
+
+			return l;
+		}
+
+		/**
+		 * Estimates a quantile as the upper bound of the bucket holding it.
+		 *
+		 * @param cumulative A snapshot from {@link #cumulative()}
+		 * @param q The quantile, between 0 and 1.
+		 * @return The upper bound of the bucket, in seconds, or {@code Infinity} for the last bucket.
+		 */
+		private double quantile(long[] cumulative, double q)
+		{
+			long rank = (long) Math.ceil(q * cumulative[cumulative.length - 1]);
+			for (int i = 0; i < buckets.length; i++)
+				if (cumulative[i] >= rank)
+					return buckets[i];
+
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * A family of counters sharing a name and label names.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Family
+	{
+		/**
+		 * The name and help text of this family.
+		 */
+		private final String name, help;
+
+		/**
+		 * The label names of this family.
+		 */
+		private final String[] labels;
+
+		/**
+		 * The counters of this family, by label values.
+		 */
+		private final ConcurrentHashMap<List<String>, LongAdder> values = new ConcurrentHashMap<>();
+
+		/**
+		 * Constructor, creates a new Family.
+		 *
+		 * @param name The name of the family
+		 * @param help The help text of the family
+		 * @param labels The label names of the family
+		 */
+		private Family(String name, String help, String... labels)
+		{
+			this.name = name;
+			this.help = help;
+			this.labels = labels;
+		}
+
+		/**
+		 * Increments a counter.
+		 *
+		 * @param n The amount to add
+		 * @param labelValues The label values of the counter, in the order of {@link #labels}.
+		 */
+		private void inc(long n, String... labelValues)
+		{
+			values.computeIfAbsent(List.of(labelValues), k -> new LongAdder()).add(n);
+		}
+
+		/**
+		 * Renders this family in the Prometheus text exposition format.
+		 *
+		 * @param sb The output buffer
+		 */
+		private void prometheus(StringBuilder sb)
+		{
+			sb.append(String.format("# HELP %s %s%n# TYPE %s counter%n", name, help, name));
+			snapshot().forEach((k, v) -> {
+				ArrayList<String> l = new ArrayList<>();
+				for (int i = 0; i < labels.length; i++)
+					l.add(String.format("%s=\"%s\"", labels[i], k.get(i).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")));
+
+				sb.append(String.format("%s{%s} %d%n", name, String.join(",", l), v));
+			});
+		}
+
+		/**
+		 * Renders this family as JSON, nested by label value in the order of {@link #labels}.
+		 *
+		 * @return The family, as a JsonObject.
+		 */
+		private JsonObject toJson()
+		{
+			JsonObject root = new JsonObject();
+			snapshot().forEach((k, v) -> {
+				JsonObject jo = root;
+				for (int i = 0; i < k.size() - 1; i++)
+				{
+					if (!jo.has(k.get(i)))
+						jo.add(k.get(i), new JsonObject());
+					jo = jo.getAsJsonObject(k.get(i));
+				}
+				jo.addProperty(k.get(k.size() - 1), v);
+			});
+
+			return root;
+		}
+
+		/**
+		 * Gets a snapshot of the counters of this family, keyed by the label values joined with tabs (for sorting).
+		 *
+		 * @return The snapshot.
+		 */
+		private Map<List<String>, Long> snapshot()
+		{
+			TreeMap<List<String>, Long> m = new TreeMap<>((a, b) -> String.join("\t", a).compareTo(String.join("\t", b)));
+			values.forEach((k, v) -> m.put(k, v.sum()));
+			return m;
+		}
+	}
+}
\ No newline at end of file
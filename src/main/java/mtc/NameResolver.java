@@ -0,0 +1,140 @@
+package mtc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.fastily.jwiki.core.MQuery;
+import org.fastily.jwiki.core.Wiki;
+
+/**
+ * Picks Commons filenames for transfer candidates. Names which are free on Commons are used as is; the others get a
+ * random numeric suffix. Availability of all candidate names in a batch is checked with one batched query, and every
+ * name handed out is reserved so that no two files in a session are assigned the same name.
+ *
+ * @author Fastily
+ *
+ */
+public class NameResolver
+{
+	/**
+	 * The number of suffixed candidate names to generate per file per round.
+	 */
+	private static final int candidatesPerFile = 3;
+
+	/**
+	 * The maximum number of rounds to attempt before giving up on a file.
+	 */
+	private static final int maxRounds = 5;
+
+	/**
+	 * The Commons Wiki object to use
+	 */
+	private Wiki com;
+
+	/**
+	 * Commons filenames which have already been assigned in this session.
+	 */
+	private Set<String> reserved = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructor, creates a new NameResolver
+	 *
+	 * @param com The Commons Wiki object to use
+	 */
+	public NameResolver(Wiki com)
+	{
+		this.com = com;
+	}
+
+	/**
+	 * Assigns a Commons filename to each title in {@code titles}.
+	 *
+	 * @param titles The enwp titles to find Commons filenames for
+	 * @return A map of each enwp title to its assigned Commons filename. Titles which could not be assigned a name are
+	 *         omitted.
+	 */
+	public HashMap<String, String> resolve(Collection<String> titles)
+	{
+		HashMap<String, String> m = new HashMap<>();
+		ArrayList<String> pending = new ArrayList<>();
+
+		MQuery.exists(com, titles).forEach((k, v) -> {
+			if (!v && reserved.add(k))
+				m.put(k, k);
+			else
+				pending.add(k);
+		});
+
+		for (int round = 0; round < maxRounds && !pending.isEmpty(); round++)
+		{
+			HashMap<String, LinkedHashSet<String>> candidates = new HashMap<>();
+			LinkedHashSet<String> all = new LinkedHashSet<>();
+			for (String k : pending)
+			{
+				LinkedHashSet<String> l = new LinkedHashSet<>();
+				for (int tries = 0; l.size() < candidatesPerFile && tries < candidatesPerFile * 10; tries++)
+				{
+					String c = suffix(k);
+					if (!reserved.contains(c) && all.add(c))
+						l.add(c);
+				}
+				candidates.put(k, l);
+			}
+
+			HashMap<String, Boolean> exists = MQuery.exists(com, all);
+
+			ArrayList<String> next = new ArrayList<>();
+			for (String k : pending)
+			{
+				String pick = null;
+				for (String c : candidates.get(k))
+					if (Boolean.FALSE.equals(exists.get(c)) && reserved.add(c))
+					{
+						pick = c;
+						break;
+					}
+
+				if (pick != null)
+					m.put(k, pick);
+				else
+					next.add(k);
+			}
+
+			pending.clear();
+			pending.addAll(next);
+		}
+
+		for (String k : pending)
+			System.err.printf("Could not find an available Commons filename for '%s', skipping%n", k);
+
+		return m;
+	}
+
+	/**
+	 * Reserves a Commons filename which was assigned earlier, e.g. in an interrupted job which is being resumed, so that it
+	 * is not assigned to another file.
+	 *
+	 * @param title The Commons filename to reserve
+	 */
+	public void reserve(String title)
+	{
+		reserved.add(title);
+	}
+
+	/**
+	 * Generates a candidate filename by inserting a random number before the file extension.
+	 *
+	 * @param title The title to add a suffix to
+	 * @return The suffixed title.
+	 */
+	private static String suffix(String title)
+	{
+		int i = title.lastIndexOf('.');
+		return new StringBuilder(title).insert(i < 0 ? title.length() : i, " " + ThreadLocalRandom.current().nextInt(1000)).toString();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,207 @@
+package mtc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import mtc.MTC.FileInfo;
+
+/**
+ * A report of a dry run, for reviewing a job before transferring anything. The report is a gzipped JSON Lines file,
+ * written as the run goes. There is one line per generated file, with its enwp source text, the Commons text it would be
+ * uploaded with, and the templates which were dropped because they do not exist on Commons. There is one line per file
+ * which was skipped before generation, with the reason. The last line is a summary: counts by outcome, the most common
+ * reasons files were filtered out, and the most commonly dropped templates.
+ * <p>
+ * All methods are thread-safe, so generator threads can write to the report directly.
+ *
+ * @author Fastily
+ *
+ */
+public class PreviewReport implements AutoCloseable
+{
+	/**
+	 * The maximum number of entries in each ranking of the summary.
+	 */
+	private static final int topN = 50;
+
+	/**
+	 * Serializes the lines of the report.
+	 */
+	private static final Gson gson = new Gson();
+
+	/**
+	 * The path of the report.
+	 */
+	public final Path path;
+
+	/**
+	 * Writes the compressed report. Guarded by {@code this}.
+	 */
+	private final BufferedWriter out;
+
+	/**
+	 * The number of files generated, and of files which failed to generate. Guarded by {@code this}.
+	 */
+	private int generated = 0, failed = 0;
+
+	/**
+	 * The number of skipped files, by reason. Guarded by {@code this}.
+	 */
+	private final HashMap<String, Integer> skipped = new HashMap<>();
+
+	/**
+	 * The number of files filtered out, by the category or rule responsible. Guarded by {@code this}.
+	 */
+	private final HashMap<String, Integer> filtered = new HashMap<>();
+
+	/**
+	 * The number of times each template was dropped. Guarded by {@code this}.
+	 */
+	private final HashMap<String, Integer> dropped = new HashMap<>();
+
+	/**
+	 * Constructor, creates a new PreviewReport, replacing any file at {@code path}.
+	 *
+	 * @param path The path to write the report to. Its parent folder is created if it does not exist.
+	 * @throws IOException If the report could not be created.
+	 */
+	public PreviewReport(Path path) throws IOException
+	{
+		this.path = path;
+
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+
+		out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(path), 1 << 16), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * Records a file which went through generation.
+	 *
+	 * @param fi The file
+	 * @param error The exception thrown by generation, or null if there was none.
+	 */
+	public void generated(FileInfo fi, Throwable error)
+	{
+		JsonObject jo = new JsonObject();
+		jo.addProperty("type", "file");
+		jo.addProperty("title", fi.wpFN);
+		jo.addProperty("commons", fi.comFN);
+		jo.addProperty("source", fi.sourceText);
+		jo.addProperty("output", fi.comText);
+
+		JsonArray ja = new JsonArray();
+		fi.dropped.forEach(ja::add);
+		jo.add("dropped", ja);
+
+		if (error != null)
+			jo.addProperty("error", error.toString());
+
+		synchronized (this)
+		{
+			if (fi.comText != null && error == null)
+				generated++;
+			else
+				failed++;
+
+			for (String t : fi.dropped)
+				dropped.merge(t, 1, Integer::sum);
+
+			write(jo);
+		}
+	}
+
+	/**
+	 * Records a file which was skipped before generation.
+	 *
+	 * @param title The enwp title of the file
+	 * @param reason Why the file was skipped, e.g. {@code filter} or {@code duplicate}.
+	 * @param detail More specific information, e.g. the category which failed the filter. Optional, may be null.
+	 */
+	public void skipped(String title, String reason, String detail)
+	{
+		JsonObject jo = new JsonObject();
+		jo.addProperty("type", "skipped");
+		jo.addProperty("title", title);
+		jo.addProperty("reason", reason);
+		if (detail != null)
+			jo.addProperty("detail", detail);
+
+		synchronized (this)
+		{
+			skipped.merge(reason, 1, Integer::sum);
+			if (detail != null && reason.equals("filter"))
+				filtered.merge(detail, 1, Integer::sum);
+
+			write(jo);
+		}
+	}
+
+	/**
+	 * Writes the summary and closes the report.
+	 *
+	 * @throws IOException If the report could not be written.
+	 */
+	public synchronized void close() throws IOException
+	{
+		JsonObject counts = new JsonObject();
+		counts.addProperty("generated", generated);
+		counts.addProperty("failed", failed);
+		skipped.forEach(counts::addProperty);
+
+		JsonObject jo = new JsonObject();
+		jo.addProperty("type", "summary");
+		jo.add("counts", counts);
+		jo.add("filtered", top(filtered));
+		jo.add("droppedTemplates", top(dropped));
+
+		write(jo);
+		out.close();
+	}
+
+	/**
+	 * Writes one line of the report. Write errors are reported but otherwise ignored, so they do not fail the run. Caller
+	 * must hold the lock on {@code this}.
+	 *
+	 * @param jo The line to write
+	 */
+	private void write(JsonObject jo)
+	{
+		try
+		{
+			out.write(gson.toJson(jo));
+			out.write('\n');
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Ranks the entries of a counter.
+	 *
+	 * @param m The counter
+	 * @return The (at most {@link #topN}) largest entries, largest first, as a JsonObject.
+	 */
+	private static JsonObject top(HashMap<String, Integer> m)
+	{
+		JsonObject jo = new JsonObject();
+		m.entrySet().stream().sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey())).limit(topN)
+				.forEach(e -> jo.addProperty(e.getKey(), e.getValue()));
+
+		return jo;
+	}
+}
\ No newline at end of file
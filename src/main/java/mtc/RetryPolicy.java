@@ -0,0 +1,334 @@
+package mtc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.fastily.jwiki.core.Wiki;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Decides which failures are worth retrying, and how long to wait before each retry. A failure is transient if the
+ * server was overloaded or briefly unavailable (HTTP 408, 429, or 5xx other than 501 and 505; API errors such as
+ * {@code maxlag}, {@code ratelimited}, {@code readonly}, or {@code internal_api_error_*}), or if the network failed
+ * (an {@link IOException}). Anything else, e.g. a rejected edit or a bug, is permanent. Waits grow exponentially with
+ * every attempt, with jitter so that threads which failed together do not retry together.
+ * <p>
+ * A RetryPolicy can retry whole Stages (see {@link #run}), and idempotent (GET) requests of a Wiki (see
+ * {@link #instrument(Wiki)}).
+ *
+ * @author Fastily
+ *
+ */
+public class RetryPolicy
+{
+	/**
+	 * API error codes which mean the request may succeed if it is sent again.
+	 */
+	private static final Set<String> transientApiErrors = Set.of("maxlag", "ratelimited", "readonly", "badtoken", "stashfailed", "uploadstash-exception");
+
+	/**
+	 * Failure causes (see {@link Metrics#cause(String)}) other than HTTP and API errors which are transient. This includes
+	 * the names of network exceptions.
+	 */
+	private static final Set<String> transientCauses = Set.of("sha1_mismatch", "IOException", "UncheckedIOException", "InterruptedIOException",
+			"SocketTimeoutException", "SocketException", "ConnectException", "NoRouteToHostException", "UnknownHostException", "EOFException",
+			"SSLException", "StreamResetException", "ConnectionShutdownException", "ProtocolException");
+
+	/**
+	 * The longest {@code Retry-After} honoured, in milliseconds.
+	 */
+	private static final long maxRetryAfter = TimeUnit.MINUTES.toMillis(2);
+
+	/**
+	 * The maximum number of times something is attempted.
+	 */
+	public final int maxAttempts;
+
+	/**
+	 * The time to wait after the first failed attempt, in milliseconds. Doubles with every attempt.
+	 */
+	private final long baseBackoff;
+
+	/**
+	 * The longest time to wait between attempts, in milliseconds, excluding jitter.
+	 */
+	private final long maxBackoff;
+
+	/**
+	 * Records retries and the causes of failures. Optional, may be null.
+	 */
+	private final Metrics metrics;
+
+	/**
+	 * Retries GET requests which failed transiently, and reports the cause of requests which failed for good.
+	 */
+	private final Interceptor retrier = this::intercept;
+
+	/**
+	 * Constructor, creates a new RetryPolicy.
+	 *
+	 * @param maxAttempts The maximum number of times something is attempted.
+	 * @param baseBackoff The time to wait after the first failed attempt, in milliseconds. Doubles with every attempt.
+	 * @param maxBackoff The longest time to wait between attempts, in milliseconds, excluding jitter.
+	 * @param metrics Records retries and the causes of failures. Optional, set null to disable.
+	 */
+	public RetryPolicy(int maxAttempts, long baseBackoff, long maxBackoff, Metrics metrics)
+	{
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Retries the GET requests of {@code wiki} which fail transiently from now on, with backoff (honouring
+	 * {@code Retry-After}). Other requests are not retried, since they may not be idempotent. Either way, the cause of a
+	 * request which failed for good is reported to {@code metrics}. The retries happen outside every other interceptor, so
+	 * each attempt is counted and observed. Any WikiClient for {@code wiki} must be created after this is called.
+	 *
+	 * @param wiki The Wiki to retry requests of
+	 */
+	public void instrument(Wiki wiki)
+	{
+		try
+		{
+			WikiClient.addInterceptor(wiki, retrier, true);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Performs a Stage, retrying it while it fails transiently. The cause of each failed attempt is collected from
+	 * {@code metrics} (see {@link Metrics#cause(String)}); an attempt which failed without reporting a cause was rejected,
+	 * and is not retried. Before each retry, {@code applied} is asked whether the failed attempt took effect anyway (e.g.
+	 * the server made the edit, but its response was lost), in which case the Stage is not performed again.
+	 *
+	 * @param stage The Stage being performed
+	 * @param title The title of the file the Stage is performed on, for logging.
+	 * @param attempt Makes one attempt. Returns true on success.
+	 * @param applied Returns true if the Stage already took effect. Optional, set null if the Stage can always be repeated.
+	 * @return Null on success, or the cause of the last failure.
+	 */
+	public String run(Stage stage, String title, BooleanSupplier attempt, BooleanSupplier applied)
+	{
+		for (int n = 1;; n++)
+		{
+			String cause = attempt(attempt);
+			if (cause == null)
+				return null;
+			else if (n >= maxAttempts || !isTransient(cause))
+				return cause;
+
+			System.err.printf("%s of '%s' failed (%s), retrying [%d/%d]%n", stage, title, cause, n + 1, maxAttempts);
+			if (metrics != null)
+				metrics.retry(stage, cause);
+
+			try
+			{
+				Thread.sleep(backoff(n));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return cause;
+			}
+
+			try
+			{
+				if (applied != null && applied.getAsBoolean())
+				{
+					System.err.printf("%s of '%s' took effect after all%n", stage, title);
+					return null;
+				}
+			}
+			catch (Throwable e) // unknown, so try again
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Makes one attempt, and collects the cause of its failure.
+	 *
+	 * @param attempt Makes the attempt. Returns true on success.
+	 * @return Null on success, or the cause of the failure: the first cause reported to {@code metrics}, the exception
+	 *         thrown, or {@code rejected}, in that order.
+	 */
+	private String attempt(BooleanSupplier attempt)
+	{
+		String cause = null;
+		if (metrics != null)
+			metrics.takeCause();
+
+		try
+		{
+			if (attempt.getAsBoolean())
+				return null;
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			cause = e.getClass().getSimpleName();
+			if (metrics != null)
+				metrics.cause(e);
+		}
+
+		String reported = metrics != null ? metrics.takeCause() : null;
+		return reported != null ? reported : cause != null ? cause : "rejected";
+	}
+
+	/**
+	 * Computes how long to wait after a failed attempt.
+	 *
+	 * @param attempt The number of the attempt which failed, starting at 1.
+	 * @return The time to wait, in milliseconds.
+	 */
+	public long backoff(int attempt)
+	{
+		return Math.min(maxBackoff, baseBackoff << Math.min(attempt - 1, 30)) + ThreadLocalRandom.current().nextLong(baseBackoff / 4 + 1);
+	}
+
+	/**
+	 * Sends a request, retrying it with backoff while it fails transiently, if it is a GET request. Reports the cause of a
+	 * request which failed for good.
+	 *
+	 * @param chain The interceptor chain
+	 * @return The response to the last attempt.
+	 * @throws IOException If the last attempt failed with a network error, or if the thread was interrupted while waiting.
+	 */
+	private Response intercept(Interceptor.Chain chain) throws IOException
+	{
+		Request r = chain.request();
+		boolean idempotent = r.method().equals("GET");
+		for (int attempt = 1;; attempt++)
+		{
+			Response resp;
+			try
+			{
+				resp = chain.proceed(r);
+			}
+			catch (IOException e)
+			{
+				if (!idempotent || attempt >= maxAttempts || chain.call().isCanceled())
+				{
+					if (metrics != null)
+						metrics.cause(e);
+					throw e;
+				}
+
+				sleep(backoff(attempt), e);
+				continue;
+			}
+
+			if (!isTransient(resp.code()))
+				return resp;
+			else if (!idempotent || attempt >= maxAttempts)
+			{
+				if (metrics != null)
+					metrics.cause("http_" + resp.code());
+				return resp;
+			}
+
+			long wait = Math.max(backoff(attempt), retryAfter(resp.header("Retry-After")));
+			resp.close();
+			sleep(wait, null);
+		}
+	}
+
+	/**
+	 * Waits before the next attempt of a request.
+	 *
+	 * @param millis The time to wait, in milliseconds.
+	 * @param failure The exception which failed the last attempt, if any. Rethrown if the wait is interrupted.
+	 * @throws IOException If the thread was interrupted while waiting.
+	 */
+	private static void sleep(long millis, IOException failure) throws IOException
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw failure != null ? failure : new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+
+	/**
+	 * Determines if an HTTP status code means the request may succeed if it is sent again.
+	 *
+	 * @param code The HTTP status code
+	 * @return True if the request should be retried.
+	 */
+	public static boolean isTransient(int code)
+	{
+		return code == 408 || code == 429 || code >= 500 && code != 501 && code != 505;
+	}
+
+	/**
+	 * Determines if an API error code means the request may succeed if it is sent again.
+	 *
+	 * @param code The API error code
+	 * @return True if the request should be retried.
+	 */
+	public static boolean isTransientApiError(String code)
+	{
+		return transientApiErrors.contains(code) || code.startsWith("internal_api_error") || code.startsWith("backend-fail");
+	}
+
+	/**
+	 * Determines if the cause of a failure, as reported to {@link Metrics#cause(String)}, means the operation may succeed
+	 * if it is attempted again.
+	 *
+	 * @param cause The cause, e.g. {@code http_503}, {@code api_maxlag}, or the name of an exception.
+	 * @return True if the operation should be retried.
+	 */
+	public static boolean isTransient(String cause)
+	{
+		if (cause == null)
+			return false;
+		else if (cause.startsWith("http_"))
+			try
+			{
+				return isTransient(Integer.parseInt(cause.substring(5)));
+			}
+			catch (NumberFormatException e)
+			{
+				return false;
+			}
+		else if (cause.startsWith("api_"))
+			return isTransientApiError(cause.substring(4));
+
+		return transientCauses.contains(cause) || isTransientApiError(cause);
+	}
+
+	/**
+	 * Parses a {@code Retry-After} header given in seconds. HTTP dates are not supported.
+	 *
+	 * @param header The value of the header. May be null.
+	 * @return The time to wait, in milliseconds, or 0 if {@code header} was missing or unparseable.
+	 */
+	public static long retryAfter(String header)
+	{
+		try
+		{
+			return header == null ? 0 : Math.min(maxRetryAfter, TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim())));
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+}
\ No newline at end of file
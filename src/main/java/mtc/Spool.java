@@ -0,0 +1,451 @@
+package mtc;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * The folder downloaded files are kept in until they are uploaded. Files are named after their SHA-1, so files with the
+ * same contents share one download, and different files never collide. The spool has a byte budget: before a download
+ * starts, space for it is reserved, and if there is not enough, the least recently used files which no transfer is
+ * using are deleted. If every file is in use, the download waits for space (for at most {@link #maxWait}, after which
+ * the budget is overshot rather than risking a stall).
+ * <p>
+ * A transfer holds a {@link Lease} on its file from download until upload. Once the upload is confirmed the file is
+ * deleted; if the transfer fails, the file (or the partial download) is kept so that a retry can reuse it, until it is
+ * evicted. When the spool is opened, anything in its folder which is not a spooled file is deleted, and it is then
+ * trimmed to its budget.
+ * <p>
+ * The folder is locked while open, so two processes never use it at the same time. If another process has it, the
+ * spool uses the first free numbered subfolder instead ({@code 1}, {@code 2}, ...), each with its own lock and budget, so
+ * several MTC processes can run at once, and a later run still finds the files a failed run left behind.
+ *
+ * @author Fastily
+ *
+ */
+public class Spool
+{
+	/**
+	 * The names of spooled files.
+	 */
+	private static final Pattern entryName = Pattern.compile("[0-9a-f]{40}");
+
+	/**
+	 * The suffix MTC gives partial downloads.
+	 */
+	private static final String partSuffix = ".part";
+
+	/**
+	 * The name of the lock file.
+	 */
+	private static final String lockName = ".lock";
+
+	/**
+	 * The number of folders (the root and its numbered subfolders) processes can spool in at the same time.
+	 */
+	private static final int maxFolders = 16;
+
+	/**
+	 * The folders locked by Spools in this process.
+	 */
+	private static final Set<Path> locked = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The longest time, in milliseconds, a download waits for space before the budget is overshot.
+	 */
+	private static final long maxWait = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * The root folder of the spool.
+	 */
+	public final Path root;
+
+	/**
+	 * The folder files are spooled in: {@code root}, or a numbered subfolder of it if another process is using
+	 * {@code root}. Null until the spool is opened. Guarded by {@code this}.
+	 */
+	private Path dir;
+
+	/**
+	 * The maximum number of bytes to spool.
+	 */
+	public final long budget;
+
+	/**
+	 * The spooled files by SHA-1, least recently used first. Guarded by {@code this}.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The number of bytes reserved by spooled files. Guarded by {@code this}.
+	 */
+	private long used = 0;
+
+	/**
+	 * The lock on {@code dir}. Null until the spool is opened. Guarded by {@code this}.
+	 */
+	private FileLock lock;
+
+	/**
+	 * Constructor, creates a new Spool. Call {@link #open()} before using it.
+	 *
+	 * @param root The root folder of the spool. Created if it does not exist.
+	 * @param budget The maximum number of bytes to spool.
+	 */
+	public Spool(Path root, long budget)
+	{
+		this.root = root;
+		this.budget = budget;
+	}
+
+	/**
+	 * Opens the spool: locks the first folder no other process is using, deletes orphans (anything which is not a spooled file or partial download, and
+	 * partial downloads which were completed), and evicts files until the spool is within budget. Does nothing if the
+	 * spool is already open.
+	 *
+	 * @throws IOException If the folder could not be created or read, or if every folder is in use by another process
+	 *         (or Spool).
+	 */
+	public synchronized void open() throws IOException
+	{
+		if (lock != null)
+			return;
+
+		for (int i = 0; lock == null && i < maxFolders; i++)
+		{
+			Path d = i == 0 ? root : root.resolve(String.valueOf(i));
+			// skip folders of other Spools in this process, since closing a second channel to a lock file releases its lock
+			if (!locked.add(d.toAbsolutePath().normalize()))
+				continue;
+
+			Files.createDirectories(d);
+			FileChannel ch = FileChannel.open(d.resolve(lockName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try
+			{
+				lock = ch.tryLock();
+			}
+			catch (OverlappingFileLockException e)
+			{
+				lock = null;
+			}
+
+			if (lock != null)
+				dir = d;
+			else
+			{
+				ch.close();
+				locked.remove(d.toAbsolutePath().normalize());
+			}
+		}
+
+		if (lock == null)
+			throw new IOException(String.format("The spool at %s is in use: all %d of its folders are locked by other MTC processes", root, maxFolders));
+
+		ArrayList<Path> found = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir))
+		{
+			for (Path p : ds)
+			{
+				String name = p.getFileName().toString();
+				if (name.equals(lockName) || !Files.isRegularFile(p))
+					continue;
+
+				String key = name.endsWith(partSuffix) ? name.substring(0, name.length() - partSuffix.length()) : name;
+				if (!entryName.matcher(key).matches() || name.endsWith(partSuffix) && Files.exists(dir.resolve(key)))
+					delete(p);
+				else
+					found.add(p);
+			}
+		}
+
+		found.sort(Comparator.comparing(p -> {
+			try
+			{
+				return Files.getLastModifiedTime(p);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+		for (Path p : found)
+		{
+			String key = p.getFileName().toString().replace(partSuffix, "");
+			Entry e = new Entry(key);
+			e.size = Files.size(p);
+			entries.put(key, e);
+			used += e.size;
+		}
+
+		Iterator<Entry> it = entries.values().iterator();
+		while (used > budget && it.hasNext())
+		{
+			Entry e = it.next();
+			it.remove();
+			evict(e);
+		}
+
+		System.err.printf("Spool at %s holds %d file(s), %d of %d bytes%n", dir, entries.size(), used, budget);
+	}
+
+	/**
+	 * Reserves space for a file, waiting for space to free up if necessary, and pins it so it is not evicted.
+	 *
+	 * @param sha1 The SHA-1 of the file, as a hex String.
+	 * @param size The size of the file, in bytes.
+	 * @return A Lease on the file. Release it when done.
+	 * @throws InterruptedException If the thread was interrupted while waiting for space.
+	 * @throws IllegalArgumentException If {@code sha1} is not a SHA-1.
+	 */
+	public synchronized Lease acquire(String sha1, long size) throws InterruptedException
+	{
+		String key = sha1 == null ? "" : sha1.toLowerCase(Locale.ROOT);
+		if (!entryName.matcher(key).matches())
+			throw new IllegalArgumentException("Not a SHA-1: " + sha1);
+
+		long deadline = System.currentTimeMillis() + maxWait;
+		while (true)
+		{
+			Entry e = entries.get(key);
+			if (e != null)
+			{
+				if (size > e.size) // e.g. a partial download found by open()
+				{
+					used += size - e.size;
+					e.size = size;
+				}
+
+				e.refs++;
+				return new Lease(e);
+			}
+
+			if (used + size <= budget || used == 0)
+				break;
+
+			Entry victim = null;
+			for (Entry x : entries.values())
+				if (x.refs == 0)
+				{
+					victim = x;
+					break;
+				}
+
+			long wait = deadline - System.currentTimeMillis();
+			if (victim != null)
+			{
+				entries.remove(victim.sha1);
+				evict(victim);
+			}
+			else if (wait > 0)
+				wait(wait);
+			else
+			{
+				System.err.printf("Spool is over budget (%d + %d of %d bytes) and every file is in use, not waiting any longer%n", used, size, budget);
+				break;
+			}
+		}
+
+		Entry e = new Entry(key);
+		e.size = size;
+		e.refs = 1;
+		entries.put(key, e);
+		used += size;
+
+		return new Lease(e);
+	}
+
+	/**
+	 * Gets the number of bytes reserved by spooled files.
+	 *
+	 * @return The number of bytes reserved.
+	 */
+	public synchronized long used()
+	{
+		return used;
+	}
+
+	/**
+	 * Unpins a file. Deletes it if {@code delete} is set and no other Lease holds it.
+	 *
+	 * @param e The file to unpin
+	 * @param delete Set true to delete the file, e.g. because it was uploaded.
+	 */
+	private synchronized void release(Entry e, boolean delete)
+	{
+		e.refs--;
+		if (delete && e.refs == 0 && entries.get(e.sha1) == e)
+		{
+			entries.remove(e.sha1);
+			evict(e);
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Deletes a file which was removed from {@code entries}, and its partial download, and frees its space. Caller must
+	 * hold the lock on {@code this}.
+	 *
+	 * @param e The file to delete
+	 */
+	private void evict(Entry e)
+	{
+		delete(e.path);
+		delete(e.path.resolveSibling(e.sha1 + partSuffix));
+		used -= e.size;
+		notifyAll();
+	}
+
+	/**
+	 * Deletes a file, if it exists. Errors are reported but otherwise ignored.
+	 *
+	 * @param p The file to delete
+	 */
+	private static void delete(Path p)
+	{
+		try
+		{
+			Files.deleteIfExists(p);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A spooled file.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private class Entry
+	{
+		/**
+		 * The SHA-1 of the file, in lowercase hex.
+		 */
+		private final String sha1;
+
+		/**
+		 * The path of the file.
+		 */
+		private final Path path;
+
+		/**
+		 * The number of bytes reserved for the file. Guarded by the Spool.
+		 */
+		private long size;
+
+		/**
+		 * The number of Leases holding the file. Guarded by the Spool.
+		 */
+		private int refs;
+
+		/**
+		 * Held while the file is written.
+		 */
+		private final ReentrantLock writer = new ReentrantLock();
+
+		/**
+		 * Constructor, creates a new Entry.
+		 *
+		 * @param sha1 The SHA-1 of the file, in lowercase hex.
+		 */
+		private Entry(String sha1)
+		{
+			this.sha1 = sha1;
+			path = dir.resolve(sha1);
+		}
+	}
+
+	/**
+	 * A transfer's hold on a spooled file. The file is not evicted while any Lease on it is held. Only the first call to
+	 * {@link #release(boolean)} (or {@link #close()}) has an effect.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	public class Lease implements AutoCloseable
+	{
+		/**
+		 * The path of the file. It may not have been downloaded yet.
+		 */
+		public final Path path;
+
+		/**
+		 * The file held.
+		 */
+		private final Entry e;
+
+		/**
+		 * Flag indicating that this Lease was released.
+		 */
+		private boolean released = false;
+
+		/**
+		 * Constructor, creates a new Lease.
+		 *
+		 * @param e The file to hold
+		 */
+		private Lease(Entry e)
+		{
+			this.e = e;
+			path = e.path;
+		}
+
+		/**
+		 * Waits until no other Lease is writing the file, then claims the right to write it. Files with the same contents
+		 * share a path, so write (e.g. download) only while holding this. Call {@link #unlock()} when done.
+		 */
+		public void lock()
+		{
+			e.writer.lock();
+		}
+
+		/**
+		 * Gives up the right to write the file, as claimed by {@link #lock()}.
+		 */
+		public void unlock()
+		{
+			e.writer.unlock();
+		}
+
+		/**
+		 * Releases this Lease.
+		 *
+		 * @param delete Set true to delete the file (unless another Lease holds it), e.g. because it was uploaded.
+		 */
+		public synchronized void release(boolean delete)
+		{
+			if (released)
+				return;
+
+			released = true;
+			Spool.this.release(e, delete);
+		}
+
+		/**
+		 * Releases this Lease, keeping the file.
+		 */
+		public void close()
+		{
+			release(false);
+		}
+	}
+}
\ No newline at end of file
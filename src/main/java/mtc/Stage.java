@@ -0,0 +1,58 @@
+package mtc;
+
+/**
+ * The steps a file passes through while it is being transferred to Commons.
+ *
+ * @author Fastily
+ *
+ */
+public enum Stage
+{
+	/**
+	 * Generating the Commons file description page.
+	 */
+	GENERATE("generate"),
+
+	/**
+	 * Downloading the file from enwp.
+	 */
+	DOWNLOAD("download"),
+
+	/**
+	 * Uploading the file to Commons.
+	 */
+	UPLOAD("upload"),
+
+	/**
+	 * Tagging the enwp file description page with {@code ncd}.
+	 */
+	EDIT("edit"),
+
+	/**
+	 * Deleting the file on enwp.
+	 */
+	DELETE("delete");
+
+	/**
+	 * The user-suitable name of this Stage.
+	 */
+	private String name;
+
+	/**
+	 * Constructor, creates a new Stage.
+	 *
+	 * @param name The user-suitable name to create this Stage with.
+	 */
+	private Stage(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Returns the user-suitable name of this Stage.
+	 */
+	public String toString()
+	{
+		return name;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,247 @@
+package mtc;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the independent parts of one task concurrently, and makes sure none of them outlives the task. Subtasks are
+ * forked from the owning thread, which then joins them; if any subtask fails, the others are cancelled, and
+ * {@link #join()} rethrows its exception. Closing the scope (e.g. because the owner was interrupted while joining)
+ * cancels every subtask which is still running and waits for it to stop, so use it with try-with-resources.
+ * <p>
+ * Subtasks run on virtual threads if the JVM supports them (Java 21+), since they mostly wait on the network. Otherwise
+ * they run on a shared pool of daemon threads.
+ *
+ * @author Fastily
+ *
+ */
+public class TaskScope implements AutoCloseable
+{
+	/**
+	 * Runs the subtasks of every TaskScope.
+	 */
+	private static final ExecutorService executor = newExecutor();
+
+	/**
+	 * The subtasks forked so far. Guarded by {@code this}.
+	 */
+	private final ArrayList<Subtask<?>> subtasks = new ArrayList<>();
+
+	/**
+	 * The number of subtasks which have not stopped running. Guarded by {@code this}.
+	 */
+	private int running = 0;
+
+	/**
+	 * The exception thrown by the first subtask which failed. Null if none failed. Guarded by {@code this}.
+	 */
+	private Throwable failure;
+
+	/**
+	 * Flag indicating that this scope was closed. Guarded by {@code this}.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Starts a subtask.
+	 *
+	 * @param <T> The type of the result of the subtask
+	 * @param task The subtask
+	 * @return The Subtask, for its result once {@link #join()} returned.
+	 * @throws IllegalStateException If this scope was closed.
+	 */
+	public <T> Subtask<T> fork(Callable<T> task)
+	{
+		Subtask<T> s = new Subtask<>(task);
+		synchronized (this)
+		{
+			if (closed)
+				throw new IllegalStateException("TaskScope is closed");
+
+			subtasks.add(s);
+			running++;
+		}
+
+		executor.execute(s);
+		return s;
+	}
+
+	/**
+	 * Waits until every subtask finished, or one of them failed.
+	 *
+	 * @throws InterruptedException If the calling thread was interrupted while waiting. Subtasks are cancelled by
+	 *            {@link #close()}.
+	 * @throws CompletionException If a subtask failed with a checked exception, which is the cause. Unchecked exceptions
+	 *            are rethrown as is.
+	 */
+	public synchronized void join() throws InterruptedException
+	{
+		while (running > 0 && failure == null)
+			wait();
+
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		else if (failure instanceof Error)
+			throw (Error) failure;
+		else if (failure != null)
+			throw new CompletionException(failure);
+	}
+
+	/**
+	 * Cancels (interrupts) every subtask which is still running, and waits for them to stop.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		cancelAll();
+
+		boolean interrupted = false;
+		while (running > 0)
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Cancels every subtask. Caller must hold the lock on {@code this}.
+	 */
+	private void cancelAll()
+	{
+		for (Subtask<?> s : subtasks)
+			s.cancel(true);
+	}
+
+	/**
+	 * Called when a subtask completes, fails, or is cancelled. Cancels the other subtasks if it failed.
+	 *
+	 * @param s The subtask
+	 */
+	private synchronized void completed(Subtask<?> s)
+	{
+		if (failure == null && !s.isCancelled())
+			try
+			{
+				s.get();
+			}
+			catch (ExecutionException e)
+			{
+				failure = e.getCause();
+				cancelAll();
+			}
+			catch (InterruptedException e) // not possible, s is done
+			{
+				Thread.currentThread().interrupt();
+			}
+
+		notifyAll();
+	}
+
+	/**
+	 * Called when the thread running a subtask is done with it.
+	 */
+	private synchronized void stopped()
+	{
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Creates the executor for subtasks.
+	 *
+	 * @return An executor which starts a virtual thread per task, or a cached pool of daemon threads if virtual threads are
+	 *         not supported.
+	 */
+	private static ExecutorService newExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "mtc-task");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * A subtask, which reports to its scope when it completes, and when its thread is done with it. A subtask cancelled
+	 * before it started still runs (and returns immediately), so every subtask is reported as stopped exactly once.
+	 *
+	 * @author Fastily
+	 *
+	 * @param <T> The type of the result of the subtask
+	 */
+	public class Subtask<T> extends FutureTask<T>
+	{
+		/**
+		 * Constructor, creates a new Subtask.
+		 *
+		 * @param task The work to perform
+		 */
+		private Subtask(Callable<T> task)
+		{
+			super(task);
+		}
+
+		/**
+		 * Gets the result of this subtask. Call after {@link TaskScope#join()} returned normally.
+		 *
+		 * @return The result
+		 * @throws IllegalStateException If this subtask did not complete successfully.
+		 */
+		public T result()
+		{
+			if (!isDone() || isCancelled())
+				throw new IllegalStateException("Subtask did not complete");
+
+			try
+			{
+				return get();
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				throw new IllegalStateException("Subtask did not complete", e);
+			}
+		}
+
+		/**
+		 * Performs the work, then reports that this subtask stopped.
+		 */
+		public void run()
+		{
+			try
+			{
+				super.run();
+			}
+			finally
+			{
+				stopped();
+			}
+		}
+
+		/**
+		 * Reports that this subtask completed.
+		 */
+		protected void done()
+		{
+			completed(this);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,233 @@
+package mtc;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe cache of whether a Template exists on Commons. Entries expire after a set time, with negative entries
+ * expiring sooner than positive ones, and the number of entries is capped. The cache can be saved to and loaded from
+ * disk, so that it outlives a session.
+ *
+ * @author Fastily
+ *
+ */
+public class TemplateCache
+{
+	/**
+	 * Default lifetime of entries for Templates which exist.
+	 */
+	private static final Duration defaultPosTTL = Duration.ofDays(7);
+
+	/**
+	 * Default lifetime of entries for Templates which do not exist.
+	 */
+	private static final Duration defaultNegTTL = Duration.ofDays(1);
+
+	/**
+	 * The backing map. Keys are Template titles without namespace prefix.
+	 */
+	private final ConcurrentHashMap<String, Entry> m = new ConcurrentHashMap<>();
+
+	/**
+	 * The file to save this cache to.
+	 */
+	private final Path file;
+
+	/**
+	 * The maximum number of entries to keep.
+	 */
+	private final int maxSize;
+
+	/**
+	 * The lifetime, in milliseconds, of positive and negative entries respectively.
+	 */
+	private final long posTTL, negTTL;
+
+	/**
+	 * Constructor, creates a TemplateCache with default size cap and lifetimes.
+	 *
+	 * @param file The file to save this cache to.
+	 */
+	public TemplateCache(Path file)
+	{
+		this(file, 10000, defaultPosTTL, defaultNegTTL);
+	}
+
+	/**
+	 * Constructor, creates a TemplateCache.
+	 *
+	 * @param file The file to save this cache to.
+	 * @param maxSize The maximum number of entries to keep.
+	 * @param posTTL The lifetime of entries for Templates which exist.
+	 * @param negTTL The lifetime of entries for Templates which do not exist.
+	 */
+	public TemplateCache(Path file, int maxSize, Duration posTTL, Duration negTTL)
+	{
+		this.file = file;
+		this.maxSize = maxSize;
+		this.posTTL = posTTL.toMillis();
+		this.negTTL = negTTL.toMillis();
+	}
+
+	/**
+	 * Looks up a Template.
+	 *
+	 * @param title The title of the Template, without namespace prefix.
+	 * @return True if the Template exists, false if it does not, or null if it is not cached (or the entry expired).
+	 */
+	public Boolean get(String title)
+	{
+		Entry e = m.get(title);
+		if (e == null)
+			return null;
+
+		if (e.isExpired(System.currentTimeMillis()))
+		{
+			m.remove(title, e);
+			return null;
+		}
+
+		return e.exists;
+	}
+
+	/**
+	 * Records whether a Template exists.
+	 *
+	 * @param title The title of the Template, without namespace prefix.
+	 * @param exists Set true if the Template exists.
+	 */
+	public void put(String title, boolean exists)
+	{
+		m.put(title, new Entry(exists, System.currentTimeMillis() + (exists ? posTTL : negTTL)));
+
+		if (m.size() > maxSize)
+			evict();
+	}
+
+	/**
+	 * Drops expired entries, then the entries closest to expiring, until this cache is at 90% of its size cap.
+	 */
+	private synchronized void evict()
+	{
+		if (m.size() <= maxSize)
+			return;
+
+		long now = System.currentTimeMillis();
+		m.values().removeIf(e -> e.isExpired(now));
+
+		int excess = m.size() - maxSize * 9 / 10;
+		if (excess <= 0)
+			return;
+
+		ArrayList<Map.Entry<String, Entry>> l = new ArrayList<>(m.entrySet());
+		l.sort(Comparator.comparingLong(e -> e.getValue().expires));
+		for (int i = 0; i < excess && i < l.size(); i++)
+			m.remove(l.get(i).getKey(), l.get(i).getValue());
+	}
+
+	/**
+	 * Loads entries previously saved with {@link #save()}. Expired and malformed entries are skipped. Does nothing if there
+	 * is no saved cache.
+	 */
+	public void load()
+	{
+		if (!Files.isRegularFile(file))
+			return;
+
+		long now = System.currentTimeMillis();
+		try
+		{
+			for (String line : Files.readAllLines(file))
+			{
+				String[] splits = line.split("\t");
+				if (splits.length != 3)
+					continue;
+
+				Entry e = new Entry(splits[1].equals("1"), Long.parseLong(splits[2]));
+				if (!e.isExpired(now))
+					m.putIfAbsent(splits[0], e);
+			}
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+
+		if (m.size() > maxSize)
+			evict();
+	}
+
+	/**
+	 * Saves unexpired entries to disk. The file is replaced atomically, so a crash while saving leaves the previous copy
+	 * intact.
+	 */
+	public synchronized void save()
+	{
+		long now = System.currentTimeMillis();
+		try
+		{
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (BufferedWriter w = Files.newBufferedWriter(tmp))
+			{
+				for (Map.Entry<String, Entry> e : m.entrySet())
+					if (!e.getValue().isExpired(now))
+						w.write(String.format("%s\t%d\t%d%n", e.getKey(), e.getValue().exists ? 1 : 0, e.getValue().expires));
+			}
+
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * A cached lookup result.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Entry
+	{
+		/**
+		 * Flag indicating if the Template exists.
+		 */
+		private final boolean exists;
+
+		/**
+		 * The time, in milliseconds since the epoch, at which this entry expires.
+		 */
+		private final long expires;
+
+		/**
+		 * Constructor, creates a new Entry.
+		 *
+		 * @param exists Set true if the Template exists.
+		 * @param expires The time, in milliseconds since the epoch, at which this entry expires.
+		 */
+		private Entry(boolean exists, long expires)
+		{
+			this.exists = exists;
+			this.expires = expires;
+		}
+
+		/**
+		 * Determines if this entry has expired.
+		 *
+		 * @param now The current time, in milliseconds since the epoch.
+		 * @return True if this entry has expired.
+		 */
+		private boolean isExpired(long now)
+		{
+			return now >= expires;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,179 @@
+package mtc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.fastily.jwiki.core.Wiki;
+import org.fastily.jwiki.util.FL;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import okhttp3.Response;
+
+/**
+ * Lazily enumerates page titles from the API, one batch (i.e. one API response) at a time. The next batch is only
+ * requested, using the query continuation of the previous one, when the caller asks for it. This lets work start on the
+ * first batch while later ones have not been fetched yet.
+ *
+ * @author Fastily
+ *
+ */
+public class TitleStream implements Iterator<ArrayList<String>>
+{
+	/**
+	 * The Wiki to query
+	 */
+	private Wiki wiki;
+
+	/**
+	 * The parameters of the query, excluding continuation.
+	 */
+	private HashMap<String, String> params;
+
+	/**
+	 * The continuation parameters for the next request. Null once the query has been exhausted.
+	 */
+	private HashMap<String, String> cont = new HashMap<>();
+
+	/**
+	 * The next batch, if it has been fetched but not yet returned.
+	 */
+	private ArrayList<String> nextBatch;
+
+	/**
+	 * Constructor, creates a new TitleStream.
+	 *
+	 * @param wiki The Wiki to query
+	 * @param params The parameters for {@code action=query}, as alternating keys and values. This should include a
+	 *           {@code generator} or {@code titles}.
+	 */
+	public TitleStream(Wiki wiki, String... params)
+	{
+		this.wiki = wiki;
+		this.params = FL.pMap(params);
+		this.params.put("formatversion", "2");
+	}
+
+	/**
+	 * Determines if there is another batch of titles, fetching it if necessary. Batches may be empty.
+	 *
+	 * @throws UncheckedIOException If the next batch could not be fetched.
+	 */
+	public boolean hasNext()
+	{
+		if (nextBatch == null && cont != null)
+			nextBatch = fetch();
+
+		return nextBatch != null;
+	}
+
+	/**
+	 * Returns the next batch of titles.
+	 *
+	 * @throws UncheckedIOException If the next batch could not be fetched.
+	 */
+	public ArrayList<String> next()
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		ArrayList<String> l = nextBatch;
+		nextBatch = null;
+		return l;
+	}
+
+	/**
+	 * Gets the continuation of this stream, i.e. where the next batch will start from.
+	 *
+	 * @return The continuation as a JSON object, or the empty String if this stream is exhausted.
+	 */
+	public String continuation()
+	{
+		if (cont == null)
+			return "";
+
+		JsonObject jo = new JsonObject();
+		cont.forEach(jo::addProperty);
+		return jo.toString();
+	}
+
+	/**
+	 * Moves this stream to a continuation obtained from {@link #continuation()}, e.g. to resume an interrupted job. Any
+	 * batch which was fetched but not yet returned is discarded.
+	 *
+	 * @param continuation The continuation to resume from.
+	 */
+	public void resume(String continuation)
+	{
+		nextBatch = null;
+		if (continuation.isEmpty())
+		{
+			cont = null;
+			return;
+		}
+
+		cont = new HashMap<>();
+		for (Map.Entry<String, JsonElement> e : JsonParser.parseString(continuation).getAsJsonObject().entrySet())
+			cont.put(e.getKey(), e.getValue().getAsString());
+	}
+
+	/**
+	 * Fetches one batch of titles, and updates the continuation.
+	 *
+	 * @return The titles in the batch. Pages which do not exist are excluded.
+	 */
+	private ArrayList<String> fetch()
+	{
+		HashMap<String, String> pl = new HashMap<>(params);
+		pl.putAll(cont);
+
+		String[] args = new String[pl.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> e : pl.entrySet())
+		{
+			args[i++] = e.getKey();
+			args[i++] = e.getValue();
+		}
+
+		try (Response r = wiki.basicGET("query", args))
+		{
+			if (r == null)
+				throw new IOException("Could not fetch titles from " + wiki);
+
+			JsonObject jo = WikiClient.parse(r);
+			if (jo.has("error"))
+				throw new IOException("API error while fetching titles: " + jo.get("error"));
+
+			ArrayList<String> l = new ArrayList<>();
+			if (jo.has("query") && jo.getAsJsonObject("query").has("pages"))
+				for (JsonElement e : jo.getAsJsonObject("query").getAsJsonArray("pages"))
+				{
+					JsonObject page = e.getAsJsonObject();
+					if (!page.has("missing") && !page.has("invalid"))
+						l.add(page.get("title").getAsString());
+				}
+
+			if (jo.has("continue"))
+			{
+				cont = new HashMap<>();
+				for (Map.Entry<String, JsonElement> e : jo.getAsJsonObject("continue").entrySet())
+					cont.put(e.getKey(), e.getValue().getAsString());
+			}
+			else
+				cont = null;
+
+			return l;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,582 @@
+package mtc;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Append-only on-disk record of a transfer job. Each file's assigned Commons name and every stage it completes are
+ * written as they happen, along with the enumeration continuation after each batch, so that an interrupted job can be
+ * resumed without redoing finished work. Records are tab-separated lines:
+ * <ul>
+ * <li>{@code job <json>} - the parameters of the job. Always the first line.</li>
+ * <li>{@code file <wpFN> <comFN> <isOwnWork>} - a file was queued for transfer.</li>
+ * <li>{@code cont <json>} - every file of the source listing up to this continuation has been queued. Empty if the
+ * listing was exhausted.</li>
+ * <li>{@code <stage> <wpFN> [<json comText>]} - a file completed a {@link Stage}. The generated text is included for
+ * {@link Stage#GENERATE}.</li>
+ * <li>{@code fail <wpFN>} - a file could not be transferred. It is retried on resume.</li>
+ * </ul>
+ * A truncated last line (e.g. from a crash mid-write) is ignored when reading. Opening a journal only keeps the titles of
+ * its files and the progress of those which were started; the unfinished files are read back from disk when they are
+ * resumed, and their generated text only when they are transferred.
+ *
+ * @author Fastily
+ *
+ */
+public class TransferJournal implements Closeable
+{
+	/**
+	 * The folder journals are saved in.
+	 */
+	protected static final Path journalDir = MTC.mtcdata.resolve("journal");
+
+	/**
+	 * Format of new job IDs.
+	 */
+	private static final DateTimeFormatter idFormat = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	/**
+	 * The ID of this job.
+	 */
+	public final String id;
+
+	/**
+	 * The parameters of this job.
+	 */
+	protected final JsonObject job;
+
+	/**
+	 * The enwp titles of each file in this job.
+	 */
+	private final HashSet<String> titles = new HashSet<>();
+
+	/**
+	 * The progress of each file which completed a Stage, by enwp title, as of when the journal was opened.
+	 */
+	private final HashMap<String, Progress> progress = new HashMap<>();
+
+	/**
+	 * The number of files in this job which had not finished every Stage when the journal was opened.
+	 */
+	private int unfinished;
+
+	/**
+	 * The length of the complete records in the journal file when it was opened. Records after this were written by the
+	 * current run.
+	 */
+	private long replayed;
+
+	/**
+	 * The last recorded continuation of the source listing. Null if none was recorded; empty if the listing was
+	 * exhausted.
+	 */
+	private String continuation;
+
+	/**
+	 * The output stream of the journal file.
+	 */
+	private BufferedWriter w;
+
+	/**
+	 * Constructor, opens a journal for appending.
+	 *
+	 * @param id The ID of the job
+	 * @param job The parameters of the job
+	 * @param isNew Set true if this is a new job, and the {@code job} record should be written.
+	 * @throws IOException If the journal file could not be opened.
+	 */
+	private TransferJournal(String id, JsonObject job, boolean isNew) throws IOException
+	{
+		this.id = id;
+		this.job = job;
+
+		Files.createDirectories(journalDir);
+		w = Files.newBufferedWriter(pathOf(id), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+		if (isNew)
+			write("job", job.toString());
+	}
+
+	/**
+	 * Creates a journal for a new job.
+	 *
+	 * @param mode The TransferMode of the job
+	 * @param input The user input of the job
+	 * @param cats Categories to add to each file, separated by {@code |}. Optional, set null to disable.
+	 * @param mtc The MTC instance running the job. Its flags are saved with the job.
+	 * @return The new TransferJournal.
+	 * @throws IOException If the journal file could not be created.
+	 */
+	public static TransferJournal create(TransferMode mode, String input, String cats, MTC mtc) throws IOException
+	{
+		JsonObject job = new JsonObject();
+		job.addProperty("mode", mode.name());
+		job.addProperty("input", input);
+		job.addProperty("cats", cats == null ? "" : cats);
+		job.addProperty("ignoreFilter", mtc.ignoreFilter);
+		job.addProperty("deleteOnTransfer", mtc.deleteOnTransfer);
+		job.addProperty("useCheckNeededCat", mtc.useCheckNeededCat);
+		job.addProperty("streamUploads", mtc.streamUploads);
+
+		String id = LocalDateTime.now().format(idFormat);
+		for (int i = 2; Files.exists(pathOf(id)); i++)
+			id = LocalDateTime.now().format(idFormat) + "-" + i;
+
+		return new TransferJournal(id, job, true);
+	}
+
+	/**
+	 * Opens the journal of an existing job, so that it can be resumed.
+	 *
+	 * @param id The ID of the job
+	 * @return The TransferJournal, with the state recorded so far.
+	 * @throws IOException If the journal could not be read, or it is not a valid journal.
+	 */
+	public static TransferJournal open(String id) throws IOException
+	{
+		Path p = pathOf(id);
+		if (!Files.isRegularFile(p))
+			throw new IOException("No journal found for job " + id);
+
+		try (LineReader in = new LineReader(Files.newInputStream(p)))
+		{
+			String line = in.readLine();
+			if (line == null || !line.startsWith("job\t"))
+				throw new IOException("Not a valid journal: " + p);
+
+			TransferJournal j = new TransferJournal(id, JsonParser.parseString(line.substring(4)).getAsJsonObject(), false);
+			for (j.replayed = in.offset; (line = in.readLine()) != null && in.terminated; j.replayed = in.offset)
+				try
+				{
+					j.replay(line.split("\t", -1), j.replayed);
+				}
+				catch (RuntimeException e)
+				{
+					System.err.printf("Skipping malformed journal line: %s%n", line);
+				}
+
+			if (!in.terminated) // terminate a truncated last line so it is not joined with the next record
+				j.write();
+
+			for (String t : j.titles)
+				if (j.progress.get(t) != Progress.finished)
+					j.unfinished++;
+
+			return j;
+		}
+	}
+
+	/**
+	 * Applies one record read from disk.
+	 *
+	 * @param r The fields of the record.
+	 * @param at The offset of the record in the journal file.
+	 */
+	private void replay(String[] r, long at)
+	{
+		switch (r[0])
+		{
+			case "file":
+				titles.add(r[1]);
+				break;
+			case "cont":
+				continuation = r[1];
+				break;
+			case "fail":
+				break;
+			default:
+				if (!titles.contains(r[1]))
+					throw new IllegalArgumentException("Unknown file: " + r[1]);
+
+				Stage s = Stage.valueOf(r[0].toUpperCase(Locale.ROOT));
+				Progress e = progress.computeIfAbsent(r[1], k -> new Progress());
+				if (e.lastStage == null || s.compareTo(e.lastStage) > 0)
+					e.lastStage = s;
+				if (s == Stage.GENERATE)
+					e.comTextAt = at;
+				if (e.lastStage == Stage.DELETE)
+					progress.put(r[1], Progress.finished);
+		}
+	}
+
+	/**
+	 * Gets the path of the journal of a job.
+	 *
+	 * @param id The ID of the job
+	 * @return The path of the journal.
+	 */
+	private static Path pathOf(String id)
+	{
+		return journalDir.resolve(id + ".tsv");
+	}
+
+	/**
+	 * Appends a record to the journal and flushes it.
+	 *
+	 * @param fields The fields of the record
+	 */
+	private synchronized void write(String... fields)
+	{
+		try
+		{
+			if (fields.length > 0)
+				w.write(String.join("\t", fields));
+			w.newLine();
+			w.flush();
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Determines if a file has already been queued in this job.
+	 *
+	 * @param wpFN The enwp title of the file
+	 * @return True if the file was queued.
+	 */
+	public synchronized boolean contains(String wpFN)
+	{
+		return titles.contains(wpFN);
+	}
+
+	/**
+	 * Records that a file was queued for transfer.
+	 *
+	 * @param wpFN The enwp title of the file
+	 * @param comFN The Commons title assigned to the file
+	 * @param isOwnWork Set true if the file is tagged as own work
+	 */
+	public synchronized void queued(String wpFN, String comFN, boolean isOwnWork)
+	{
+		if (titles.add(wpFN))
+			write("file", wpFN, comFN, isOwnWork ? "1" : "0");
+	}
+
+	/**
+	 * Records the continuation of the source listing, after every file listed before it was queued.
+	 *
+	 * @param cont The continuation, or the empty String if the listing was exhausted.
+	 */
+	public synchronized void continuation(String cont)
+	{
+		continuation = cont;
+		write("cont", cont);
+	}
+
+	/**
+	 * Gets the last recorded continuation of the source listing.
+	 *
+	 * @return The continuation, the empty String if the listing was exhausted, or null if no batch was recorded.
+	 */
+	public synchronized String continuation()
+	{
+		return continuation;
+	}
+
+	/**
+	 * Records that a file completed a Stage.
+	 *
+	 * @param wpFN The enwp title of the file
+	 * @param stage The Stage which was completed
+	 * @param comText The generated Commons text. Only saved for {@link Stage#GENERATE}.
+	 */
+	public void completed(String wpFN, Stage stage, String comText)
+	{
+		if (stage == Stage.GENERATE)
+			write(stage.toString(), wpFN, new JsonPrimitive(comText).toString());
+		else
+			write(stage.toString(), wpFN);
+	}
+
+	/**
+	 * Records that a file could not be transferred.
+	 *
+	 * @param wpFN The enwp title of the file
+	 */
+	public void failed(String wpFN)
+	{
+		write("fail", wpFN);
+	}
+
+	/**
+	 * Lists the files of this job which have not finished every Stage, as of when the journal was opened. The files are
+	 * read back from the journal file as they are iterated over. Their generated text is not read; see
+	 * {@link #comText(long)}.
+	 *
+	 * @return The unfinished files, in the order they were queued. Each call to {@code iterator()} reads the journal file
+	 *         again.
+	 */
+	public Iterable<FileRef> pending()
+	{
+		return () -> new Iterator<>() {
+			/**
+			 * Reads the journal file. Null if it was not opened yet, or once every record written before the journal was
+			 * opened has been read.
+			 */
+			private LineReader in;
+
+			/**
+			 * Flag indicating if the journal file was opened.
+			 */
+			private boolean opened = false;
+
+			/**
+			 * The next unfinished file. Null if it has not been read yet.
+			 */
+			private FileRef next;
+
+			public boolean hasNext()
+			{
+				try
+				{
+					if (!opened && replayed > 0)
+						(in = new LineReader(Files.newInputStream(pathOf(id)))).readLine(); // skip job record
+
+					opened = true;
+
+					while (next == null && in != null)
+					{
+						String line = in.offset < replayed ? in.readLine() : null;
+						if (line == null)
+						{
+							in.close();
+							in = null;
+							break;
+						}
+
+						String[] r = line.split("\t", -1);
+						if (r[0].equals("file") && r.length == 4)
+						{
+							Progress p = progress.get(r[1]);
+							if (p != Progress.finished)
+								next = p == null ? new FileRef(r[1], r[2], r[3].equals("1"))
+										: new FileRef(r[1], r[2], r[3].equals("1"), p.lastStage, p.comTextAt);
+						}
+					}
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+
+				return next != null;
+			}
+
+			public FileRef next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				FileRef r = next;
+				next = null;
+				return r;
+			}
+		};
+	}
+
+	/**
+	 * Gets the number of files listed by {@link #pending()}, without reading the journal file.
+	 *
+	 * @return The number of files in this job which had not finished every Stage when the journal was opened.
+	 */
+	public int unfinished()
+	{
+		return unfinished;
+	}
+
+	/**
+	 * Reads the Commons text generated for a file, as recorded before the journal was opened.
+	 *
+	 * @param at The offset of the file's {@code generate} record in the journal file, as per {@link FileRef#comTextAt}.
+	 * @return The generated text, or null if it could not be read.
+	 */
+	public String comText(long at)
+	{
+		try (LineReader in = new LineReader(Files.newInputStream(pathOf(id))))
+		{
+			in.skipTo(at);
+			return JsonParser.parseString(in.readLine().split("\t", -1)[2]).getAsString();
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the journal file.
+	 */
+	public synchronized void close() throws IOException
+	{
+		w.close();
+	}
+
+	/**
+	 * The recorded progress of one file.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Progress
+	{
+		/**
+		 * Shared by every file which completed all Stages.
+		 */
+		private static final Progress finished = new Progress();
+
+		/**
+		 * The last Stage the file completed.
+		 */
+		private Stage lastStage;
+
+		/**
+		 * The offset of the file's {@code generate} record in the journal file, or -1 if there is none.
+		 */
+		private long comTextAt = -1;
+	}
+
+	/**
+	 * Reads the lines of a journal file, keeping track of the byte offset of each.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class LineReader implements Closeable
+	{
+		/**
+		 * The InputStream to read
+		 */
+		private final InputStream in;
+
+		/**
+		 * Bytes read from {@code in} but not yet returned.
+		 */
+		private final byte[] buf = new byte[1 << 16];
+
+		/**
+		 * The index of the next byte in {@code buf}, and the number of bytes in {@code buf}.
+		 */
+		private int pos = 0, lim = 0;
+
+		/**
+		 * The offset of the next byte to read.
+		 */
+		private long offset = 0;
+
+		/**
+		 * Flag indicating if the last line read was terminated by a newline.
+		 */
+		private boolean terminated = true;
+
+		/**
+		 * Holds the bytes of the line being read.
+		 */
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		/**
+		 * Constructor, creates a new LineReader
+		 *
+		 * @param in The InputStream to read
+		 */
+		private LineReader(InputStream in)
+		{
+			this.in = in;
+		}
+
+		/**
+		 * Reads a line, without its line terminator.
+		 *
+		 * @return The line, or null if the end of the stream was reached.
+		 * @throws IOException On read error
+		 */
+		private String readLine() throws IOException
+		{
+			line.reset();
+			while (true)
+			{
+				if (pos == lim)
+				{
+					if ((lim = in.read(buf)) < 0)
+					{
+						pos = lim = 0;
+						if (line.size() == 0)
+							return null;
+
+						terminated = false;
+						return decode();
+					}
+					pos = 0;
+				}
+
+				int i = pos;
+				while (i < lim && buf[i] != '\n')
+					i++;
+
+				line.write(buf, pos, i - pos);
+				offset += i - pos;
+				pos = i;
+
+				if (i < lim)
+				{
+					pos++;
+					offset++;
+					terminated = true;
+					return decode();
+				}
+			}
+		}
+
+		/**
+		 * Decodes the line in {@code line}, dropping the carriage return of a Windows line ending.
+		 *
+		 * @return The line
+		 */
+		private String decode()
+		{
+			String s = line.toString(StandardCharsets.UTF_8);
+			return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+		}
+
+		/**
+		 * Skips ahead to an offset. Only valid before any line was read.
+		 *
+		 * @param at The offset to skip to
+		 * @throws IOException On read error
+		 */
+		private void skipTo(long at) throws IOException
+		{
+			in.skipNBytes(at);
+			offset = at;
+		}
+
+		/**
+		 * Closes the underlying InputStream.
+		 */
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}
\ No newline at end of file
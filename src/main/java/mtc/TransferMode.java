@@ -0,0 +1,97 @@
+package mtc;
+
+import org.fastily.jwiki.core.NS;
+import org.fastily.jwiki.core.Wiki;
+
+/**
+ * Represents various supported file transfer modes.
+ *
+ * @author Fastily
+ *
+ */
+public enum TransferMode
+{
+	/**
+	 * Represents the single file transfer mode.
+	 */
+	FILE("File"),
+
+	/**
+	 * Represents category mass-transfer mode.
+	 */
+	CATEGORY("Category"),
+
+	/**
+	 * Represents user uploads mass-transfer mode.
+	 */
+	USER("User"),
+
+	/**
+	 * Represents template transclusions mass-transfer mode.
+	 */
+	TEMPLATE("Template"),
+
+	/**
+	 * Represents all file links on a page mass-transfer mode.
+	 */
+	FILELINKS("Filelinks"),
+
+	/**
+	 * Represents all file namespace links on a page mass-transfer mode.
+	 */
+	LINKS("Links");
+
+	/**
+	 * Constructor, creates a new TransferMode.
+	 *
+	 * @param name The user-suitable name to create this TransferMode with.
+	 */
+	private TransferMode(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * The user-suitable name of this TransferMode.
+	 */
+	private String name;
+
+	/**
+	 * Creates a stream of the local files on {@code wiki} matching {@code input} for this TransferMode. Titles are fetched
+	 * in batches, as the stream is consumed.
+	 *
+	 * @param wiki The Wiki to query
+	 * @param input The user input, i.e. a File, Category, Username, Template, or page title.
+	 * @return The TitleStream.
+	 */
+	public TitleStream titles(Wiki wiki, String input)
+	{
+		switch (this)
+		{
+			case FILE:
+				return new TitleStream(wiki, "titles", wiki.convertIfNotInNS(input, NS.FILE));
+			case CATEGORY:
+				return new TitleStream(wiki, "generator", "categorymembers", "gcmtitle", wiki.convertIfNotInNS(input, NS.CATEGORY), "gcmnamespace", "6",
+						"gcmlimit", "max");
+			case USER:
+				return new TitleStream(wiki, "generator", "allimages", "gaiuser", wiki.nss(input), "gaisort", "timestamp", "gailimit", "max");
+			case TEMPLATE:
+				return new TitleStream(wiki, "generator", "embeddedin", "geititle", wiki.convertIfNotInNS(input, NS.TEMPLATE), "geinamespace", "6",
+						"geilimit", "max");
+			case FILELINKS:
+				return new TitleStream(wiki, "generator", "images", "titles", input, "gimlimit", "max");
+			case LINKS:
+				return new TitleStream(wiki, "generator", "links", "titles", input, "gplnamespace", "6", "gpllimit", "max");
+			default:
+				throw new IllegalArgumentException("Unsupported TransferMode: " + this);
+		}
+	}
+
+	/**
+	 * Returns the user-suitable name of this TransferMode.
+	 */
+	public String toString()
+	{
+		return name;
+	}
+}
\ No newline at end of file
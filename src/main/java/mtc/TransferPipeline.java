@@ -0,0 +1,440 @@
+package mtc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import mtc.MTC.FileInfo;
+
+/**
+ * Transfers files to Commons concurrently. Each file moves through a chain of lanes (generate and download, upload, and
+ * enwp edit/delete), which are connected by bounded queues. Every lane has its own pool of worker threads, so network
+ * waits in one lane overlap with work in the others. A file is downloaded while its description page is generated,
+ * since neither depends on the other.
+ *
+ * @author Fastily
+ *
+ */
+public class TransferPipeline
+{
+	/**
+	 * How long, in milliseconds, idle workers wait on their queue before checking whether upstream has finished.
+	 */
+	private static final long pollMillis = 100;
+
+	/**
+	 * The minimum number of threads generating Commons description pages in a dry run, where nothing else competes for
+	 * the connection.
+	 */
+	private static final int previewThreads = 16;
+
+	/**
+	 * The MTC instance to use.
+	 */
+	private MTC mtc;
+
+	/**
+	 * Performs Stages which are not worth retrying, such as generating previews, exactly once.
+	 */
+	private RetryPolicy once;
+
+	/**
+	 * The number of worker threads for the generate (and download), upload, and edit lanes, respectively.
+	 */
+	private int genThreads, uploadThreads, editThreads;
+
+	/**
+	 * The maximum number of files waiting in front of any one lane.
+	 */
+	private int queueSize;
+
+	/**
+	 * Flag indicating that the feeder has submitted every file.
+	 */
+	private volatile boolean feedDone = false;
+
+	/**
+	 * Checked by workers before processing each file. Returns true if the transfer was cancelled.
+	 */
+	private BooleanSupplier isCancelled;
+
+	/**
+	 * Called once for every file which reached a terminal state. The second argument is true if the file was
+	 * transferred successfully.
+	 */
+	private BiConsumer<FileInfo, Boolean> onDone;
+
+	/**
+	 * Called with the elapsed time, in nanoseconds, of every Stage performed, whether it succeeded or not. Optional, may
+	 * be null.
+	 */
+	private BiConsumer<Stage, Long> onStage;
+
+	/**
+	 * Constructor, creates a TransferPipeline with default concurrency limits. The upload and edit lanes get enough
+	 * threads for the write limiters of {@code mtc} to reach their maximum.
+	 *
+	 * @param mtc The MTC instance to use
+	 */
+	public TransferPipeline(MTC mtc)
+	{
+		this(mtc, 4, MTC.maxWriters, MTC.maxWriters, 16);
+	}
+
+	/**
+	 * Constructor, creates a TransferPipeline.
+	 *
+	 * @param mtc The MTC instance to use
+	 * @param genThreads The number of threads generating Commons description pages, each of which also downloads the file
+	 *           it is working on.
+	 * @param uploadThreads The number of threads uploading files to Commons
+	 * @param editThreads The number of threads tagging (and optionally deleting) files on enwp
+	 * @param queueSize The maximum number of files waiting in front of any one lane.
+	 */
+	public TransferPipeline(MTC mtc, int genThreads, int uploadThreads, int editThreads, int queueSize)
+	{
+		this.mtc = mtc;
+		once = new RetryPolicy(1, 0, 0, mtc.metrics);
+		this.genThreads = genThreads;
+		this.uploadThreads = uploadThreads;
+		this.editThreads = editThreads;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Transfers each file in {@code l}, blocking until every file reached a terminal state or the transfer was cancelled.
+	 * Files are pulled from {@code l} only as space frees up in the first lane. Files still queued when the transfer is
+	 * cancelled are dropped without being reported to {@code onDone}. If iterating {@code l} throws, the files already
+	 * pulled from it are finished before the exception is rethrown.
+	 *
+	 * @param l The files to transfer
+	 * @param isCancelled Returns true if the transfer was cancelled. Called from worker threads.
+	 * @param onDone Called once per finished file, with true if the file was transferred. Called from worker threads.
+	 * @throws InterruptedException If the calling thread was interrupted while waiting.
+	 */
+	public void run(Iterable<FileInfo> l, BooleanSupplier isCancelled, BiConsumer<FileInfo, Boolean> onDone) throws InterruptedException
+	{
+		run(l, isCancelled, onDone, null);
+	}
+
+	/**
+	 * Transfers each file in {@code l}, as per {@link #run(Iterable, BooleanSupplier, BiConsumer)}, and reports how long
+	 * each Stage took.
+	 *
+	 * @param l The files to transfer
+	 * @param isCancelled Returns true if the transfer was cancelled. Called from worker threads.
+	 * @param onDone Called once per finished file, with true if the file was transferred. Called from worker threads.
+	 * @param onStage Called with the elapsed time, in nanoseconds, of every Stage performed. Stages skipped because they
+	 *           were already completed are not reported. Called from worker threads. Optional, set null to disable.
+	 * @throws InterruptedException If the calling thread was interrupted while waiting.
+	 */
+	public void run(Iterable<FileInfo> l, BooleanSupplier isCancelled, BiConsumer<FileInfo, Boolean> onDone, BiConsumer<Stage, Long> onStage)
+			throws InterruptedException
+	{
+		this.isCancelled = isCancelled;
+		this.onDone = onDone;
+		this.onStage = onStage;
+
+		ArrayList<Lane> lanes = new ArrayList<>();
+		if (mtc.dryRun)
+			lanes.add(new Lane(Stage.GENERATE, Math.max(genThreads, previewThreads), fi -> perform(fi, Stage.GENERATE, once, f -> {
+				try
+				{
+					f.gen();
+				}
+				catch (RuntimeException e)
+				{
+					if (mtc.preview != null)
+						mtc.preview.generated(f, e);
+					throw e;
+				}
+
+				if (mtc.preview != null)
+					mtc.preview.generated(f, null);
+
+				return f.comText != null;
+			})));
+		else
+		{
+			lanes.add(new Lane(Stage.GENERATE, genThreads, this::prepare));
+			lanes.add(new Lane(Stage.UPLOAD, uploadThreads, fi -> perform(fi, Stage.UPLOAD, f -> mtc.comLimiter.run(f::upload))));
+			lanes.add(new Lane(Stage.EDIT, editThreads, fi -> perform(fi, Stage.EDIT, f -> mtc.enwpLimiter.run(f::edit))
+					&& perform(fi, Stage.DELETE, f -> !mtc.deleteOnTransfer || mtc.enwpLimiter.run(f::delete))));
+		}
+
+		for (int i = 0; i < lanes.size(); i++)
+		{
+			Lane lane = lanes.get(i);
+			lane.prev = i > 0 ? lanes.get(i - 1) : null;
+			lane.next = i < lanes.size() - 1 ? lanes.get(i + 1) : null;
+			lane.start();
+		}
+
+		Lane head = lanes.get(0);
+		try
+		{
+			Iterator<FileInfo> it = l.iterator();
+			while (!isCancelled.getAsBoolean() && it.hasNext())
+				head.queue.put(it.next());
+		}
+		finally
+		{
+			feedDone = true;
+
+			// if listing failed, still let the files already queued finish, so no write is cut off or left out of the journal
+			for (Lane lane : lanes)
+				lane.workers.await();
+		}
+	}
+
+	/**
+	 * Performs one Stage of a file's transfer, retrying it while it fails transiently (see {@link MTC#stageRetries}),
+	 * unless the file already completed it (e.g. in an interrupted job which is being resumed). On success, the Stage is
+	 * recorded in the file and the journal, if there is one.
+	 *
+	 * @param fi The file to work on
+	 * @param stage The Stage to perform
+	 * @param action The work to perform. Returns true on success.
+	 * @return True if the file completed {@code stage}.
+	 */
+	private boolean perform(FileInfo fi, Stage stage, Predicate<FileInfo> action)
+	{
+		return perform(fi, stage, mtc.stageRetries, action);
+	}
+
+	/**
+	 * Performs one Stage of a file's transfer, as per {@link #perform(FileInfo, Stage, Predicate)}, with the given retry
+	 * policy.
+	 *
+	 * @param fi The file to work on
+	 * @param stage The Stage to perform
+	 * @param retries Decides whether, and when, to retry a failed attempt
+	 * @param action The work to perform. Returns true on success.
+	 * @return True if the file completed {@code stage}.
+	 */
+	private boolean perform(FileInfo fi, Stage stage, RetryPolicy retries, Predicate<FileInfo> action)
+	{
+		return fi.isDone(stage) || attempt(fi, stage, retries, action) && completed(fi, stage);
+	}
+
+	/**
+	 * Performs one Stage of a file's transfer, retrying it while it fails transiently, without recording that the file
+	 * completed it. If the Stage fails for good, its cause is recorded in the metrics of {@code mtc}.
+	 *
+	 * @param fi The file to work on
+	 * @param stage The Stage to perform
+	 * @param retries Decides whether, and when, to retry a failed attempt
+	 * @param action The work to perform. Returns true on success.
+	 * @return True on success.
+	 */
+	private boolean attempt(FileInfo fi, Stage stage, RetryPolicy retries, Predicate<FileInfo> action)
+	{
+		String cause = retries.run(stage, fi.wpFN, () -> timed(fi, stage, action), () -> fi.isApplied(stage));
+		if (cause == null)
+			return true;
+
+		mtc.metrics.failure(stage, cause);
+		return false;
+	}
+
+	/**
+	 * Records that a file completed a Stage, in the file and the journal, if there is one.
+	 *
+	 * @param fi The file
+	 * @param stage The Stage it completed
+	 * @return True
+	 */
+	private boolean completed(FileInfo fi, Stage stage)
+	{
+		fi.lastStage = stage;
+		if (mtc.journal != null)
+			mtc.journal.completed(fi.wpFN, stage, fi.comText);
+
+		return true;
+	}
+
+	/**
+	 * Generates the Commons description page of a file while the file is downloaded. The download is recorded as
+	 * completed only after generation, so the Stages of a file are always completed in order. If generating fails, the
+	 * download is cancelled.
+	 *
+	 * @param fi The file to work on
+	 * @return True if the file completed {@link Stage#DOWNLOAD}.
+	 */
+	private boolean prepare(FileInfo fi)
+	{
+		if (fi.isDone(Stage.DOWNLOAD))
+			return true;
+
+		try (TaskScope scope = new TaskScope())
+		{
+			TaskScope.Subtask<Boolean> downloaded = scope.fork(() -> attempt(fi, Stage.DOWNLOAD, mtc.stageRetries, FileInfo::download));
+			if (!perform(fi, Stage.GENERATE, f -> {
+				f.gen();
+				return f.comText != null;
+			}))
+				return false; // closing the scope cancels the download
+
+			scope.join();
+			return downloaded.result() && completed(fi, Stage.DOWNLOAD);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Makes one attempt at a Stage of a file's transfer, recording its elapsed time and result in the metrics of
+	 * {@code mtc}, and reporting its elapsed time to {@code onStage}.
+	 *
+	 * @param fi The file to work on
+	 * @param stage The Stage being performed
+	 * @param action The work to perform. Returns true on success.
+	 * @return The result of {@code action}.
+	 */
+	private boolean timed(FileInfo fi, Stage stage, Predicate<FileInfo> action)
+	{
+		boolean ok = false;
+		long start = System.nanoTime();
+		try
+		{
+			return ok = action.test(fi);
+		}
+		finally
+		{
+			long nanos = System.nanoTime() - start;
+			mtc.metrics.stage(stage, nanos, ok);
+			if (onStage != null)
+				onStage.accept(stage, nanos);
+		}
+	}
+
+	/**
+	 * Worker loop for a lane. Processes files until upstream has finished and the lane's queue is empty.
+	 *
+	 * @param lane The lane to work on.
+	 */
+	private void work(Lane lane)
+	{
+		try
+		{
+			while (true)
+			{
+				boolean upstreamDone = lane.prev == null ? feedDone : lane.prev.workers.getCount() == 0;
+				FileInfo fi = lane.queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+				if (fi == null)
+				{
+					if (upstreamDone)
+						return;
+
+					continue;
+				}
+
+				if (isCancelled.getAsBoolean()) // drain without doing any more work
+				{
+					fi.release();
+					continue;
+				}
+
+				boolean ok;
+				try
+				{
+					ok = lane.action.test(fi);
+				}
+				catch (Throwable e)
+				{
+					e.printStackTrace();
+					ok = false;
+				}
+
+				if (!ok && mtc.journal != null)
+					mtc.journal.failed(fi.wpFN);
+
+				if (!ok || lane.next == null)
+				{
+					fi.release();
+					onDone.accept(fi, ok);
+				}
+				else
+					lane.next.queue.put(fi);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			lane.workers.countDown();
+		}
+	}
+
+	/**
+	 * A step of the pipeline, backed by its own queue and worker threads.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private class Lane
+	{
+		/**
+		 * The first Stage this lane performs.
+		 */
+		private Stage stage;
+
+		/**
+		 * The work to perform on each file. Returns true on success.
+		 */
+		private Predicate<FileInfo> action;
+
+		/**
+		 * Files waiting to be processed by this lane.
+		 */
+		private ArrayBlockingQueue<FileInfo> queue = new ArrayBlockingQueue<>(queueSize);
+
+		/**
+		 * Counts down as this lane's worker threads exit.
+		 */
+		private CountDownLatch workers;
+
+		/**
+		 * The lanes before and after this one. These are null for the first and last lanes respectively.
+		 */
+		private Lane prev, next;
+
+		/**
+		 * Constructor, creates a new Lane
+		 *
+		 * @param stage The first Stage this lane performs.
+		 * @param threads The number of worker threads to use.
+		 * @param action The work to perform on each file. Return true on success.
+		 */
+		private Lane(Stage stage, int threads, Predicate<FileInfo> action)
+		{
+			this.stage = stage;
+			this.action = action;
+
+			workers = new CountDownLatch(Math.max(1, threads));
+		}
+
+		/**
+		 * Starts this lane's worker threads.
+		 */
+		private void start()
+		{
+			for (int i = 0; i < workers.getCount(); i++)
+			{
+				Thread t = new Thread(() -> work(this), String.format("mtc-%s-%d", stage, i));
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+	}
+}
\ No newline at end of file
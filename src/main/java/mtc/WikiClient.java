@@ -0,0 +1,234 @@
+package mtc;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+import org.fastily.jwiki.core.Wiki;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Raw API access for requests which jwiki does not expose, such as multipart POSTs with a streamed body. Shares the
+ * HTTP client (and therefore the login session) of an existing Wiki.
+ *
+ * @author Fastily
+ *
+ */
+public class WikiClient
+{
+	/**
+	 * The Wiki whose session is being shared.
+	 */
+	protected final Wiki wiki;
+
+	/**
+	 * The HTTP client of {@code wiki}. Carries its login cookies.
+	 */
+	protected final OkHttpClient client;
+
+	/**
+	 * The API endpoint of {@code wiki}.
+	 */
+	protected final HttpUrl api;
+
+	/**
+	 * The cached CSRF token. Null if it has not been fetched yet.
+	 */
+	private volatile String token;
+
+	/**
+	 * Constructor, creates a new WikiClient sharing the session of {@code wiki}.
+	 *
+	 * @param wiki The Wiki to share a session with.
+	 * @throws IllegalStateException If the client or endpoint of {@code wiki} could not be accessed.
+	 */
+	public WikiClient(Wiki wiki)
+	{
+		this.wiki = wiki;
+
+		try
+		{
+			client = (OkHttpClient) field(field(wiki, Wiki.class, "apiclient"), null, "client");
+			api = (HttpUrl) field(field(wiki, Wiki.class, "conf"), null, "baseURL");
+		}
+		catch (Throwable e)
+		{
+			throw new IllegalStateException("Unsupported jwiki version, could not access its HTTP client", e);
+		}
+	}
+
+	/**
+	 * Adds an interceptor to the HTTP client of {@code wiki}, so that it sees every request {@code wiki} (and any
+	 * WikiClient created from it afterwards) sends. Does nothing if {@code interceptor} was already added.
+	 *
+	 * @param wiki The Wiki to intercept requests of
+	 * @param interceptor The interceptor to add
+	 * @throws ReflectiveOperationException If the client of {@code wiki} could not be replaced.
+	 */
+	public static void addInterceptor(Wiki wiki, Interceptor interceptor) throws ReflectiveOperationException
+	{
+		addInterceptor(wiki, interceptor, false);
+	}
+
+	/**
+	 * Adds an interceptor to the HTTP client of {@code wiki}, as per {@link #addInterceptor(Wiki, Interceptor)}.
+	 *
+	 * @param wiki The Wiki to intercept requests of
+	 * @param interceptor The interceptor to add
+	 * @param first Set true to add {@code interceptor} before (i.e. outside of) every interceptor already added, instead
+	 *           of after them.
+	 * @throws ReflectiveOperationException If the client of {@code wiki} could not be replaced.
+	 */
+	public static synchronized void addInterceptor(Wiki wiki, Interceptor interceptor, boolean first) throws ReflectiveOperationException
+	{
+		Object apiclient = field(wiki, Wiki.class, "apiclient");
+		OkHttpClient c = (OkHttpClient) field(apiclient, null, "client");
+		if (c.interceptors().contains(interceptor))
+			return;
+
+		OkHttpClient.Builder b = c.newBuilder();
+		b.interceptors().add(first ? 0 : b.interceptors().size(), interceptor);
+
+		Field f = apiclient.getClass().getDeclaredField("client");
+		f.setAccessible(true);
+		f.set(apiclient, b.build());
+	}
+
+	/**
+	 * Reads a (possibly non-public) field.
+	 *
+	 * @param o The object to read from
+	 * @param c The class declaring the field. Set null to use the runtime class of {@code o}.
+	 * @param name The name of the field
+	 * @return The value of the field.
+	 * @throws ReflectiveOperationException If the field could not be read.
+	 */
+	private static Object field(Object o, Class<?> c, String name) throws ReflectiveOperationException
+	{
+		Field f = (c != null ? c : o.getClass()).getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(o);
+	}
+
+	/**
+	 * Gets a CSRF token, fetching one if none is cached.
+	 *
+	 * @return The CSRF token.
+	 * @throws IOException If the token could not be fetched.
+	 */
+	public String csrf() throws IOException
+	{
+		String t = token;
+		if (t == null)
+			try (Response r = wiki.basicGET("query", "meta", "tokens"))
+			{
+				if (r == null)
+					throw new IOException("Could not fetch a CSRF token");
+
+				token = t = parse(r).getAsJsonObject("query").getAsJsonObject("tokens").get("csrftoken").getAsString();
+			}
+
+		return t;
+	}
+
+	/**
+	 * Discards the cached CSRF token, so that the next call to {@link #csrf()} fetches a new one.
+	 */
+	public void resetToken()
+	{
+		token = null;
+	}
+
+	/**
+	 * Sends a multipart POST to the API with one file part. The CSRF token and {@code format=json} are added
+	 * automatically.
+	 *
+	 * @param action The API action to perform
+	 * @param form Form fields, excluding {@code action}, {@code format}, and {@code token}.
+	 * @param partName The form name of the file part
+	 * @param fileName The file name to report for the file part
+	 * @param body The contents of the file part
+	 * @return The parsed JSON response.
+	 * @throws IOException On network error, or if the response was not JSON.
+	 */
+	public JsonObject multipart(String action, HashMap<String, String> form, String partName, String fileName, RequestBody body) throws IOException
+	{
+		MultipartBody.Builder b = new MultipartBody.Builder().setType(MultipartBody.FORM).addFormDataPart("format", "json");
+		form.forEach(b::addFormDataPart);
+		b.addFormDataPart("token", csrf()).addFormDataPart(partName, fileName, body);
+
+		// action goes in the query string, like jwiki's POSTs, so that it shows up in request logs and metrics
+		try (Response r = client.newCall(new Request.Builder().url(api.newBuilder().addQueryParameter("action", action).build()).header("User-Agent", MStrings.userAgent).post(b.build()).build()).execute())
+		{
+			return parse(r);
+		}
+	}
+
+	/**
+	 * Sends a form POST to the API. The CSRF token and {@code format=json} are added automatically.
+	 *
+	 * @param action The API action to perform
+	 * @param form Form fields, excluding {@code action}, {@code format}, and {@code token}.
+	 * @return The parsed JSON response.
+	 * @throws IOException On network error, or if the response was not JSON.
+	 */
+	public JsonObject post(String action, HashMap<String, String> form) throws IOException
+	{
+		FormBody.Builder b = new FormBody.Builder().add("format", "json");
+		form.forEach(b::add);
+		b.add("token", csrf());
+
+		try (Response r = client.newCall(new Request.Builder().url(api.newBuilder().addQueryParameter("action", action).build()).header("User-Agent", MStrings.userAgent).post(b.build()).build()).execute())
+		{
+			return parse(r);
+		}
+	}
+
+	/**
+	 * Sends a GET request to an arbitrary URL with this client. Useful for fetching files.
+	 *
+	 * @param u The URL to fetch
+	 * @param headers Additional request headers, as alternating names and values.
+	 * @return The Response. The caller must close it.
+	 * @throws IOException On network error.
+	 */
+	public Response get(HttpUrl u, String... headers) throws IOException
+	{
+		Request.Builder b = new Request.Builder().url(u).header("User-Agent", MStrings.userAgent);
+		for (int i = 0; i + 1 < headers.length; i += 2)
+			b.header(headers[i], headers[i + 1]);
+
+		return client.newCall(b.get().build()).execute();
+	}
+
+	/**
+	 * Parses the body of an API response.
+	 *
+	 * @param r The Response to parse
+	 * @return The response body as a JsonObject.
+	 * @throws IOException On network error, or if the response was not a JSON object.
+	 */
+	public static JsonObject parse(Response r) throws IOException
+	{
+		try
+		{
+			return JsonParser.parseString(r.body().string()).getAsJsonObject();
+		}
+		catch (IllegalStateException | JsonParseException e)
+		{
+			throw new IOException(String.format("Bad API response (HTTP %d)", r.code()), e);
+		}
+	}
+}
\ No newline at end of file
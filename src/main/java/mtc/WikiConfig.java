@@ -0,0 +1,254 @@
+package mtc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.fastily.jwiki.core.MQuery;
+import org.fastily.jwiki.core.Wiki;
+import org.fastily.jwiki.util.FL;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import okhttp3.Response;
+
+/**
+ * The on-wiki configuration of MTC: the category blacklist and whitelist, the Commons template redirects, and the
+ * redirects to the Copy to Commons template. A snapshot is kept on disk, along with the revision ids of the pages it was
+ * made from. On startup, one query fetches the current revision ids (and the template redirects, which are small), and
+ * only the pages which changed since the snapshot are downloaded again, in parallel.
+ *
+ * @author Fastily
+ *
+ */
+public class WikiConfig
+{
+	/**
+	 * Titles of the config pages.
+	 */
+	protected static final String blacklistTitle = MStrings.fullname + "/Blacklist", whitelistTitle = MStrings.fullname + "/Whitelist",
+			redirectsTitle = MStrings.fullname + "/Redirects", ctcTitle = "Template:Copy to Wikimedia Commons";
+
+	/**
+	 * Files in these categories should not be transferred.
+	 */
+	protected ArrayList<String> blacklist;
+
+	/**
+	 * Files must be in at least one of these categories to be eligible for transfer.
+	 */
+	protected ArrayList<String> whitelist;
+
+	/**
+	 * The text of the Redirects page, mapping enwp templates to their Commons equivalents.
+	 */
+	protected String redirects;
+
+	/**
+	 * Titles of the redirects to {@link #ctcTitle}, with namespace prefix. Always fetched, so not part of the snapshot.
+	 */
+	protected transient ArrayList<String> ctcRedirects;
+
+	/**
+	 * The revision ids of the config pages this snapshot was made from, by title. Missing pages have id 0.
+	 */
+	protected HashMap<String, Long> revids = new HashMap<>();
+
+	/**
+	 * Constructors disallowed; use {@link #load(Wiki, Path)}.
+	 */
+	private WikiConfig()
+	{
+
+	}
+
+	/**
+	 * Gets the current configuration, reusing the parts of the snapshot at {@code cache} whose pages have not changed. The
+	 * snapshot is then updated, unless some page could not be fetched.
+	 *
+	 * @param enwp The Wiki to read the configuration from
+	 * @param cache The snapshot file. Need not exist.
+	 * @return The current configuration.
+	 */
+	public static WikiConfig load(Wiki enwp, Path cache)
+	{
+		WikiConfig old = read(cache), c = new WikiConfig();
+		boolean validated = c.fetchRevisions(enwp);
+
+		ExecutorService pool = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "mtc-config");
+			t.setDaemon(true);
+			return t;
+		});
+		try
+		{
+			ArrayList<CompletableFuture<Void>> tasks = new ArrayList<>();
+
+			if (old != null && validated && c.isUnchanged(old, blacklistTitle, whitelistTitle))
+			{
+				c.blacklist = old.blacklist;
+				c.whitelist = old.whitelist;
+			}
+			else
+				tasks.add(CompletableFuture.runAsync(() -> {
+					HashMap<String, ArrayList<String>> l = MQuery.getLinksOnPage(enwp, FL.toSAL(blacklistTitle, whitelistTitle));
+					c.blacklist = l.get(blacklistTitle);
+					c.whitelist = l.get(whitelistTitle);
+				}, pool));
+
+			if (old != null && validated && c.isUnchanged(old, redirectsTitle))
+				c.redirects = old.redirects;
+			else
+				tasks.add(CompletableFuture.runAsync(() -> c.redirects = enwp.getPageText(redirectsTitle), pool));
+
+			if (c.ctcRedirects == null)
+				tasks.add(CompletableFuture.runAsync(() -> c.ctcRedirects = enwp.whatLinksHere(ctcTitle, true), pool));
+
+			try
+			{
+				CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+			}
+			catch (CompletionException e)
+			{
+				e.getCause().printStackTrace();
+			}
+
+			System.err.printf("Loaded config with %d request(s) after validation, snapshot %s%n", tasks.size(), old == null ? "missing" : validated ? "checked" : "unverified");
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		// a page which could not be fetched must not be cached under its current revision id
+		boolean complete = c.blacklist != null && c.whitelist != null && c.redirects != null;
+
+		if (c.blacklist == null)
+			c.blacklist = new ArrayList<>();
+		if (c.whitelist == null)
+			c.whitelist = new ArrayList<>();
+		if (c.redirects == null)
+			c.redirects = "";
+
+		if (validated && complete)
+			c.write(cache);
+
+		return c;
+	}
+
+	/**
+	 * Fetches the revision ids of the config pages, and the redirects to {@link #ctcTitle}, with one query.
+	 *
+	 * @param enwp The Wiki to query
+	 * @return True if the revision ids were fetched. {@code ctcRedirects} is left null if the redirects could not be
+	 *         fetched in full.
+	 */
+	private boolean fetchRevisions(Wiki enwp)
+	{
+		try (Response r = enwp.basicGET("query", "prop", "info|linkshere", "titles", FL.pipeFence(FL.toSAL(blacklistTitle, whitelistTitle, redirectsTitle, ctcTitle)),
+				"lhshow", "redirect", "lhprop", "title", "lhlimit", "max", "formatversion", "2"))
+		{
+			if (r == null)
+				return false;
+
+			JsonObject jo = WikiClient.parse(r);
+			boolean complete = !jo.has("continue");
+
+			for (JsonElement e : jo.getAsJsonObject("query").getAsJsonArray("pages"))
+			{
+				JsonObject pg = e.getAsJsonObject();
+				String title = pg.get("title").getAsString();
+				revids.put(title, pg.has("lastrevid") ? pg.get("lastrevid").getAsLong() : 0);
+
+				if (title.equals(ctcTitle) && complete)
+				{
+					ctcRedirects = new ArrayList<>();
+					if (pg.has("linkshere"))
+						for (JsonElement lh : pg.getAsJsonArray("linkshere"))
+							ctcRedirects.add(lh.getAsJsonObject().get("title").getAsString());
+				}
+			}
+
+			return revids.size() == 4;
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			revids.clear();
+			ctcRedirects = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Determines if the given pages have the same revision ids in this configuration and in {@code old}.
+	 *
+	 * @param old The snapshot to compare with
+	 * @param titles The titles of the pages to compare
+	 * @return True if none of the pages changed.
+	 */
+	private boolean isUnchanged(WikiConfig old, String... titles)
+	{
+		for (String t : titles)
+			if (!revids.get(t).equals(old.revids.get(t)))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Reads a snapshot.
+	 *
+	 * @param cache The snapshot file
+	 * @return The snapshot, or null if it does not exist or could not be read.
+	 */
+	private static WikiConfig read(Path cache)
+	{
+		if (!Files.isRegularFile(cache))
+			return null;
+
+		try (BufferedReader r = Files.newBufferedReader(cache))
+		{
+			WikiConfig c = new Gson().fromJson(r, WikiConfig.class);
+			return c != null && c.blacklist != null && c.whitelist != null && c.redirects != null && c.revids != null ? c : null;
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Saves this configuration as the snapshot. The file is replaced atomically.
+	 *
+	 * @param cache The snapshot file
+	 */
+	private void write(Path cache)
+	{
+		try
+		{
+			Path tmp = cache.resolveSibling(cache.getFileName() + ".tmp");
+			try (BufferedWriter w = Files.newBufferedWriter(tmp))
+			{
+				new Gson().toJson(this, w);
+			}
+
+			Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (Throwable e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
\ No newline at end of file
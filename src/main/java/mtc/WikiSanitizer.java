@@ -0,0 +1,643 @@
+package mtc;
+
+import java.util.Arrays;
+
+/**
+ * Single-pass replacements for the regex passes used to clean up file description pages. Each method walks its input
+ * once and writes to one output buffer, while giving the same result as applying the original {@code replaceAll} calls in
+ * order.
+ *
+ * @author Fastily
+ *
+ */
+public final class WikiSanitizer
+{
+	/**
+	 * Constructors disallowed
+	 */
+	private WikiSanitizer()
+	{
+
+	}
+
+	/**
+	 * Strips comments, categories, headers, wikitables, and bots/nobots templates from {@code txt}. Equivalent to applying
+	 * the following, in order:
+	 *
+	 * <pre>
+	 * txt.replaceAll("(?s)\\&lt;!\\-\\-.*?\\-\\-\\&gt;", "")
+	 *    .replaceAll("(?i)\\n?\\[\\[(Category:).*?\\]\\]", "")
+	 *    .replaceAll("\\n?\\=\\=.*?\\=\\=\\n?", "")
+	 *    .replaceAll("(?si)\\{\\|\\s*?class\\=\"wikitable.+?\\|\\}", "")
+	 *    .replaceAll("(?si)\\{\\{(bots|nobots).*?\\}\\}", "")
+	 * </pre>
+	 *
+	 * @param txt The text to process
+	 * @return The stripped text.
+	 */
+	public static String strip(String txt)
+	{
+		return new Stripper(txt).run();
+	}
+
+	/**
+	 * Prefixes wikilinks with {@code w:}, collapses doubled interwiki prefixes, and collapses runs of three or more
+	 * newlines. Equivalent to applying the following, in order:
+	 *
+	 * <pre>
+	 * txt.replaceAll("(?&lt;=\\[\\[)(.+?\\]\\])", "w:$1")
+	 *    .replaceAll("(?i)\\[\\[(w::|w:w:)", "[[w:")
+	 *    .replaceAll("\\n{3,}", "\n")
+	 * </pre>
+	 *
+	 * @param txt The text to process
+	 * @return The rewritten text.
+	 */
+	public static String rewriteLinks(CharSequence txt)
+	{
+		return rewriteLinks(txt, new StringBuilder(txt.length() + 64)).toString();
+	}
+
+	/**
+	 * Rewrites links as per {@link #rewriteLinks(CharSequence)}, appending the result to an existing buffer.
+	 *
+	 * @param txt The text to process
+	 * @param out The buffer to append the rewritten text to. Its existing contents are not processed.
+	 * @return {@code out}
+	 */
+	public static StringBuilder rewriteLinks(CharSequence txt, StringBuilder out)
+	{
+		LinkWriter w = new LinkWriter(out);
+		int n = txt.length();
+
+		for (int i = 0; i < n;)
+		{
+			int end;
+			if (i >= 2 && txt.charAt(i - 1) == '[' && txt.charAt(i - 2) == '[' && (end = linkEnd(txt, i)) >= 0)
+			{
+				w.put('w');
+				w.put(':');
+				for (; i < end; i++)
+					w.put(txt.charAt(i));
+			}
+			else
+				w.put(txt.charAt(i++));
+		}
+
+		return w.finish();
+	}
+
+	/**
+	 * Finds the end of a link body ({@code .+?\]\]}) starting at {@code i}.
+	 *
+	 * @param txt The text to search
+	 * @param i The index just after the opening brackets.
+	 * @return The index just after the closing brackets, or -1 if there are none on this line.
+	 */
+	private static int linkEnd(CharSequence txt, int i)
+	{
+		int n = txt.length();
+		if (i >= n || isLineTerminator(txt.charAt(i)))
+			return -1;
+
+		for (int q = i + 1; q + 1 < n; q++)
+		{
+			char c = txt.charAt(q);
+			if (c == ']' && txt.charAt(q + 1) == ']')
+				return q + 2;
+			if (isLineTerminator(c))
+				return -1;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Determines if {@code c} is a line terminator, i.e. a character which {@code .} does not match by default.
+	 *
+	 * @param c The character to check
+	 * @return True if {@code c} is a line terminator.
+	 */
+	private static boolean isLineTerminator(char c)
+	{
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	/**
+	 * Case-insensitive (US-ASCII only) comparison of two characters, as done by regex {@code (?i)}.
+	 *
+	 * @param a The first character
+	 * @param b The second character
+	 * @return True if {@code a} and {@code b} are equal, ignoring ASCII case.
+	 */
+	private static boolean equalsIgnoreCase(char a, char b)
+	{
+		return a == b || (a | 0x20) == (b | 0x20) && (a | 0x20) >= 'a' && (a | 0x20) <= 'z';
+	}
+
+	/**
+	 * Walks a description page once, dropping every region that one of the strip passes would have removed.
+	 * <p>
+	 * Each pass only sees the output of the passes before it. This is emulated by layered cursors: the matcher for a pass
+	 * steps through its input with a cursor that skips everything removed by earlier passes. The main loop uses the
+	 * cursor for the last pass, so every character it visits survives all passes.
+	 * <p>
+	 * Cursor steps and searches for closing delimiters are memoized by position, so pages full of unterminated constructs
+	 * are still processed in linear time.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class Stripper
+	{
+		/**
+		 * Pass identifiers, in the order they are applied.
+		 */
+		private static final int COMMENT = 0, CATEGORY = 1, HEADER = 2, TABLE = 3, BOTS = 4;
+
+		/**
+		 * The text to process
+		 */
+		private final String s;
+
+		/**
+		 * The length of {@code s}
+		 */
+		private final int n;
+
+		/**
+		 * Memoized results of {@link #skip(int, int)}, indexed by pass and then position. Each entry holds the result plus
+		 * one, or 0 if not yet known. Allocated on first use; the last pass is not memoized since only {@link #run()} skips
+		 * at that level.
+		 */
+		private final int[][] skips = new int[BOTS][];
+
+		/**
+		 * Memoized results of {@link #close(int, int)}, indexed by pass and then position. Each entry holds the result plus
+		 * two, or 0 if not yet known. Allocated on first use.
+		 */
+		private final int[][] closes = new int[BOTS + 1][];
+
+		/**
+		 * Stack of the positions visited by the {@link #skip(int, int)} and {@link #close(int, int)} calls in progress, whose
+		 * memo entries are filled in once each call has its result.
+		 */
+		private int[] trail = new int[16];
+
+		/**
+		 * The number of positions in {@code trail}
+		 */
+		private int trailLen = 0;
+
+		/**
+		 * The index the last search for the end of a comment started at, and its result.
+		 */
+		private int commentFrom = Integer.MAX_VALUE, commentEnd;
+
+		/**
+		 * Constructor, creates a new Stripper
+		 *
+		 * @param s The text to process
+		 */
+		private Stripper(String s)
+		{
+			this.s = s;
+			n = s.length();
+		}
+
+		/**
+		 * Performs the walk.
+		 *
+		 * @return The stripped text.
+		 */
+		private String run()
+		{
+			StringBuilder out = new StringBuilder(n);
+
+			int i = skip(BOTS, 0);
+			while (i < n)
+			{
+				int j = i + 1;
+				while (j < n && !isSpecial(s.charAt(j)))
+					j++;
+
+				out.append(s, i, j);
+				i = skip(BOTS, j);
+			}
+
+			return out.toString();
+		}
+
+		/**
+		 * Determines if a removed region can start at {@code c}.
+		 *
+		 * @param c The character to check
+		 * @return True if a match for any of the passes may start at {@code c}.
+		 */
+		private static boolean isSpecial(char c)
+		{
+			return c == '<' || c == '\n' || c == '[' || c == '=' || c == '{';
+		}
+
+		/**
+		 * Advances {@code i} past every region removed by the passes up to and including {@code pass}.
+		 *
+		 * @param pass The last pass to apply
+		 * @param i The index to start at
+		 * @return The first index at or after {@code i} which survives the passes up to {@code pass}.
+		 */
+		private int skip(int pass, int i)
+		{
+			int[] memo = pass == BOTS ? null : skips[pass] != null ? skips[pass] : (skips[pass] = new int[n]);
+			int base = trailLen;
+
+			while (i < n)
+			{
+				if (memo != null && memo[i] != 0)
+				{
+					i = memo[i] - 1;
+					break;
+				}
+				if (memo != null)
+					visit(i);
+
+				int end;
+				if ((end = comment(i)) < 0 && (pass < CATEGORY || (end = category(i)) < 0) && (pass < HEADER || (end = header(i)) < 0)
+						&& (pass < TABLE || (end = table(i)) < 0) && (pass < BOTS || (end = bots(i)) < 0))
+					break;
+
+				i = end;
+			}
+
+			for (; trailLen > base; trailLen--)
+				memo[trail[trailLen - 1]] = i + 1;
+
+			return i;
+		}
+
+		/**
+		 * Pushes a visited position onto {@code trail}, growing it as needed.
+		 *
+		 * @param i The position to record
+		 */
+		private void visit(int i)
+		{
+			if (trailLen == trail.length)
+				trail = Arrays.copyOf(trail, trailLen * 2);
+
+			trail[trailLen++] = i;
+		}
+
+		/**
+		 * Searches for the delimiter which closes a match for {@code pass}, in the text as seen after the pass before it.
+		 * Every position visited by the search is memoized, so an unterminated construct is only scanned once no matter how
+		 * many matches start before it.
+		 *
+		 * @param pass The pass whose closing delimiter to find. One of {@code CATEGORY}, {@code HEADER}, {@code TABLE}, or
+		 *           {@code BOTS}.
+		 * @param p The index to start searching at
+		 * @return The end of the match, or -1 if there was no match.
+		 */
+		private int close(int pass, int p)
+		{
+			int[] memo = closes[pass] != null ? closes[pass] : (closes[pass] = new int[n]);
+			int base = trailLen, end = -1;
+
+			for (p = skip(pass - 1, p); p < n; p = skip(pass - 1, p + 1))
+			{
+				if (memo[p] != 0)
+				{
+					end = memo[p] - 2;
+					break;
+				}
+
+				visit(p);
+				if ((end = closeAt(pass, p)) != -2)
+					break;
+
+				end = -1;
+			}
+
+			for (; trailLen > base; trailLen--)
+				memo[trail[trailLen - 1]] = end + 2;
+
+			return end;
+		}
+
+		/**
+		 * Checks for the delimiter which closes a match for {@code pass} at {@code p}.
+		 *
+		 * @param pass The pass whose closing delimiter to check for
+		 * @param p The index to check, which survives the pass before {@code pass}.
+		 * @return The end of the match, -1 if the match fails at {@code p}, or -2 if the search should continue past
+		 *         {@code p}.
+		 */
+		private int closeAt(int pass, int p)
+		{
+			char c = s.charAt(p);
+			int q;
+			switch (pass)
+			{
+				case CATEGORY:
+					if (c == ']' && (q = skip(COMMENT, p + 1)) < n && s.charAt(q) == ']')
+						return q + 1;
+					return isLineTerminator(c) ? -1 : -2;
+				case HEADER:
+					if (c == '=' && (q = skip(CATEGORY, p + 1)) < n && s.charAt(q) == '=')
+					{
+						int r = skip(CATEGORY, q + 1);
+						return r < n && s.charAt(r) == '\n' ? r + 1 : q + 1;
+					}
+					return isLineTerminator(c) ? -1 : -2;
+				case TABLE:
+					return c == '|' && (q = skip(HEADER, p + 1)) < n && s.charAt(q) == '}' ? q + 1 : -2;
+				default:
+					return c == '}' && (q = skip(TABLE, p + 1)) < n && s.charAt(q) == '}' ? q + 1 : -2;
+			}
+		}
+
+		/**
+		 * Matches {@code lit} against the text as seen after {@code pass}, starting at {@code i}.
+		 *
+		 * @param pass The pass whose output is being matched
+		 * @param i The index to start at
+		 * @param lit The literal to match
+		 * @param ignoreCase Set true to ignore ASCII case.
+		 * @return The index just after the last matched character, or -1 if there was no match.
+		 */
+		private int literal(int pass, int i, String lit, boolean ignoreCase)
+		{
+			for (int k = 0; k < lit.length(); k++)
+			{
+				i = skip(pass, i);
+				if (i >= n || !(ignoreCase ? equalsIgnoreCase(s.charAt(i), lit.charAt(k)) : s.charAt(i) == lit.charAt(k)))
+					return -1;
+				i++;
+			}
+
+			return i;
+		}
+
+		/**
+		 * Matches {@code <!--.*?-->} (dotall) at {@code i}.
+		 *
+		 * @param i The index to start at
+		 * @return The end of the match, or -1 if there was no match.
+		 */
+		private int comment(int i)
+		{
+			if (!s.startsWith("<!--", i))
+				return -1;
+
+			int from = i + 4;
+			if (from < commentFrom || commentEnd >= 0 && from > commentEnd)
+			{
+				commentFrom = from;
+				commentEnd = s.indexOf("-->", from);
+			}
+
+			return commentEnd < 0 ? -1 : commentEnd + 3;
+		}
+
+		/**
+		 * Matches {@code \n?\[\[(Category:).*?\]\]} (case-insensitive) at {@code i}, against comment-stripped text.
+		 *
+		 * @param i The index to start at
+		 * @return The end of the match, or -1 if there was no match.
+		 */
+		private int category(int i)
+		{
+			char c = s.charAt(i);
+			if (c != '\n' && c != '[')
+				return -1;
+
+			int p = literal(COMMENT, c == '\n' ? i + 1 : i, "[[category:", true);
+			return p < 0 ? -1 : close(CATEGORY, p);
+		}
+
+		/**
+		 * Matches {@code \n?==.*?==\n?} at {@code i}, against text without comments and categories.
+		 *
+		 * @param i The index to start at
+		 * @return The end of the match, or -1 if there was no match.
+		 */
+		private int header(int i)
+		{
+			char c = s.charAt(i);
+			if (c != '\n' && c != '=')
+				return -1;
+
+			int p = literal(CATEGORY, c == '\n' ? i + 1 : i, "==", false);
+			return p < 0 ? -1 : close(HEADER, p);
+		}
+
+		/**
+		 * Matches {@code \{\|\s*?class="wikitable.+?\|\}} (dotall, case-insensitive) at {@code i}, against text without
+		 * comments, categories, and headers.
+		 *
+		 * @param i The index to start at
+		 * @return The end of the match, or -1 if there was no match.
+		 */
+		private int table(int i)
+		{
+			if (s.charAt(i) != '{')
+				return -1;
+
+			int p = literal(HEADER, i, "{|", false);
+			if (p < 0)
+				return -1;
+
+			for (p = skip(HEADER, p); p < n && isWhitespace(s.charAt(p)); p = skip(HEADER, p + 1))
+				;
+
+			if ((p = literal(HEADER, p, "class=\"wikitable", true)) < 0 || (p = skip(HEADER, p)) >= n)
+				return -1;
+
+			return close(TABLE, p + 1);
+		}
+
+		/**
+		 * Matches {@code \{\{(bots|nobots).*?\}\}} (dotall, case-insensitive) at {@code i}, against text without comments,
+		 * categories, headers, and wikitables.
+		 *
+		 * @param i The index to start at
+		 * @return The end of the match, or -1 if there was no match.
+		 */
+		private int bots(int i)
+		{
+			if (s.charAt(i) != '{')
+				return -1;
+
+			int p = literal(TABLE, i, "{{", false);
+			if (p < 0)
+				return -1;
+
+			int q = literal(TABLE, p, "bots", true);
+			return q < 0 && (q = literal(TABLE, p, "nobots", true)) < 0 ? -1 : close(BOTS, q);
+		}
+
+		/**
+		 * Determines if {@code c} is matched by regex {@code \s}.
+		 *
+		 * @param c The character to check
+		 * @return True if {@code c} is whitespace.
+		 */
+		private static boolean isWhitespace(char c)
+		{
+			return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+		}
+	}
+
+	/**
+	 * Output stage for {@link WikiSanitizer#rewriteLinks(CharSequence)}. Collapses doubled interwiki prefixes and runs of
+	 * newlines as characters are written.
+	 *
+	 * @author Fastily
+	 *
+	 */
+	private static class LinkWriter
+	{
+		/**
+		 * The doubled prefixes to collapse to {@code [[w:}, matched ignoring ASCII case.
+		 */
+		private static final String[] prefixes = { "[[w::", "[[w:w:" };
+
+		/**
+		 * The output buffer
+		 */
+		private final StringBuilder out;
+
+		/**
+		 * Characters which may still turn out to be the start of a doubled prefix.
+		 */
+		private final char[] pending = new char[6];
+
+		/**
+		 * The number of characters in {@code pending}
+		 */
+		private int pendingLen = 0;
+
+		/**
+		 * The number of consecutive newlines not yet written to {@code out}
+		 */
+		private int newlines = 0;
+
+		/**
+		 * Constructor, creates a new LinkWriter
+		 *
+		 * @param out The output buffer
+		 */
+		private LinkWriter(StringBuilder out)
+		{
+			this.out = out;
+		}
+
+		/**
+		 * Writes a character, collapsing doubled interwiki prefixes.
+		 *
+		 * @param c The character to write.
+		 */
+		private void put(char c)
+		{
+			if (pendingLen == 0 && c != '[')
+			{
+				emit(c);
+				return;
+			}
+
+			pending[pendingLen++] = c;
+			while (pendingLen > 0)
+			{
+				int m = matchPrefix();
+				if (m == 2)
+				{
+					emit('[');
+					emit('[');
+					emit('w');
+					emit(':');
+					pendingLen = 0;
+				}
+				else if (m == 0)
+				{
+					emit(pending[0]);
+					System.arraycopy(pending, 1, pending, 0, --pendingLen);
+					continue;
+				}
+
+				return;
+			}
+		}
+
+		/**
+		 * Compares {@code pending} against {@code prefixes}.
+		 *
+		 * @return 2 if {@code pending} is a complete prefix, 1 if it could still become one, or 0 otherwise.
+		 */
+		private int matchPrefix()
+		{
+			int best = 0;
+			for (String p : prefixes)
+			{
+				if (pendingLen > p.length())
+					continue;
+
+				int k = 0;
+				while (k < pendingLen && equalsIgnoreCase(pending[k], p.charAt(k)))
+					k++;
+
+				if (k == pendingLen)
+				{
+					if (k == p.length())
+						return 2;
+					best = 1;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Writes a character, collapsing runs of newlines.
+		 *
+		 * @param c The character to write.
+		 */
+		private void emit(char c)
+		{
+			if (c == '\n')
+				newlines++;
+			else
+			{
+				flushNewlines();
+				out.append(c);
+			}
+		}
+
+		/**
+		 * Writes any pending newlines, replacing a run of three or more with a single newline.
+		 */
+		private void flushNewlines()
+		{
+			if (newlines >= 3)
+				out.append('\n');
+			else
+				for (; newlines > 0; newlines--)
+					out.append('\n');
+
+			newlines = 0;
+		}
+
+		/**
+		 * Flushes all pending output.
+		 *
+		 * @return The output buffer.
+		 */
+		private StringBuilder finish()
+		{
+			for (int i = 0; i < pendingLen; i++)
+				emit(pending[i]);
+
+			pendingLen = 0;
+			flushNewlines();
+			return out;
+		}
+	}
+}
\ No newline at end of file